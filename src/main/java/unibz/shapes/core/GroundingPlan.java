@@ -0,0 +1,155 @@
+package unibz.shapes.core;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.BindingSet;
+import unibz.shapes.core.global.RuleSink;
+import unibz.shapes.core.global.TermDictionary;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Rule patterns instantiated by the solution mappings of a query, compiled once per query.
+ * <p>
+ * The variables of all patterns are numbered (slots), and each atom of a pattern refers to the slot of its argument.
+ * So for each solution mapping, each variable is looked up (and its value encoded) at most once,
+ * whatever the number of atoms and patterns it appears in,
+ * and each rule is built from literal encodings, without intermediate collections.
+ * <p>
+ * Solution mappings are grounded by a Grounder (one per thread), which reuses its arrays from one solution mapping to the next,
+ * and does not encode again the value of a variable which is the same as in the previous solution mapping
+ * (e.g. the focus node, for consecutive solution mappings about the same node).
+ * <p>
+ * A pattern is instantiated only if all its variables are bound.
+ * <p>
+ * Immutable.
+ */
+public class GroundingPlan {
+
+    private static final int UNBOUND = -1;
+    private static final int NOT_ENCODED = -2;
+
+    private final String[] variables;
+    private final ImmutableList<CompiledPattern> patterns;
+
+    private GroundingPlan(String[] variables, ImmutableList<CompiledPattern> patterns) {
+        this.variables = variables;
+        this.patterns = patterns;
+    }
+
+    public static GroundingPlan compile(ImmutableList<RulePattern> rulePatterns) {
+        Map<String, Integer> slots = new LinkedHashMap<>();
+        ImmutableList.Builder<CompiledPattern> patterns = ImmutableList.builder();
+        rulePatterns.forEach(p -> patterns.add(new CompiledPattern(p, slots)));
+        return new GroundingPlan(
+                slots.keySet().toArray(new String[0]),
+                patterns.build()
+        );
+    }
+
+    /**
+     * Not thread-safe: each thread grounding solution mappings needs its own grounder
+     */
+    public Grounder grounder(RuleSink ruleSink) {
+        return new Grounder(ruleSink);
+    }
+
+    public class Grounder implements Consumer<BindingSet> {
+
+        private final RuleSink ruleSink;
+        private final Value[] values;
+        private final int[] nodeIds;
+        // values of the previous solution mapping, and their encodings
+        private final Value[] previousValues;
+        private final int[] previousNodeIds;
+        // one body per pattern (not retained by the sink)
+        private final long[][] bodies;
+
+        private Grounder(RuleSink ruleSink) {
+            this.ruleSink = ruleSink;
+            this.values = new Value[variables.length];
+            this.nodeIds = new int[variables.length];
+            this.previousValues = new Value[variables.length];
+            this.previousNodeIds = new int[variables.length];
+            this.bodies = new long[patterns.size()][];
+            for (int i = 0; i < bodies.length; i++) {
+                bodies[i] = new long[patterns.get(i).slots.length - 1];
+            }
+        }
+
+        /**
+         * RDF4J binding sets have no positional access, so each variable is still looked up by name
+         */
+        @Override
+        public void accept(BindingSet bs) {
+            for (int i = 0; i < variables.length; i++) {
+                values[i] = bs.getValue(variables[i]);
+                nodeIds[i] = values[i] == null ?
+                        UNBOUND :
+                        NOT_ENCODED;
+            }
+            for (int i = 0; i < bodies.length; i++) {
+                patterns.get(i).instantiate(this, bodies[i]);
+            }
+        }
+
+        private int getNodeId(int slot) {
+            if (nodeIds[slot] == NOT_ENCODED) {
+                if (!values[slot].equals(previousValues[slot])) {
+                    previousValues[slot] = values[slot];
+                    previousNodeIds[slot] = TermDictionary.getNodes().encode(values[slot].stringValue());
+                    if (!(values[slot] instanceof IRI)) {
+                        TermDictionary.getNodes().markNonIRI(previousNodeIds[slot]);
+                    }
+                }
+                nodeIds[slot] = previousNodeIds[slot];
+            }
+            return nodeIds[slot];
+        }
+    }
+
+    private static class CompiledPattern {
+
+        // head first, then body literals
+        private final int[] predicateIds;
+        private final boolean[] signs;
+        private final int[] slots;
+
+        private CompiledPattern(RulePattern pattern, Map<String, Integer> slotMap) {
+            int n = pattern.getLiterals().size() + 1;
+            this.predicateIds = new int[n];
+            this.signs = new boolean[n];
+            this.slots = new int[n];
+            set(0, pattern.getHead(), slotMap);
+            int i = 1;
+            for (Literal l : pattern.getLiterals()) {
+                set(i++, l, slotMap);
+            }
+        }
+
+        private void set(int i, Literal l, Map<String, Integer> slotMap) {
+            predicateIds[i] = l.getPredicateId();
+            signs[i] = l.isPos();
+            slots[i] = slotMap.computeIfAbsent(l.getArg(), v -> slotMap.size());
+        }
+
+        private void instantiate(Grounder grounder, long[] body) {
+            for (int slot : slots) {
+                if (grounder.nodeIds[slot] == UNBOUND) {
+                    return;
+                }
+            }
+            for (int i = 1; i < slots.length; i++) {
+                body[i - 1] = encode(i, grounder);
+            }
+            grounder.ruleSink.addRule(encode(0, grounder), body);
+        }
+
+        private long encode(int i, Grounder grounder) {
+            return Literal.encode(predicateIds[i], grounder.getNodeId(slots[i]), signs[i]);
+        }
+    }
+}
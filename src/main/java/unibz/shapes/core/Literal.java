@@ -1,62 +1,114 @@
 package unibz.shapes.core;
 
-import java.util.Objects;
+import unibz.shapes.core.global.TermDictionary;
 
-public class Literal {
+/**
+ * Ground or non-ground literal, encoded as a long: predicate id (30 bits), node id (32 bits) and sign (1 bit),
+ * where ids are given by the global term dictionaries.
+ * <p>
+ * Predicate and argument strings are only decoded when needed (e.g. to write results).
+ */
+public final class Literal {
 
-    private final String pred;
-    private final String arg;
-    private final boolean isPos;
+    private static final long NEGATIVE = 1L;
+    private static final int MAX_PREDICATE_ID = (1 << 30) - 1;
+
+    private final long code;
 
     public Literal(String pred, String arg, boolean isPos) {
-        this.pred = pred;
-        this.arg = arg;
-        this.isPos = isPos;
+        this(TermDictionary.getPredicates().encode(pred), TermDictionary.getNodes().encode(arg), isPos);
+    }
+
+    public Literal(int predicateId, int nodeId, boolean isPos) {
+        this(encode(predicateId, nodeId, isPos));
+    }
+
+    private Literal(long code) {
+        this.code = code;
+    }
+
+    public static Literal decode(long code) {
+        return new Literal(code);
+    }
+
+    public static long encode(int predicateId, int nodeId, boolean isPos) {
+        if (predicateId < 0 || predicateId > MAX_PREDICATE_ID) {
+            throw new IllegalArgumentException("Predicate id out of range: " + predicateId);
+        }
+        return ((long) predicateId << 33) |
+                ((nodeId & 0xFFFFFFFFL) << 1) |
+                (isPos ? 0 : NEGATIVE);
+    }
+
+    public static long negate(long code) {
+        return code ^ NEGATIVE;
+    }
+
+    /**
+     * Encoding of the atom of the literal (i.e. the positive literal)
+     */
+    public static long getAtom(long code) {
+        return code & ~NEGATIVE;
+    }
+
+    public static boolean isPos(long code) {
+        return (code & NEGATIVE) == 0;
+    }
+
+    public long getCode() {
+        return code;
+    }
+
+    public int getPredicateId() {
+        return (int) (code >>> 33);
+    }
+
+    public int getNodeId() {
+        return (int) (code >>> 1);
     }
 
     public String getPredicate() {
-        return pred;
+        return TermDictionary.getPredicates().decode(getPredicateId());
     }
 
     public Literal getAtom() {
-        return isPos ?
+        return isPos() ?
                 this :
                 this.getNegation();
     }
 
-    String getArg() {
-        return arg;
+    public String getArg() {
+        return TermDictionary.getNodes().decode(getNodeId());
     }
 
     public boolean isPos() {
-        return isPos;
+        return (code & NEGATIVE) == 0;
     }
 
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
-        Literal literal = (Literal) o;
-        return isPos == literal.isPos &&
-                Objects.equals(pred, literal.pred) &&
-                Objects.equals(arg, literal.arg);
+        return code == ((Literal) o).code;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(pred, arg, isPos);
+        // spreads the predicate and node bits
+        long h = code * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
     }
 
     public Literal getNegation() {
-        return new Literal(pred, arg, !isPos);
+        return new Literal(negate(code));
     }
 
     @Override
     public String toString() {
-        return (isPos ?
+        return (isPos() ?
                 "" :
                 "!") +
-                pred + "(" +
-                arg + ")";
+                getPredicate() + "(" +
+                getArg() + ")";
     }
 }
@@ -1,11 +1,17 @@
 package unibz.shapes.core;
 
 
+import unibz.shapes.core.global.VariableGenerator;
+
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class Query {
 
+    private static final String WHERE = "WHERE{";
+
     private final RulePattern rulePattern;
     private final String sparql;
     private final String id;
@@ -35,4 +41,43 @@ public class Query {
                 .collect(Collectors.joining("\n"))
                 .replace("SELECT *", "SELECT distinct(?x)");
     }
+
+    /**
+     * Query counting the solution mappings of this one (evaluated as a subquery), as variable "count"
+     */
+    public String getCountQuery() {
+        Map<Boolean, String> lines = Arrays.stream(sparql.split("\n"))
+                .collect(Collectors.partitioningBy(
+                        l -> l.contains("PREFIX"),
+                        Collectors.joining("\n")
+                ));
+        return lines.get(true) +
+                "\nSELECT (COUNT(*) AS ?count) WHERE {\n" +
+                lines.get(false) +
+                "\n}";
+    }
+
+    /**
+     * Same query, restricted to the given focus nodes (IRIs) with a VALUES block
+     */
+    public Query restrict(String id, Collection<String> focusNodeIRIs) {
+        int i = sparql.indexOf(WHERE);
+        if (i < 0) {
+            throw new IllegalStateException("Query " + this.id + " cannot be restricted to focus nodes");
+        }
+        i += WHERE.length();
+        return new Query(
+                id,
+                rulePattern,
+                sparql.substring(0, i) + "\n" + getValuesBlock(focusNodeIRIs) + sparql.substring(i)
+        );
+    }
+
+    public static String getValuesBlock(Collection<String> focusNodeIRIs) {
+        return "VALUES ?" + VariableGenerator.getFocusNodeVar() + " {" +
+                focusNodeIRIs.stream()
+                        .map(n -> " <" + n + ">")
+                        .collect(Collectors.joining()) +
+                " }";
+    }
 }
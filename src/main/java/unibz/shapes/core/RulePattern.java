@@ -1,7 +1,6 @@
 package unibz.shapes.core;
 
 import com.google.common.collect.ImmutableSet;
-import org.eclipse.rdf4j.query.BindingSet;
 import unibz.shapes.util.ImmutableCollectors;
 
 import java.util.stream.Collectors;
@@ -48,21 +47,6 @@ public class RulePattern {
                 .collect(Collectors.joining(", "));
     }
 
-    public Literal instantiateAtom(Literal a, BindingSet bs) {
-        return new Literal(
-                a.getPredicate(),
-                bs.getValue(a.getArg()).stringValue(),
-                a.isPos()
-        );
-
-    }
-
-    public ImmutableSet<Literal> instantiateBody(BindingSet bs) {
-                return literals.stream()
-                        .map(a -> instantiateAtom(a, bs))
-                        .collect(ImmutableCollectors.toSet());
-    }
-
     public ImmutableSet<String> getVariables() {
         return variables;
     }
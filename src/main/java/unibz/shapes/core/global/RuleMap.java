@@ -3,71 +3,57 @@ package unibz.shapes.core.global;
 import com.google.common.collect.ImmutableSet;
 import unibz.shapes.core.Literal;
 
-import java.util.*;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Stream;
 
-public class RuleMap {
-
-    private final Map<Literal, Set<ImmutableSet<Literal>>> map;
-    private int ruleNumber;
-
-    public RuleMap() {
-        this.map = new HashMap<>();
-        this.ruleNumber = 0;
+/**
+ * Ground rules, indexed by head.
+ * <p>
+ * Implementations are not thread-safe, except StripedRuleMap.
+ */
+public interface RuleMap extends RuleSink {
+
+    /**
+     * Null if there is no rule with this head
+     */
+    Set<ImmutableSet<Literal>> getRuleSet(Literal literal);
+
+    void addRule(Literal head, ImmutableSet<Literal> body);
+
+    /**
+     * Same as addRule(Literal, ImmutableSet), with literals given by their encoding (the body may contain duplicates)
+     */
+    @Override
+    default void addRule(long head, long[] body) {
+        Literal[] literals = new Literal[body.length];
+        for (int i = 0; i < body.length; i++) {
+            literals[i] = Literal.decode(body[i]);
+        }
+        addRule(Literal.decode(head), ImmutableSet.copyOf(literals));
     }
 
-    public RuleMap(Map<Literal, Set<ImmutableSet<Literal>>> map) {
-        this.map = map;
-    }
+    void addRules(RuleMap other);
 
-    public Set<ImmutableSet<Literal>> getRuleSet(Literal literal){
-        return map.get(literal);
-    }
+    void addRuleSet(Literal head, Set<ImmutableSet<Literal>> body);
 
-    public void addRule(Literal head, ImmutableSet<Literal> body){
-        Set<ImmutableSet<Literal>> bodies = map.get(head);
-        if(bodies == null){
-            Set<ImmutableSet<Literal>> s = new HashSet<>();
-            s.add(body);
-            map.put(head, s);
-            ruleNumber++;
-        }else {
-            if(bodies.add(body)){
-                ruleNumber++;
-            }
-        }
-    }
+    void remove(Literal a);
 
-    public void addRuleSet(Literal head, Set<ImmutableSet<Literal>> body){
-            map.put(head, body);
-    }
+    void replace(Literal head, Set<ImmutableSet<Literal>> bodies);
 
-    public void remove(Literal a){
-        map.remove(a);
-    }
+    Stream<Literal> getAllBodyAtoms();
 
-    public void replace(Literal head, Set<ImmutableSet<Literal>> bodies){
-        map.replace(head, bodies);
-    }
+    Set<Map.Entry<Literal, Set<ImmutableSet<Literal>>>> entrySet();
 
+    Set<Literal> keySet();
 
-    public Stream<Literal> getAllBodyAtoms(){
-        return map.values().stream()
-                .flatMap(s -> s.stream())
-                .flatMap(s -> s.stream());
-    }
+    Collection<Set<ImmutableSet<Literal>>> values();
 
-    public Set<Map.Entry<Literal, Set<ImmutableSet<Literal>>>> entrySet(){
-        return map.entrySet();
-    }
-    public Set<Literal> keySet(){
-        return map.keySet();
-    }
-    public Collection<Set<ImmutableSet<Literal>>> values(){
-        return map.values();
-    }
+    int getRuleNumber();
 
-    public int getRuleNumber() {
-        return ruleNumber;
-    }
+    /**
+     * Estimated memory footprint of the rules (in bytes)
+     */
+    long getEstimatedBytes();
 }
@@ -0,0 +1,12 @@
+package unibz.shapes.core.global;
+
+/**
+ * Receives ground rules, with literals given by their encoding (see Literal.encode)
+ */
+public interface RuleSink {
+
+    /**
+     * The body may contain duplicates, and is neither modified nor retained after the call (so the caller may reuse it)
+     */
+    void addRule(long head, long[] body);
+}
@@ -0,0 +1,87 @@
+package unibz.shapes.core.global;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps strings (predicates, nodes) to dense int ids, and back.
+ * <p>
+ * Thread-safe.
+ */
+public class TermDictionary {
+
+    private static final TermDictionary predicates = new TermDictionary();
+    private static final TermDictionary nodes = new TermDictionary();
+
+    private final ConcurrentHashMap<String, Integer> ids;
+    private volatile String[] terms;
+    private int size;
+    // ids of node terms which were encoded for a literal or a blank node (see markNonIRI)
+    private final Set<Integer> nonIRIs;
+
+    private TermDictionary() {
+        this.ids = new ConcurrentHashMap<>();
+        this.terms = new String[1024];
+        this.size = 0;
+        this.nonIRIs = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * Dictionary of predicates (shape and query names)
+     */
+    public static TermDictionary getPredicates() {
+        return predicates;
+    }
+
+    /**
+     * Dictionary of node IRIs (and variable names, for rule patterns)
+     */
+    public static TermDictionary getNodes() {
+        return nodes;
+    }
+
+    public int encode(String term) {
+        Integer id = ids.get(term);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(term);
+            if (id != null) {
+                return id;
+            }
+            if (size == terms.length) {
+                terms = Arrays.copyOf(terms, 2 * size);
+            }
+            terms[size] = term;
+            // the term is published before its id
+            ids.put(term, size);
+            return size++;
+        }
+    }
+
+    /**
+     * Records that this term was (also) the string value of a literal or a blank node,
+     * which cannot be referred to as an IRI (e.g. in a VALUES block)
+     */
+    public void markNonIRI(int id) {
+        nonIRIs.add(id);
+    }
+
+    /**
+     * True if this term has been encoded, and only for IRIs
+     */
+    public boolean isIRI(String term) {
+        Integer id = ids.get(term);
+        return id != null && !nonIRIs.contains(id);
+    }
+
+    public String decode(int id) {
+        return terms[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+}
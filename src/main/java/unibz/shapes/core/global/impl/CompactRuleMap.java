@@ -0,0 +1,464 @@
+package unibz.shapes.core.global.impl;
+
+import com.google.common.collect.ImmutableSet;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.global.RuleMap;
+
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Rule map stored in primitive arrays, with no object per rule or per literal
+ * (literals are stored as their long encoding).
+ * <p>
+ * Rules are numbered in insertion order. For each rule, the body literals are stored (sorted) in a flat array,
+ * between two offsets. The rules with the same head form a linked list.
+ * Heads and rules are deduplicated with open-addressing hash tables.
+ * <p>
+ * Rule sets returned by the Map-like views are immutable copies, created on demand.
+ * Removed rules (remove, addRuleSet, replace) are first marked as such. Once they outnumber the remaining rules,
+ * the arrays are compacted, so that their space is reused by the rules added afterwards
+ * (allocated arrays are not shrunk).
+ */
+public class CompactRuleMap implements RuleMap {
+
+    private static final int NONE = -1;
+    // minimal number of removed rules before compaction
+    private static final int MIN_COMPACTION = 1024;
+
+    // heads (by head index)
+    private long[] headCodes;
+    private int[] headFirstRule;
+    private int headCount;
+    private int liveHeadCount;
+    // open-addressing table: head index + 1 (0 for an empty slot)
+    private int[] headTable;
+
+    // rules (by rule index)
+    private int[] ruleHead;
+    private int[] ruleNext;
+    private int[] ruleHash;
+    // body of rule r: bodies[bodyOffsets[r]] ... bodies[bodyOffsets[r + 1] - 1]
+    private int[] bodyOffsets;
+    private long[] bodies;
+    private int ruleCount;
+    // open-addressing table: rule index + 1 (0 for an empty slot)
+    private int[] ruleTable;
+
+    private int ruleNumber;
+
+    public CompactRuleMap() {
+        this.headCodes = new long[16];
+        this.headFirstRule = new int[16];
+        this.headTable = new int[32];
+        this.ruleHead = new int[16];
+        this.ruleNext = new int[16];
+        this.ruleHash = new int[16];
+        this.bodyOffsets = new int[17];
+        this.bodies = new long[32];
+        this.ruleTable = new int[32];
+    }
+
+    @Override
+    public Set<ImmutableSet<Literal>> getRuleSet(Literal literal) {
+        int h = getHead(literal.getCode());
+        return h == NONE || headFirstRule[h] == NONE ?
+                null :
+                getBodies(h);
+    }
+
+    @Override
+    public void addRule(Literal head, ImmutableSet<Literal> body) {
+        long[] codes = new long[body.size()];
+        int i = 0;
+        for (Literal l : body) {
+            codes[i++] = l.getCode();
+        }
+        Arrays.sort(codes);
+        addSortedRule(head.getCode(), codes);
+    }
+
+    @Override
+    public void addRule(long head, long[] body) {
+        long[] codes = body.clone();
+        Arrays.sort(codes);
+        int n = 0;
+        for (int i = 0; i < codes.length; i++) {
+            if (i == 0 || codes[i] != codes[i - 1]) {
+                codes[n++] = codes[i];
+            }
+        }
+        addSortedRule(head, n == codes.length ?
+                codes :
+                Arrays.copyOf(codes, n));
+    }
+
+    private void addSortedRule(long headCode, long[] body) {
+        int hash = hash(headCode, body);
+        int h = getOrAddHead(headCode);
+        int mask = ruleTable.length - 1;
+        int slot = hash & mask;
+        while (ruleTable[slot] != 0) {
+            int r = ruleTable[slot] - 1;
+            if (ruleHash[r] == hash && ruleHead[r] == h && bodyEquals(r, body)) {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int r = ruleCount++;
+        ensureRuleCapacity(body.length);
+        ruleHead[r] = h;
+        ruleHash[r] = hash;
+        int offset = bodyOffsets[r];
+        System.arraycopy(body, 0, bodies, offset, body.length);
+        bodyOffsets[r + 1] = offset + body.length;
+        if (headFirstRule[h] == NONE) {
+            liveHeadCount++;
+        }
+        ruleNext[r] = headFirstRule[h];
+        headFirstRule[h] = r;
+        ruleTable[slot] = r + 1;
+        ruleNumber++;
+        if (2 * ruleCount > ruleTable.length) {
+            rehashRules();
+        }
+    }
+
+    private boolean bodyEquals(int r, long[] body) {
+        int offset = bodyOffsets[r];
+        if (bodyOffsets[r + 1] - offset != body.length) {
+            return false;
+        }
+        for (int i = 0; i < body.length; i++) {
+            if (bodies[offset + i] != body[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getHead(long code) {
+        int mask = headTable.length - 1;
+        int slot = hash(code) & mask;
+        while (headTable[slot] != 0) {
+            int h = headTable[slot] - 1;
+            if (headCodes[h] == code) {
+                return h;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private int getOrAddHead(long code) {
+        int mask = headTable.length - 1;
+        int slot = hash(code) & mask;
+        while (headTable[slot] != 0) {
+            int h = headTable[slot] - 1;
+            if (headCodes[h] == code) {
+                return h;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int h = headCount++;
+        if (h == headCodes.length) {
+            headCodes = Arrays.copyOf(headCodes, 2 * h);
+            headFirstRule = Arrays.copyOf(headFirstRule, 2 * h);
+        }
+        headCodes[h] = code;
+        headFirstRule[h] = NONE;
+        headTable[slot] = h + 1;
+        if (2 * headCount > headTable.length) {
+            rehashHeads();
+        }
+        return h;
+    }
+
+    private void ensureRuleCapacity(int bodyLength) {
+        int r = ruleCount - 1;
+        if (r == ruleHead.length) {
+            ruleHead = Arrays.copyOf(ruleHead, 2 * r);
+            ruleNext = Arrays.copyOf(ruleNext, 2 * r);
+            ruleHash = Arrays.copyOf(ruleHash, 2 * r);
+            bodyOffsets = Arrays.copyOf(bodyOffsets, 2 * r + 1);
+        }
+        int required = bodyOffsets[r] + bodyLength;
+        if (required > bodies.length) {
+            bodies = Arrays.copyOf(bodies, Math.max(2 * bodies.length, required));
+        }
+    }
+
+    private void rehashHeads() {
+        headTable = new int[2 * headTable.length];
+        int mask = headTable.length - 1;
+        for (int h = 0; h < headCount; h++) {
+            int slot = hash(headCodes[h]) & mask;
+            while (headTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            headTable[slot] = h + 1;
+        }
+    }
+
+    private void rehashRules() {
+        ruleTable = new int[2 * ruleTable.length];
+        int mask = ruleTable.length - 1;
+        for (int r = 0; r < ruleCount; r++) {
+            if (ruleHead[r] == NONE) {
+                continue;
+            }
+            int slot = ruleHash[r] & mask;
+            while (ruleTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            ruleTable[slot] = r + 1;
+        }
+    }
+
+    private static int hash(long code) {
+        long h = code * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int hash(long headCode, long[] body) {
+        int h = hash(headCode);
+        for (long c : body) {
+            h = 31 * h + hash(c);
+        }
+        return h;
+    }
+
+    @Override
+    public void addRules(RuleMap other) {
+        other.entrySet().forEach(e ->
+                e.getValue().forEach(b -> addRule(e.getKey(), b))
+        );
+    }
+
+    @Override
+    public void addRuleSet(Literal head, Set<ImmutableSet<Literal>> bodies) {
+        remove(head);
+        bodies.forEach(b -> addRule(head, b));
+    }
+
+    @Override
+    public void remove(Literal a) {
+        int h = getHead(a.getCode());
+        if (h == NONE || headFirstRule[h] == NONE) {
+            return;
+        }
+        // removed rules stay in the rule table, but can no longer match (their head is NONE)
+        for (int r = headFirstRule[h]; r != NONE; r = ruleNext[r]) {
+            ruleHead[r] = NONE;
+            ruleNumber--;
+        }
+        headFirstRule[h] = NONE;
+        liveHeadCount--;
+        int removed = ruleCount - ruleNumber;
+        if (removed >= MIN_COMPACTION && removed > ruleNumber) {
+            compact();
+        }
+    }
+
+    /**
+     * Removes the marked rules and the heads without rule, renumbering the remaining ones (in the same order).
+     * Bodies are moved towards the start of the array, and the hash tables are rebuilt.
+     */
+    void compact() {
+        int[] newHead = new int[headCount];
+        int liveHeads = 0;
+        for (int h = 0; h < headCount; h++) {
+            if (headFirstRule[h] == NONE) {
+                newHead[h] = NONE;
+            } else {
+                newHead[h] = liveHeads;
+                headCodes[liveHeads] = headCodes[h];
+                liveHeads++;
+            }
+        }
+        Arrays.fill(headFirstRule, 0, liveHeads, NONE);
+        int liveRules = 0;
+        for (int r = 0; r < ruleCount; r++) {
+            if (ruleHead[r] == NONE) {
+                continue;
+            }
+            int h = newHead[ruleHead[r]];
+            int offset = bodyOffsets[r];
+            int length = bodyOffsets[r + 1] - offset;
+            // bodies only move backwards, and the offset of rule r + 1 is read before being overwritten
+            int newOffset = bodyOffsets[liveRules];
+            System.arraycopy(bodies, offset, bodies, newOffset, length);
+            bodyOffsets[liveRules + 1] = newOffset + length;
+            ruleHead[liveRules] = h;
+            ruleHash[liveRules] = ruleHash[r];
+            // rules are visited in insertion order, so the list of each head keeps its order
+            ruleNext[liveRules] = headFirstRule[h];
+            headFirstRule[h] = liveRules;
+            liveRules++;
+        }
+        headCount = liveHeads;
+        ruleCount = liveRules;
+        Arrays.fill(headTable, 0);
+        int mask = headTable.length - 1;
+        for (int h = 0; h < headCount; h++) {
+            int slot = hash(headCodes[h]) & mask;
+            while (headTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            headTable[slot] = h + 1;
+        }
+        Arrays.fill(ruleTable, 0);
+        mask = ruleTable.length - 1;
+        for (int r = 0; r < ruleCount; r++) {
+            int slot = ruleHash[r] & mask;
+            while (ruleTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            ruleTable[slot] = r + 1;
+        }
+    }
+
+    @Override
+    public void replace(Literal head, Set<ImmutableSet<Literal>> bodies) {
+        if (getRuleSet(head) != null) {
+            addRuleSet(head, bodies);
+        }
+    }
+
+    @Override
+    public Stream<Literal> getAllBodyAtoms() {
+        return IntStream.range(0, ruleCount)
+                .filter(r -> ruleHead[r] != NONE)
+                .boxed()
+                .flatMap(r -> Arrays.stream(bodies, bodyOffsets[r], bodyOffsets[r + 1])
+                        .mapToObj(Literal::decode));
+    }
+
+    private ImmutableSet<ImmutableSet<Literal>> getBodies(int h) {
+        ImmutableSet.Builder<ImmutableSet<Literal>> builder = ImmutableSet.builder();
+        for (int r = headFirstRule[h]; r != NONE; r = ruleNext[r]) {
+            ImmutableSet.Builder<Literal> body = ImmutableSet.builder();
+            for (int i = bodyOffsets[r]; i < bodyOffsets[r + 1]; i++) {
+                body.add(Literal.decode(bodies[i]));
+            }
+            builder.add(body.build());
+        }
+        return builder.build();
+    }
+
+    private Iterator<Integer> liveHeads() {
+        return IntStream.range(0, headCount)
+                .filter(h -> headFirstRule[h] != NONE)
+                .iterator();
+    }
+
+    @Override
+    public Set<Map.Entry<Literal, Set<ImmutableSet<Literal>>>> entrySet() {
+        return new AbstractSet<Map.Entry<Literal, Set<ImmutableSet<Literal>>>>() {
+            @Override
+            public Iterator<Map.Entry<Literal, Set<ImmutableSet<Literal>>>> iterator() {
+                Iterator<Integer> heads = liveHeads();
+                return new Iterator<Map.Entry<Literal, Set<ImmutableSet<Literal>>>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return heads.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<Literal, Set<ImmutableSet<Literal>>> next() {
+                        int h = heads.next();
+                        return new AbstractMap.SimpleImmutableEntry<>(Literal.decode(headCodes[h]), getBodies(h));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return liveHeadCount;
+            }
+        };
+    }
+
+    @Override
+    public Set<Literal> keySet() {
+        return new AbstractSet<Literal>() {
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Literal)) {
+                    return false;
+                }
+                int h = getHead(((Literal) o).getCode());
+                return h != NONE && headFirstRule[h] != NONE;
+            }
+
+            @Override
+            public Iterator<Literal> iterator() {
+                Iterator<Integer> heads = liveHeads();
+                return new Iterator<Literal>() {
+                    @Override
+                    public boolean hasNext() {
+                        return heads.hasNext();
+                    }
+
+                    @Override
+                    public Literal next() {
+                        return Literal.decode(headCodes[heads.next()]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return liveHeadCount;
+            }
+        };
+    }
+
+    @Override
+    public Collection<Set<ImmutableSet<Literal>>> values() {
+        return new AbstractCollection<Set<ImmutableSet<Literal>>>() {
+            @Override
+            public Iterator<Set<ImmutableSet<Literal>>> iterator() {
+                Iterator<Integer> heads = liveHeads();
+                return new Iterator<Set<ImmutableSet<Literal>>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return heads.hasNext();
+                    }
+
+                    @Override
+                    public Set<ImmutableSet<Literal>> next() {
+                        return getBodies(heads.next());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return liveHeadCount;
+            }
+        };
+    }
+
+    @Override
+    public int getRuleNumber() {
+        return ruleNumber;
+    }
+
+    /**
+     * Allocated size of the arrays
+     */
+    @Override
+    public long getEstimatedBytes() {
+        return 8L * headCodes.length +
+                4L * headFirstRule.length +
+                4L * headTable.length +
+                4L * ruleHead.length +
+                4L * ruleNext.length +
+                4L * ruleHash.length +
+                4L * bodyOffsets.length +
+                8L * bodies.length +
+                4L * ruleTable.length;
+    }
+}
@@ -0,0 +1,116 @@
+package unibz.shapes.core.global.impl;
+
+import com.google.common.collect.ImmutableSet;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.global.RuleMap;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Rule map backed by a HashMap (one object per rule and per literal)
+ */
+public class HashRuleMap implements RuleMap {
+
+    // estimates for a 64-bit JVM with compressed references
+    static final long BYTES_PER_HEAD = 32 + 8 + 24 + 16 + 48 + 16;
+    private static final long BYTES_PER_RULE = 32 + 8;
+    private static final long BYTES_PER_LITERAL = 24 + 12;
+
+    private final Map<Literal, Set<ImmutableSet<Literal>>> map;
+    private int ruleNumber;
+    private long estimatedBytes;
+
+    public HashRuleMap() {
+        this.map = new HashMap<>();
+        this.ruleNumber = 0;
+        this.estimatedBytes = 0;
+    }
+
+    public HashRuleMap(Map<Literal, Set<ImmutableSet<Literal>>> map) {
+        this.map = map;
+    }
+
+    @Override
+    public Set<ImmutableSet<Literal>> getRuleSet(Literal literal){
+        return map.get(literal);
+    }
+
+    @Override
+    public void addRule(Literal head, ImmutableSet<Literal> body){
+        Set<ImmutableSet<Literal>> bodies = map.get(head);
+        if(bodies == null){
+            Set<ImmutableSet<Literal>> s = new HashSet<>();
+            s.add(body);
+            map.put(head, s);
+            ruleNumber++;
+            estimatedBytes += BYTES_PER_HEAD + estimateBytes(body);
+        }else {
+            if(bodies.add(body)){
+                ruleNumber++;
+                estimatedBytes += estimateBytes(body);
+            }
+        }
+    }
+
+    static long estimateBytes(ImmutableSet<Literal> body) {
+        // the ImmutableSet itself (including its hash table if it has more than one element)
+        long setBytes = body.size() < 2 ?
+                16 :
+                24 + 16 + 16 + 8L * body.size();
+        return BYTES_PER_RULE + setBytes + BYTES_PER_LITERAL * body.size();
+    }
+
+    @Override
+    public void addRules(RuleMap other){
+        other.entrySet().forEach(e ->
+                e.getValue().forEach(b -> addRule(e.getKey(), b))
+        );
+    }
+
+    @Override
+    public void addRuleSet(Literal head, Set<ImmutableSet<Literal>> body){
+            map.put(head, body);
+    }
+
+    @Override
+    public void remove(Literal a){
+        map.remove(a);
+    }
+
+    @Override
+    public void replace(Literal head, Set<ImmutableSet<Literal>> bodies){
+        map.replace(head, bodies);
+    }
+
+
+    @Override
+    public Stream<Literal> getAllBodyAtoms(){
+        return map.values().stream()
+                .flatMap(s -> s.stream())
+                .flatMap(s -> s.stream());
+    }
+
+    @Override
+    public Set<Map.Entry<Literal, Set<ImmutableSet<Literal>>>> entrySet(){
+        return map.entrySet();
+    }
+    @Override
+    public Set<Literal> keySet(){
+        return map.keySet();
+    }
+    @Override
+    public Collection<Set<ImmutableSet<Literal>>> values(){
+        return map.values();
+    }
+
+    @Override
+    public int getRuleNumber() {
+        return ruleNumber;
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+}
@@ -0,0 +1,185 @@
+package unibz.shapes.core.global.impl;
+
+import com.google.common.collect.ImmutableSet;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.global.RuleMap;
+
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Rule map partitioned by head into stripes, each of which is a rule map guarded by its own lock.
+ * <p>
+ * All rules with the same head are in the same stripe, so rules are deduplicated as in a single rule map:
+ * the rules (and their number) do not depend on the order or on the threads in which they are added.
+ * <p>
+ * Rules may be added and removed concurrently.
+ * The other methods (views and counts) are meant to be called once additions are complete.
+ */
+public class StripedRuleMap implements RuleMap {
+
+    private final RuleMap[] stripes;
+    private final int mask;
+
+    /**
+     * The number of stripes is rounded up to a power of 2
+     */
+    public StripedRuleMap(int stripeNumber, Supplier<RuleMap> stripeFactory) {
+        if (stripeNumber < 1) {
+            throw new IllegalArgumentException("The number of stripes must be positive");
+        }
+        int n = Integer.highestOneBit(stripeNumber);
+        if (n < stripeNumber) {
+            n *= 2;
+        }
+        this.stripes = new RuleMap[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = stripeFactory.get();
+        }
+        this.mask = n - 1;
+    }
+
+    private RuleMap getStripe(long headCode) {
+        long h = headCode * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h ^ (h >>> 32)) & mask];
+    }
+
+    @Override
+    public Set<ImmutableSet<Literal>> getRuleSet(Literal literal) {
+        RuleMap stripe = getStripe(literal.getCode());
+        synchronized (stripe) {
+            return stripe.getRuleSet(literal);
+        }
+    }
+
+    @Override
+    public void addRule(Literal head, ImmutableSet<Literal> body) {
+        RuleMap stripe = getStripe(head.getCode());
+        synchronized (stripe) {
+            stripe.addRule(head, body);
+        }
+    }
+
+    @Override
+    public void addRule(long head, long[] body) {
+        RuleMap stripe = getStripe(head);
+        synchronized (stripe) {
+            stripe.addRule(head, body);
+        }
+    }
+
+    @Override
+    public void addRules(RuleMap other) {
+        other.entrySet().forEach(e ->
+                e.getValue().forEach(b -> addRule(e.getKey(), b))
+        );
+    }
+
+    @Override
+    public void addRuleSet(Literal head, Set<ImmutableSet<Literal>> bodies) {
+        RuleMap stripe = getStripe(head.getCode());
+        synchronized (stripe) {
+            stripe.addRuleSet(head, bodies);
+        }
+    }
+
+    @Override
+    public void remove(Literal a) {
+        RuleMap stripe = getStripe(a.getCode());
+        synchronized (stripe) {
+            stripe.remove(a);
+        }
+    }
+
+    @Override
+    public void replace(Literal head, Set<ImmutableSet<Literal>> bodies) {
+        RuleMap stripe = getStripe(head.getCode());
+        synchronized (stripe) {
+            stripe.replace(head, bodies);
+        }
+    }
+
+    @Override
+    public Stream<Literal> getAllBodyAtoms() {
+        return Arrays.stream(stripes)
+                .flatMap(RuleMap::getAllBodyAtoms);
+    }
+
+    @Override
+    public Set<Map.Entry<Literal, Set<ImmutableSet<Literal>>>> entrySet() {
+        return new AbstractSet<Map.Entry<Literal, Set<ImmutableSet<Literal>>>>() {
+            @Override
+            public Iterator<Map.Entry<Literal, Set<ImmutableSet<Literal>>>> iterator() {
+                return Arrays.stream(stripes)
+                        .flatMap(s -> s.entrySet().stream())
+                        .iterator();
+            }
+
+            @Override
+            public int size() {
+                return Arrays.stream(stripes)
+                        .mapToInt(s -> s.entrySet().size())
+                        .sum();
+            }
+        };
+    }
+
+    @Override
+    public Set<Literal> keySet() {
+        return new AbstractSet<Literal>() {
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Literal &&
+                        getStripe(((Literal) o).getCode()).keySet().contains(o);
+            }
+
+            @Override
+            public Iterator<Literal> iterator() {
+                return Arrays.stream(stripes)
+                        .flatMap(s -> s.keySet().stream())
+                        .iterator();
+            }
+
+            @Override
+            public int size() {
+                return Arrays.stream(stripes)
+                        .mapToInt(s -> s.keySet().size())
+                        .sum();
+            }
+        };
+    }
+
+    @Override
+    public Collection<Set<ImmutableSet<Literal>>> values() {
+        return new AbstractCollection<Set<ImmutableSet<Literal>>>() {
+            @Override
+            public Iterator<Set<ImmutableSet<Literal>>> iterator() {
+                return Arrays.stream(stripes)
+                        .flatMap(s -> s.values().stream())
+                        .iterator();
+            }
+
+            @Override
+            public int size() {
+                return Arrays.stream(stripes)
+                        .mapToInt(s -> s.values().size())
+                        .sum();
+            }
+        };
+    }
+
+    @Override
+    public int getRuleNumber() {
+        return Arrays.stream(stripes)
+                .mapToInt(RuleMap::getRuleNumber)
+                .sum();
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return Arrays.stream(stripes)
+                .mapToLong(RuleMap::getEstimatedBytes)
+                .sum();
+    }
+}
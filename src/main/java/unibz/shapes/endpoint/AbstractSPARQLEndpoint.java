@@ -0,0 +1,256 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.TupleQuery;
+import org.eclipse.rdf4j.query.resultio.QueryResultParseException;
+import org.eclipse.rdf4j.query.resultio.UnsupportedQueryResultFormatException;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import unibz.shapes.core.Query;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates queries over an RDF4J repository, through a pool of connections and (optional) result caches.
+ * If pagination is enabled, results are retrieved from the repository page by page (see Paginator).
+ */
+abstract class AbstractSPARQLEndpoint implements SPARQLEndpoint {
+
+    private static Logger log = LoggerFactory.getLogger(SPARQLEndpoint.class);
+    // status 406 as reported by RDF4J ("Not Acceptable (406)") or by an HTTP status line ("HTTP/1.1 406")
+    private static final Pattern NOT_ACCEPTABLE = Pattern.compile("\\(406\\)|\\bHTTP(/\\d(\\.\\d)?)? 406\\b|\\bNot Acceptable\\b");
+    private final String endPointURL;
+    private final ConnectionPool pool;
+    private final Optional<QueryResultCache> cache;
+    private final Optional<PersistentQueryResultCache> persistentCache;
+    private final Optional<Paginator> paginator;
+    private final Optional<ExecutorService> prefetchExecutor;
+
+    /**
+     * The repository must be initialized
+     */
+    AbstractSPARQLEndpoint(String endPointURL, Repository repo, int poolSize, Optional<QueryResultCache> cache,
+                           Optional<PersistentQueryResultCache> persistentCache, Optional<Pagination> pagination) {
+        this.endPointURL = endPointURL;
+        this.pool = new ConnectionPool(repo, poolSize);
+        this.cache = cache;
+        this.persistentCache = persistentCache;
+        this.prefetchExecutor = pagination.map(p -> Executors.newCachedThreadPool(
+                new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("page-prefetch-%d")
+                        .build()
+        ));
+        this.paginator = pagination.map(p -> new Paginator(
+                p,
+                (id, q) -> evaluate(id, q, e -> {
+                    e.iterate();
+                    return e;
+                }),
+                prefetchExecutor.get()
+        ));
+    }
+
+    @Override
+    public ImmutableList<QueryEvaluation> runQueries(ImmutableSet<Query> queries) {
+        return queries.stream()
+                .map(q -> runQuery(q.getId(), q.getSparql()))
+                .collect(ImmutableCollectors.toList());
+    }
+
+    @Override
+    public QueryEvaluation runQuery(String queryId, String queryString) {
+        return runQuery(queryId, queryString, b -> {}, true);
+    }
+
+    @Override
+    public QueryEvaluation runQuery(String queryId, String queryString, Consumer<BindingSet> consumer) {
+        return runQuery(queryId, queryString, consumer, false);
+    }
+
+    private QueryEvaluation runQuery(String queryId, String queryString, Consumer<BindingSet> consumer, boolean materialize) {
+        // in-memory cache first, then on-disk cache, then the endpoint
+        Optional<QueryEvaluation> cached = cache.flatMap(c -> c.lookUpOrClaim(queryId, queryString));
+        if (cached.isPresent()) {
+            log.debug("Cached query:\n" + queryString);
+            cached.get().iterate(consumer, materialize);
+            return cached.get();
+        }
+        // concurrent look-ups of the same query wait until this evaluation is over (and replay it from the cache)
+        try {
+            return runUncachedQuery(queryId, queryString, consumer, materialize);
+        } finally {
+            cache.ifPresent(c -> c.release(queryString));
+        }
+    }
+
+    private QueryEvaluation runUncachedQuery(String queryId, String queryString, Consumer<BindingSet> consumer, boolean materialize) {
+        Optional<QueryEvaluation> persisted = persistentCache.flatMap(c -> c.lookUp(queryId, queryString));
+        if (persisted.isPresent()) {
+            log.debug("Persisted query:\n" + queryString);
+            return iterate(persisted.get(), consumer, materialize, Optional.empty());
+        }
+        if (paginator.isPresent()) {
+            QueryEvaluation eval = paginator.get().evaluate(queryId, queryString);
+            return iterate(
+                    eval,
+                    consumer,
+                    materialize,
+                    persistentCache.map(c -> c.recorder(queryString, eval.getBindingNames()))
+            );
+        }
+        return evaluate(
+                queryId,
+                queryString,
+                e -> iterate(
+                        e,
+                        consumer,
+                        materialize,
+                        persistentCache.map(c -> c.recorder(queryString, e.getBindingNames()))
+                ));
+    }
+
+    /**
+     * Evaluates the query over the repository (with a pooled connection), and applies the iteration to the result.
+     * The evaluation is repeated with another result format if it fails because of the result format
+     * (see isFormatFailure), before any solution mapping was received.
+     */
+    private QueryEvaluation evaluate(String queryId, String queryString, UnaryOperator<QueryEvaluation> iteration) {
+        ConnectionPool.PooledConnection conn = pool.borrow();
+        try {
+            while (true) {
+                Optional<String> format = getResultFormat();
+                QueryEvaluation eval = null;
+                try {
+                    eval = evaluate(conn.getConnection(), queryId, queryString, format);
+                    return iteration.apply(eval);
+                } catch (RuntimeException e) {
+                    // solution mappings already passed to the consumer cannot be retracted
+                    boolean started = eval != null && eval.getNumberOfSolutionMappings() > 0;
+                    if (started || !format.isPresent() || !isFormatFailure(e) || !fallBack(format.get())) {
+                        throw e;
+                    }
+                    log.warn("Query evaluation failed with result format " + format.get() +
+                            ", falling back to " + getResultFormat().orElse("default format"), e);
+                }
+            }
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * True if the exception (or one of its causes) indicates that the result format cannot be used:
+     * the result could not be parsed, no parser is available for it, or the endpoint rejected the requested format
+     * (HTTP 406, which RDF4J only reports in the message, so only the status formats in NOT_ACCEPTABLE are matched,
+     * and not any "406" in the message, e.g. in the query string or a line number).
+     * Other failures (e.g. timeouts or syntax errors) would fail with any format.
+     */
+    static boolean isFormatFailure(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof QueryResultParseException || t instanceof UnsupportedQueryResultFormatException) {
+                return true;
+            }
+            String message = t.getMessage();
+            if (message != null && (NOT_ACCEPTABLE.matcher(message).find() ||
+                    message.contains("unsupported file format"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Result format currently requested from the endpoint (empty if the default negotiation is used)
+     */
+    Optional<String> getResultFormat() {
+        return Optional.empty();
+    }
+
+    /**
+     * Called if a query evaluation with the given result format failed before any solution mapping was received.
+     * Returns true if the query should be evaluated again, with another format.
+     */
+    boolean fallBack(String failedFormat) {
+        return false;
+    }
+
+    private QueryEvaluation iterate(QueryEvaluation eval, Consumer<BindingSet> consumer, boolean materialize,
+                                    Optional<PersistentQueryResultCache.Recorder> persistentRecorder) {
+        Optional<QueryResultCache.Recorder> recorder = cache.map(c -> c.recorder(eval.getQueryString(), eval.getBindingNames()));
+        Consumer<BindingSet> observer = consumer;
+        if (recorder.isPresent()) {
+            observer = recorder.get().andThen(observer);
+        }
+        if (persistentRecorder.isPresent()) {
+            observer = persistentRecorder.get().andThen(observer);
+        }
+        try {
+            eval.iterate(observer, materialize);
+        } catch (RuntimeException e) {
+            persistentRecorder.ifPresent(PersistentQueryResultCache.Recorder::discard);
+            throw e;
+        }
+        recorder.ifPresent(QueryResultCache.Recorder::store);
+        persistentRecorder.ifPresent(PersistentQueryResultCache.Recorder::store);
+        return eval;
+    }
+
+    private QueryEvaluation evaluate(RepositoryConnection conn, String queryId, String queryString, Optional<String> format) {
+        log.debug("Evaluating query:\n" + queryString);
+
+        TupleQuery tupleQuery = conn.prepareTupleQuery(QueryLanguage.SPARQL, queryString);
+        Instant start = Instant.now();
+        return new QueryEvaluation(queryId, queryString, tupleQuery.evaluate(), start, false, format);
+    }
+
+    @Override
+    public String getURL() {
+        return endPointURL;
+    }
+
+    @Override
+    public Optional<QueryResultCache> getCache() {
+        return cache;
+    }
+
+    @Override
+    public Optional<PersistentQueryResultCache> getPersistentCache() {
+        return persistentCache;
+    }
+
+    @Override
+    public boolean isPaginated() {
+        return paginator.isPresent();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return pool.getSize();
+    }
+
+    @Override
+    public ImmutableList<Integer> getConnectionReuseCounts() {
+        return pool.getReuseCounts();
+    }
+
+    @Override
+    public void close() throws IOException {
+        prefetchExecutor.ifPresent(ExecutorService::shutdownNow);
+        pool.close();
+    }
+}
@@ -0,0 +1,128 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-size pool of connections to a single repository.
+ * The repository is initialized once, and shared by all connections,
+ * so that consecutive queries do not pay the setup costs (e.g. HTTP client setup and TCP/TLS handshakes).
+ */
+class ConnectionPool implements Closeable {
+
+    // interval (ms) at which a thread waiting for a connection checks whether the pool has been closed
+    private static final long CLOSED_CHECK_INTERVAL = 100;
+
+    private final Repository repo;
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all;
+    private final int size;
+    // read without the lock by threads waiting for a connection
+    private volatile boolean closed;
+
+    /**
+     * The repository must be initialized, and is shut down when the pool is closed
+     */
+    ConnectionPool(Repository repo, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("The connection pool size must be positive");
+        }
+        this.size = size;
+        this.repo = repo;
+        this.idle = new ArrayBlockingQueue<>(size);
+        this.all = new ArrayList<>(size);
+        this.closed = false;
+    }
+
+    /**
+     * Blocks until a connection is available (or the pool is closed).
+     * Connections are opened lazily, up to the size of the pool.
+     */
+    PooledConnection borrow() {
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The connection pool is closed");
+            }
+            PooledConnection conn = idle.poll();
+            if (conn != null) {
+                return conn.reuse();
+            }
+            if (all.size() < size) {
+                conn = new PooledConnection(repo.getConnection());
+                all.add(conn);
+                return conn;
+            }
+        }
+        try {
+            while (true) {
+                PooledConnection conn = idle.poll(CLOSED_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                if (conn != null) {
+                    return conn.reuse();
+                }
+                if (closed) {
+                    throw new IllegalStateException("The connection pool is closed");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    void release(PooledConnection conn) {
+        idle.offer(conn);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Number of times each opened connection has been reused (i.e. borrowed after its first use)
+     */
+    synchronized ImmutableList<Integer> getReuseCounts() {
+        return all.stream()
+                .map(c -> c.reuseCount)
+                .collect(ImmutableCollectors.toList());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        all.forEach(c -> c.conn.close());
+        repo.shutDown();
+    }
+
+    static class PooledConnection {
+
+        private final RepositoryConnection conn;
+        private volatile int reuseCount;
+
+        private PooledConnection(RepositoryConnection conn) {
+            this.conn = conn;
+            this.reuseCount = 0;
+        }
+
+        private PooledConnection reuse() {
+            reuseCount++;
+            return this;
+        }
+
+        RepositoryConnection getConnection() {
+            return conn;
+        }
+    }
+}
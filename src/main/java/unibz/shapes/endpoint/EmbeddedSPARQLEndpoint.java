@@ -0,0 +1,112 @@
+package unibz.shapes.endpoint;
+
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sail.SailRepository;
+import org.eclipse.rdf4j.rio.RDFFormat;
+import org.eclipse.rdf4j.rio.Rio;
+import org.eclipse.rdf4j.sail.memory.MemoryStore;
+import org.eclipse.rdf4j.sail.nativerdf.NativeStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * In-process RDF store (no HTTP, no result serialization).
+ * <p>
+ * The data is loaded from RDF files (Turtle, N-Triples, or any other format supported by RDF4J),
+ * into an RDF4J MemoryStore, or into a NativeStore if a store directory is provided.
+ * If the native store directory already contains data, data files are optional.
+ */
+public class EmbeddedSPARQLEndpoint extends AbstractSPARQLEndpoint {
+
+    private static Logger log = LoggerFactory.getLogger(EmbeddedSPARQLEndpoint.class);
+
+    public EmbeddedSPARQLEndpoint(Optional<Path> data, Optional<Path> nativeStoreDir, int poolSize,
+                                  Optional<QueryResultCache> cache, Optional<PersistentQueryResultCache> persistentCache) {
+        this(data, nativeStoreDir, poolSize, cache, persistentCache, Optional.empty());
+    }
+
+    public EmbeddedSPARQLEndpoint(Optional<Path> data, Optional<Path> nativeStoreDir, int poolSize,
+                                  Optional<QueryResultCache> cache, Optional<PersistentQueryResultCache> persistentCache,
+                                  Optional<Pagination> pagination) {
+        super(
+                getURL(data, nativeStoreDir),
+                createRepository(data, nativeStoreDir),
+                poolSize,
+                cache,
+                persistentCache,
+                pagination
+        );
+    }
+
+    public EmbeddedSPARQLEndpoint(Path data) {
+        this(Optional.of(data), Optional.empty(), DEFAULT_POOL_SIZE, Optional.empty(), Optional.empty());
+    }
+
+    /**
+     * Identifier of the store (used instead of an endpoint URL)
+     */
+    public static String getURL(Optional<Path> data, Optional<Path> nativeStoreDir) {
+        return nativeStoreDir
+                .map(d -> d.toAbsolutePath().toUri().toString())
+                .orElseGet(() -> data
+                        .map(d -> d.toAbsolutePath().toUri().toString())
+                        .orElseThrow(() -> new IllegalArgumentException("Either a data file or a store directory must be provided")));
+    }
+
+    private static Repository createRepository(Optional<Path> data, Optional<Path> nativeStoreDir) {
+        Repository repo = new SailRepository(
+                nativeStoreDir.isPresent() ?
+                        new NativeStore(nativeStoreDir.get().toFile()) :
+                        new MemoryStore()
+        );
+        // e.g. a parse error, or a locked store directory: the store must not remain open (or locked)
+        try {
+            repo.initialize();
+            data.ifPresent(d -> load(repo, d));
+        } catch (RuntimeException e) {
+            try {
+                repo.shutDown();
+            } catch (RuntimeException shutDown) {
+                e.addSuppressed(shutDown);
+            }
+            throw e;
+        }
+        return repo;
+    }
+
+    private static void load(Repository repo, Path data) {
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(data)) {
+            files = s.filter(Files::isRegularFile)
+                    .sorted()
+                    .collect(ImmutableCollectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try (RepositoryConnection conn = repo.getConnection()) {
+            conn.begin();
+            for (Path f : files) {
+                Optional<RDFFormat> format = Rio.getParserFormatForFileName(f.toString());
+                if (!format.isPresent()) {
+                    log.info("Skipping file with unknown RDF format: " + f);
+                    continue;
+                }
+                log.info("Loading " + f);
+                conn.add(f.toFile(), f.toUri().toString(), format.get());
+            }
+            conn.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
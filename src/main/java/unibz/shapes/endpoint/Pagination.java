@@ -0,0 +1,65 @@
+package unibz.shapes.endpoint;
+
+/**
+ * Parameters for the evaluation of a query page by page (see Paginator, used by AbstractSPARQLEndpoint.runQuery).
+ * <p>
+ * The page size is adapted to the observed latency: it is doubled if a page is retrieved in less than half
+ * the target latency, and halved if it takes longer than the target latency.
+ */
+public class Pagination {
+
+    public static final long DEFAULT_TARGET_PAGE_LATENCY = 2000;
+
+    private final int initialPageSize;
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final long targetPageLatency;
+
+    public Pagination(int initialPageSize) {
+        this(
+                initialPageSize,
+                Math.max(1, initialPageSize / 16),
+                (int) Math.min(Integer.MAX_VALUE, 16L * initialPageSize),
+                DEFAULT_TARGET_PAGE_LATENCY
+        );
+    }
+
+    /**
+     * @param targetPageLatency in ms
+     */
+    public Pagination(int initialPageSize, int minPageSize, int maxPageSize, long targetPageLatency) {
+        if (minPageSize < 1 || initialPageSize < minPageSize || maxPageSize < initialPageSize) {
+            throw new IllegalArgumentException("Expected 1 <= minPageSize <= initialPageSize <= maxPageSize");
+        }
+        this.initialPageSize = initialPageSize;
+        this.minPageSize = minPageSize;
+        this.maxPageSize = maxPageSize;
+        this.targetPageLatency = targetPageLatency;
+    }
+
+    public int getInitialPageSize() {
+        return initialPageSize;
+    }
+
+    public int getMinPageSize() {
+        return minPageSize;
+    }
+
+    public int getMaxPageSize() {
+        return maxPageSize;
+    }
+
+    public long getTargetPageLatency() {
+        return targetPageLatency;
+    }
+
+    int getNextPageSize(int pageSize, long latency) {
+        if (latency < targetPageLatency / 2) {
+            return (int) Math.min(maxPageSize, 2L * pageSize);
+        }
+        if (latency > targetPageLatency) {
+            return Math.max(minPageSize, pageSize / 2);
+        }
+        return pageSize;
+    }
+}
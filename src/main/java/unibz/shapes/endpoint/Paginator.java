@@ -0,0 +1,228 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryInterruptedException;
+import org.eclipse.rdf4j.query.impl.IteratingTupleQueryResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.SocketTimeoutException;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Evaluates a query page by page, using LIMIT/OFFSET over a total order of the solution mappings
+ * (ORDER BY over all projected variables).
+ * <p>
+ * The next page is retrieved in the background while the solution mappings of the current page are consumed.
+ * <p>
+ * A result is considered complete only once an empty page has been received.
+ * In particular, if a page has fewer solution mappings than requested but the next one is not empty,
+ * the endpoint truncates results: the page size is then bounded by this limit for all subsequent pages.
+ */
+class Paginator {
+
+    private static Logger log = LoggerFactory.getLogger(Paginator.class);
+
+    private static final Pattern PROJECTION = Pattern.compile("(?is)SELECT\\s+(?:DISTINCT\\s+|REDUCED\\s+)?(.*?)\\s*(?:WHERE\\b|\\{)");
+    private static final Pattern VARIABLE = Pattern.compile("[?$]([\\p{L}\\p{N}_]+)");
+    private static final Pattern PROLOGUE_LINE = Pattern.compile("(?i)\\s*((PREFIX|BASE)\\b.*)?");
+    // timeouts and result size limits, as reported by endpoints (e.g. Virtuoso) or HTTP status codes (RDF4J: "... (504)")
+    private static final Pattern TIMEOUT_OR_SIZE_LIMIT = Pattern.compile(
+            "(?i)time-?out|timed out|execution time|too large|too many|result size|exceeds the limit|\\((413|503|504)\\)");
+
+    private final Pagination pagination;
+    // materialized evaluation of a single page: (page id, page query) -> evaluation
+    private final BiFunction<String, String, QueryEvaluation> pageEvaluator;
+    private final ExecutorService prefetchExecutor;
+    // maximal number of solution mappings per query observed for this endpoint
+    private volatile int rowLimit;
+
+    Paginator(Pagination pagination, BiFunction<String, String, QueryEvaluation> pageEvaluator, ExecutorService prefetchExecutor) {
+        this.pagination = pagination;
+        this.pageEvaluator = pageEvaluator;
+        this.prefetchExecutor = prefetchExecutor;
+        this.rowLimit = Integer.MAX_VALUE;
+    }
+
+    /**
+     * The first page is retrieved before returning, the following ones while the result is iterated over.
+     */
+    QueryEvaluation evaluate(String queryId, String queryString) {
+        Instant start = Instant.now();
+        PageIterator pages = new PageIterator(queryId, queryString);
+        return new QueryEvaluation(
+                queryId,
+                queryString,
+                new IteratingTupleQueryResult(pages.page.eval.getBindingNames(), () -> pages),
+                start,
+                false,
+                pages.page.eval.getResultFormat()
+        );
+    }
+
+    static String getPageQuery(String query, ImmutableList<String> orderVariables, int limit, long offset) {
+        String[] lines = query.split("\n", -1);
+        int i = 0;
+        while (i < lines.length && PROLOGUE_LINE.matcher(lines[i]).matches()) {
+            i++;
+        }
+        String prologue = String.join("\n", ImmutableList.copyOf(lines).subList(0, i));
+        String body = String.join("\n", ImmutableList.copyOf(lines).subList(i, lines.length));
+        return (prologue.isEmpty() ? "" : prologue + "\n") +
+                "SELECT * WHERE {\n" +
+                body +
+                "\n}" +
+                (orderVariables.isEmpty() ?
+                        "" :
+                        "\nORDER BY " + orderVariables.stream()
+                                .map(v -> "?" + v)
+                                .collect(Collectors.joining(" "))) +
+                "\nLIMIT " + limit +
+                "\nOFFSET " + offset;
+    }
+
+    /**
+     * Projected variables, or all variables of the query if it projects all of them ("SELECT *")
+     */
+    static ImmutableList<String> getOrderVariables(String query) {
+        Matcher m = PROJECTION.matcher(query);
+        String projection = m.find() ?
+                m.group(1) :
+                "*";
+        Set<String> variables = new LinkedHashSet<>();
+        Matcher v = VARIABLE.matcher(projection.trim().equals("*") ? query : projection);
+        while (v.find()) {
+            variables.add(v.group(1));
+        }
+        return ImmutableList.copyOf(variables);
+    }
+
+    /**
+     * True if the exception (or one of its causes) indicates that the evaluation timed out or that the result was too large.
+     * Other failures (e.g. syntax errors, or an unreachable endpoint) are not retried.
+     */
+    static boolean isTimeoutOrSizeLimit(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof QueryInterruptedException || t instanceof SocketTimeoutException) {
+                return true;
+            }
+            String message = t.getMessage();
+            if (message != null && TIMEOUT_OR_SIZE_LIMIT.matcher(message).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Page {
+
+        private final long offset;
+        private final int limit;
+        private final QueryEvaluation eval;
+
+        private Page(long offset, int limit, QueryEvaluation eval) {
+            this.offset = offset;
+            this.limit = limit;
+            this.eval = eval;
+        }
+
+        private int size() {
+            return eval.getNumberOfSolutionMappings();
+        }
+    }
+
+    private class PageIterator extends AbstractIterator<BindingSet> {
+
+        private final String queryId;
+        private final String queryString;
+        private final ImmutableList<String> orderVariables;
+        private int pageNumber;
+        private Page page;
+        private Iterator<BindingSet> rows;
+        private Future<Page> next;
+
+        private PageIterator(String queryId, String queryString) {
+            this.queryId = queryId;
+            this.queryString = queryString;
+            this.orderVariables = getOrderVariables(queryString);
+            this.pageNumber = 0;
+            setPage(fetch(0, Math.min(pagination.getInitialPageSize(), rowLimit)));
+        }
+
+        @Override
+        protected BindingSet computeNext() {
+            while (!rows.hasNext()) {
+                if (page.size() == 0) {
+                    log.debug("Query " + queryId + ": complete result retrieved in " + pageNumber + " pages");
+                    return endOfData();
+                }
+                Page previous = page;
+                setPage(get(next));
+                if (page.size() > 0 && previous.size() < previous.limit) {
+                    rowLimit = Math.min(rowLimit, previous.size());
+                    log.warn("Query " + queryId + ": the endpoint truncated a page to " + previous.size() +
+                            " solution mappings, the page size is now bounded by this limit");
+                }
+            }
+            return rows.next();
+        }
+
+        private void setPage(Page page) {
+            this.page = page;
+            this.rows = page.eval.getBindingSets().iterator();
+            // the next page is retrieved while the solution mappings of this one are consumed
+            next = page.size() == 0 ?
+                    null :
+                    prefetchExecutor.submit(() -> fetch(
+                            page.offset + page.size(),
+                            Math.min(
+                                    pagination.getNextPageSize(page.limit, page.eval.getExecTime().toMillis()),
+                                    rowLimit
+                            )));
+        }
+
+        private Page fetch(long offset, int limit) {
+            String pageId = queryId + "_page" + pageNumber++;
+            try {
+                return new Page(
+                        offset,
+                        limit,
+                        pageEvaluator.apply(pageId, getPageQuery(queryString, orderVariables, limit, offset))
+                );
+            } catch (RuntimeException e) {
+                // a smaller page can only help if the page was too large (any other failure would fail again)
+                if (limit <= pagination.getMinPageSize() || !isTimeoutOrSizeLimit(e)) {
+                    throw e;
+                }
+                int smallerLimit = Math.max(pagination.getMinPageSize(), limit / 2);
+                log.warn("Query " + queryId + ": evaluation of a page of size " + limit + " failed, retrying with size " + smallerLimit, e);
+                return fetch(offset, smallerLimit);
+            }
+        }
+
+        private Page get(Future<Page> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException ?
+                        (RuntimeException) e.getCause() :
+                        new RuntimeException(e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XMLSchema;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.impl.IteratingTupleQueryResult;
+import org.eclipse.rdf4j.query.impl.ListBindingSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * On-disk cache of query results, shared across validation runs.
+ * <p>
+ * There is one file per query, named after a hash of the canonical query (see QueryResultCache.CanonicalQuery),
+ * the endpoint URL, the graph name, and a user-supplied version tag for the graph
+ * (which must be changed whenever the data is modified).
+ * <p>
+ * When the total size of the cache directory exceeds the maximal size, least recently used files are deleted.
+ * <p>
+ * File format (gzip compressed): a header with the (canonical) variable names, followed by the rows.
+ * A value that has already been written is replaced by a reference to its first occurrence.
+ */
+public class PersistentQueryResultCache {
+
+    private static Logger log = LoggerFactory.getLogger(PersistentQueryResultCache.class);
+
+    private static final int MAGIC = 0x53485243;
+    private static final byte FORMAT_VERSION = 1;
+    private static final String EXTENSION = ".rows";
+
+    private static final byte END = 0;
+    private static final byte ROW = 1;
+
+    private static final byte UNBOUND = 0;
+    private static final byte IRI_VALUE = 1;
+    private static final byte BNODE_VALUE = 2;
+    private static final byte STRING_LITERAL = 3;
+    private static final byte LANG_LITERAL = 4;
+    private static final byte TYPED_LITERAL = 5;
+    private static final byte REFERENCE = 6;
+
+    // maximal number of distinct values that can be referenced within a file
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+    // bounds checked when reading a file, so that a corrupted length fails instead of allocating a huge array
+    private static final int MAX_STRING_BYTES = 1 << 24;
+    private static final int MAX_VARIABLES = 1 << 16;
+
+    private static final ValueFactory valueFactory = SimpleValueFactory.getInstance();
+
+    private final Path dir;
+    private final long maxBytes;
+    private final String endpointURL;
+    private final Optional<String> graphName;
+    private final String graphVersion;
+
+    private int hits;
+    private int misses;
+
+    public PersistentQueryResultCache(Path dir, long maxBytes, String endpointURL, Optional<String> graphName, String graphVersion) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.endpointURL = endpointURL;
+        this.graphName = graphName;
+        this.graphVersion = graphVersion;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * If the result is cached, returns an (unevaluated) query evaluation which replays it
+     */
+    Optional<QueryEvaluation> lookUp(String queryId, String queryString) {
+        QueryResultCache.CanonicalQuery query = QueryResultCache.CanonicalQuery.of(queryString);
+        Path file = getFile(query);
+        byte[] content;
+        try {
+            content = Files.readAllBytes(file);
+            Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+        } catch (NoSuchFileException e) {
+            recordLookUp(false);
+            return Optional.empty();
+        } catch (IOException e) {
+            log.warn("Could not read cached result " + file, e);
+            recordLookUp(false);
+            return Optional.empty();
+        }
+        // decoded entirely before any row is replayed, so that an invalid file is a miss (and is deleted)
+        IteratingTupleQueryResult result;
+        try {
+            result = new RowReader(content, query).read();
+        } catch (IOException | RuntimeException e) {
+            log.warn("Invalid cached result " + file + ", deleted", e);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException deletion) {
+                log.warn("Could not delete cached result " + file, deletion);
+            }
+            recordLookUp(false);
+            return Optional.empty();
+        }
+        recordLookUp(true);
+        return Optional.of(new QueryEvaluation(
+                queryId,
+                queryString,
+                result,
+                Instant.now(),
+                true
+        ));
+    }
+
+    /**
+     * Returns a consumer which writes the solution mappings of the query to a temporary file.
+     * The file is added to the cache when the returned recorder is stored.
+     */
+    Recorder recorder(String queryString, List<String> bindingNames) {
+        return new Recorder(QueryResultCache.CanonicalQuery.of(queryString), bindingNames);
+    }
+
+    private synchronized void recordLookUp(boolean hit) {
+        if (hit) {
+            hits++;
+        } else {
+            misses++;
+        }
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private Path getFile(QueryResultCache.CanonicalQuery query) {
+        String key = String.join("\n",
+                query.getText(),
+                endpointURL,
+                graphName.orElse(""),
+                graphVersion
+        );
+        return dir.resolve(Hashing.sha256().hashString(key, StandardCharsets.UTF_8) + EXTENSION);
+    }
+
+    /**
+     * Deletes least recently used files, until the cache fits into the maximal size
+     */
+    private synchronized void evict() throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.list(dir)) {
+            files = s.filter(p -> p.toString().endsWith(EXTENSION))
+                    .collect(ImmutableCollectors.toList());
+        }
+        Map<Path, FileTime> lastAccess = new HashMap<>();
+        long size = 0;
+        for (Path f : files) {
+            size += Files.size(f);
+            lastAccess.put(f, Files.getLastModifiedTime(f));
+        }
+        if (size <= maxBytes) {
+            return;
+        }
+        List<Path> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparing(lastAccess::get));
+        for (Path f : sorted) {
+            if (size <= maxBytes) {
+                return;
+            }
+            size -= Files.size(f);
+            Files.deleteIfExists(f);
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int i) throws IOException {
+        while ((i & ~0x7F) != 0) {
+            out.writeByte((i & 0x7F) | 0x80);
+            i >>>= 7;
+        }
+        out.writeByte(i);
+    }
+
+    /**
+     * Throws an IOException if the value is negative or greater than max
+     */
+    private static int readVarInt(DataInputStream in, int max) throws IOException {
+        long i = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 28) {
+                throw new IOException("Invalid variable-length integer in a cached result");
+            }
+            b = in.readByte();
+            i |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        if (i > max) {
+            throw new IOException("Unexpected value in a cached result: " + i + " (at most " + max + ")");
+        }
+        return (int) i;
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in, MAX_STRING_BYTES)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    class Recorder implements Consumer<BindingSet> {
+
+        private final QueryResultCache.CanonicalQuery query;
+        private final ImmutableList<String> bindingNames;
+        private final Map<Value, Integer> dictionary;
+        private Path tmpFile;
+        private DataOutputStream out;
+
+        private Recorder(QueryResultCache.CanonicalQuery query, List<String> bindingNames) {
+            this.query = query;
+            this.bindingNames = ImmutableList.copyOf(bindingNames);
+            this.dictionary = new HashMap<>();
+            try {
+                tmpFile = Files.createTempFile(dir, "tmp", EXTENSION + ".part");
+                out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(tmpFile))));
+                out.writeInt(MAGIC);
+                out.writeByte(FORMAT_VERSION);
+                writeVarInt(out, bindingNames.size());
+                for (String name : bindingNames) {
+                    writeString(out, query.getCanonicalName(name));
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        @Override
+        public void accept(BindingSet bs) {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.writeByte(ROW);
+                for (String name : bindingNames) {
+                    writeValue(bs.getValue(name));
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void writeValue(Value v) throws IOException {
+            if (v == null) {
+                out.writeByte(UNBOUND);
+                return;
+            }
+            Integer ref = dictionary.get(v);
+            if (ref != null) {
+                out.writeByte(REFERENCE);
+                writeVarInt(out, ref);
+                return;
+            }
+            if (v instanceof IRI) {
+                out.writeByte(IRI_VALUE);
+                writeString(out, v.stringValue());
+            } else if (v instanceof BNode) {
+                out.writeByte(BNODE_VALUE);
+                writeString(out, ((BNode) v).getID());
+            } else {
+                Literal l = (Literal) v;
+                if (l.getLanguage().isPresent()) {
+                    out.writeByte(LANG_LITERAL);
+                    writeString(out, l.getLabel());
+                    writeString(out, l.getLanguage().get());
+                } else if (l.getDatatype().equals(XMLSchema.STRING)) {
+                    out.writeByte(STRING_LITERAL);
+                    writeString(out, l.getLabel());
+                } else {
+                    out.writeByte(TYPED_LITERAL);
+                    writeString(out, l.getLabel());
+                    writeValue(l.getDatatype());
+                }
+            }
+            if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+                dictionary.put(v, dictionary.size());
+            }
+        }
+
+        void store() {
+            if (out == null) {
+                return;
+            }
+            try {
+                out.writeByte(END);
+                out.close();
+                out = null;
+                Files.move(tmpFile, getFile(query), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                evict();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * To be called if the evaluation of the query failed
+         */
+        void discard() {
+            fail(null);
+        }
+
+        private void fail(IOException e) {
+            if (e != null) {
+                log.warn("Could not write cached result for query:\n" + query.getText(), e);
+            }
+            try {
+                if (out != null) {
+                    out.close();
+                }
+                if (tmpFile != null) {
+                    Files.deleteIfExists(tmpFile);
+                }
+            } catch (IOException e1) {
+                log.warn("Could not delete temporary file " + tmpFile, e1);
+            }
+            out = null;
+        }
+    }
+
+    private static class RowReader {
+
+        private final byte[] content;
+        private final QueryResultCache.CanonicalQuery query;
+        private final List<Value> dictionary;
+
+        private RowReader(byte[] content, QueryResultCache.CanonicalQuery query) {
+            this.content = content;
+            this.query = query;
+            this.dictionary = new ArrayList<>();
+        }
+
+        /**
+         * Rows are decoded with the variable names of the (possibly different) query being evaluated.
+         * All rows are decoded (the file is already in memory), so that a truncated or corrupted file fails here.
+         * The stream is read to its end, so that the gzip trailer (CRC and size) is checked as well.
+         */
+        IteratingTupleQueryResult read() throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(content))));
+            if (in.readInt() != MAGIC || in.readByte() != FORMAT_VERSION) {
+                throw new IOException("Unexpected format for a cached result");
+            }
+            int n = readVarInt(in, MAX_VARIABLES);
+            List<String> names = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                names.add(query.getOriginalName(readString(in)));
+            }
+            List<BindingSet> rows = new ArrayList<>();
+            byte tag;
+            while ((tag = in.readByte()) == ROW) {
+                rows.add(readRow(in, names));
+            }
+            if (tag != END) {
+                throw new IOException("Unexpected row tag in a cached result: " + tag);
+            }
+            if (in.read() != -1) {
+                throw new IOException("Unexpected data after the last row of a cached result");
+            }
+            return new IteratingTupleQueryResult(names, rows);
+        }
+
+        private BindingSet readRow(DataInputStream in, List<String> names) throws IOException {
+            List<String> boundNames = new ArrayList<>(names.size());
+            List<Value> values = new ArrayList<>(names.size());
+            for (String name : names) {
+                Value v = readValue(in);
+                if (v != null) {
+                    boundNames.add(name);
+                    values.add(v);
+                }
+            }
+            return new ListBindingSet(boundNames, values);
+        }
+
+        private Value readValue(DataInputStream in) throws IOException {
+            byte tag = in.readByte();
+            Value v;
+            switch (tag) {
+                case UNBOUND:
+                    return null;
+                case REFERENCE:
+                    return dictionary.get(readVarInt(in, dictionary.size() - 1));
+                case IRI_VALUE:
+                    v = valueFactory.createIRI(readString(in));
+                    break;
+                case BNODE_VALUE:
+                    v = valueFactory.createBNode(readString(in));
+                    break;
+                case STRING_LITERAL:
+                    v = valueFactory.createLiteral(readString(in));
+                    break;
+                case LANG_LITERAL:
+                    v = valueFactory.createLiteral(readString(in), readString(in));
+                    break;
+                case TYPED_LITERAL:
+                    String label = readString(in);
+                    v = valueFactory.createLiteral(label, (IRI) readValue(in));
+                    break;
+                default:
+                    throw new IOException("Unexpected value tag in a cached result: " + tag);
+            }
+            if (dictionary.size() < MAX_DICTIONARY_SIZE) {
+                dictionary.add(v);
+            }
+            return v;
+        }
+    }
+}
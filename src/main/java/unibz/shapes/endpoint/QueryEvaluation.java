@@ -7,6 +7,9 @@ import org.eclipse.rdf4j.query.TupleQueryResult;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
 
 public class QueryEvaluation {
 
@@ -16,14 +19,30 @@ public class QueryEvaluation {
     private ImmutableList<BindingSet> bindings;
     private final Instant start;
     private Duration execTime;
+    private Duration timeToFirstRow;
+    private int numberOfSolutionMappings;
+    private final boolean fromCache;
+    private final Optional<String> resultFormat;
+    private Duration nonConsumerTime;
 
     private Integer distinctCardinality;
 
     QueryEvaluation(String queryId, String queryString, TupleQueryResult tqr, Instant start) {
+        this(queryId, queryString, tqr, start, false);
+    }
+
+    QueryEvaluation(String queryId, String queryString, TupleQueryResult tqr, Instant start, boolean fromCache) {
+        this(queryId, queryString, tqr, start, fromCache, Optional.empty());
+    }
+
+    QueryEvaluation(String queryId, String queryString, TupleQueryResult tqr, Instant start, boolean fromCache,
+                    Optional<String> resultFormat) {
         this.queryName = queryId;
         this.queryString = queryString;
         this.start = start;
         this.tqr = tqr;
+        this.fromCache = fromCache;
+        this.resultFormat = resultFormat;
     }
 
     public int getDistinctCardinality() {
@@ -33,7 +52,7 @@ public class QueryEvaluation {
     }
 
     private int computeDistinctCardinality() {
-        distinctCardinality = ImmutableSet.copyOf(bindings).size();
+        distinctCardinality = ImmutableSet.copyOf(getBindingSets()).size();
         return distinctCardinality;
     }
 
@@ -41,7 +60,43 @@ public class QueryEvaluation {
         return execTime;
     }
 
+    /**
+     * Execution time minus the time spent by the consumer of the solution mappings.
+     * This is not only parsing: it includes the evaluation by the endpoint and the transfer of the result.
+     */
+    public Duration getNonConsumerTime() {
+        return nonConsumerTime;
+    }
+
+    /**
+     * Result format requested from the endpoint (empty if none was requested)
+     */
+    public Optional<String> getResultFormat() {
+        return resultFormat;
+    }
+
+    /**
+     * Empty if the query has no solution mapping
+     */
+    public Optional<Duration> getTimeToFirstRow() {
+        return Optional.ofNullable(timeToFirstRow);
+    }
+
+    public int getNumberOfSolutionMappings() {
+        return numberOfSolutionMappings;
+    }
+
+    public double getRowsPerSecond() {
+        long ms = execTime.toMillis();
+        return ms == 0 ?
+                numberOfSolutionMappings * 1000.0 :
+                numberOfSolutionMappings * 1000.0 / ms;
+    }
+
     public ImmutableList<BindingSet> getBindingSets() {
+        if (bindings == null) {
+            throw new IllegalStateException("The solution mappings of query " + queryName + " have not been materialized");
+        }
         return bindings;
     }
 
@@ -53,12 +108,60 @@ public class QueryEvaluation {
         return queryString;
     }
 
+    /**
+     * True if the solution mappings were not retrieved from the endpoint, but from a cache
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    List<String> getBindingNames() {
+        return tqr.getBindingNames();
+    }
+
+    /**
+     * Materialized mode: all solution mappings are retained (see getBindingSets())
+     */
     public void iterate() {
-        ImmutableList.Builder<BindingSet> builder = ImmutableList.builder();
-        while (tqr.hasNext()) {
-            builder.add(tqr.next());
+        iterate(b -> {}, true);
+    }
+
+    /**
+     * The observer is notified of each solution mapping.
+     * If materialize is false, solution mappings are not retained.
+     */
+    void iterate(Consumer<BindingSet> observer, boolean materialize) {
+        if (!materialize) {
+            iterate(observer);
+            return;
         }
-        execTime = Duration.between(start,Instant.now());
+        ImmutableList.Builder<BindingSet> builder = ImmutableList.builder();
+        iterate(observer.andThen(builder::add));
         this.bindings = builder.build();
     }
+
+    /**
+     * Streaming mode: each solution mapping is passed to the consumer as soon as it is received,
+     * and is not retained.
+     */
+    public void iterate(Consumer<BindingSet> consumer) {
+        long consumerTime = 0;
+        // the result must be closed, so that the underlying (pooled) HTTP connection can be reused
+        try {
+            while (tqr.hasNext()) {
+                BindingSet bs = tqr.next();
+                if (numberOfSolutionMappings == 0) {
+                    timeToFirstRow = Duration.between(start, Instant.now());
+                }
+                numberOfSolutionMappings++;
+                long consumerStart = System.nanoTime();
+                consumer.accept(bs);
+                consumerTime += System.nanoTime() - consumerStart;
+            }
+        } finally {
+            tqr.close();
+        }
+        execTime = Duration.between(start, Instant.now());
+        nonConsumerTime = execTime.minusNanos(consumerTime);
+    }
 }
@@ -0,0 +1,407 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.impl.IteratingTupleQueryResult;
+import org.eclipse.rdf4j.query.impl.ListBindingSet;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * In-memory LRU cache of query results, bounded by the (estimated) size of the cached solution mappings.
+ * <p>
+ * Queries are identified by their canonical form (see CanonicalQuery) and the name of the queried graph,
+ * so that two queries that only differ by whitespace or variable names share the same cache entry.
+ * <p>
+ * Look-ups are single-flight (see lookUpOrClaim): if a query is being evaluated when it is looked up,
+ * the look-up waits for this evaluation, instead of evaluating the same query concurrently.
+ * <p>
+ * Thread-safe.
+ */
+public class QueryResultCache {
+
+    private static final long BYTES_PER_ROW = 16;
+    private static final long BYTES_PER_VALUE = 48;
+
+    private final long maxBytes;
+    private final Optional<String> graphName;
+    // in access order (least recently used first)
+    private final LinkedHashMap<String, CachedResult> entries;
+    // same keys, for look-ups which should not change the access order
+    private final Map<String, Integer> rowNumbers;
+    // queries being evaluated after a miss, completed when the evaluation is over (see release)
+    private final Map<String, CompletableFuture<Void>> evaluations;
+    private long bytes;
+
+    private int hits;
+    private int misses;
+    private long bytesSaved;
+    private int waits;
+
+    public QueryResultCache(long maxBytes, Optional<String> graphName) {
+        this.maxBytes = maxBytes;
+        this.graphName = graphName;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.rowNumbers = new HashMap<>();
+        this.evaluations = new HashMap<>();
+        this.bytes = 0;
+    }
+
+    /**
+     * If the result is cached, returns an (unevaluated) query evaluation which replays it.
+     * <p>
+     * Otherwise, if the same query is being evaluated by another thread, waits until this evaluation is over, and looks it up again.
+     * If the result is still not cached (e.g. it was too large, or the evaluation failed), returns empty:
+     * the caller then evaluates the query, and must call release once the evaluation is over (successful or not).
+     */
+    Optional<QueryEvaluation> lookUpOrClaim(String queryId, String queryString) {
+        CanonicalQuery query = CanonicalQuery.of(queryString);
+        String key = getKey(query);
+        while (true) {
+            CompletableFuture<Void> evaluation;
+            synchronized (this) {
+                CachedResult result = entries.get(key);
+                if (result != null) {
+                    hits++;
+                    bytesSaved += result.bytes;
+                    return Optional.of(new QueryEvaluation(
+                            queryId,
+                            queryString,
+                            result.replay(query),
+                            Instant.now(),
+                            true
+                    ));
+                }
+                evaluation = evaluations.get(key);
+                if (evaluation == null) {
+                    misses++;
+                    evaluations.put(key, new CompletableFuture<>());
+                    return Optional.empty();
+                }
+                waits++;
+            }
+            try {
+                evaluation.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Ends the evaluation claimed by lookUpOrClaim (the result should be stored first, if it can be cached)
+     */
+    void release(String queryString) {
+        CompletableFuture<Void> evaluation;
+        synchronized (this) {
+            evaluation = evaluations.remove(getKey(CanonicalQuery.of(queryString)));
+        }
+        if (evaluation != null) {
+            evaluation.complete(null);
+        }
+    }
+
+    /**
+     * Number of solution mappings of the cached result of the query (if any).
+     * Not counted as a hit or a miss, and does not count as a use of the entry for eviction.
+     */
+    public synchronized Optional<Integer> getCachedRowNumber(String queryString) {
+        return Optional.ofNullable(rowNumbers.get(getKey(CanonicalQuery.of(queryString))));
+    }
+
+    /**
+     * Returns a consumer which records the solution mappings of the query.
+     * The recorded result is cached when the returned recorder is stored.
+     */
+    Recorder recorder(String queryString, List<String> bindingNames) {
+        return new Recorder(CanonicalQuery.of(queryString), bindingNames);
+    }
+
+    private synchronized void put(String key, CachedResult result) {
+        if (result.bytes > maxBytes) {
+            return;
+        }
+        CachedResult previous = entries.put(key, result);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        rowNumbers.put(key, result.rows.size());
+        bytes += result.bytes;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, CachedResult>> it = entries.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, CachedResult> e = it.next();
+            bytes -= e.getValue().bytes;
+            rowNumbers.remove(e.getKey());
+            it.remove();
+        }
+    }
+
+    private String getKey(CanonicalQuery query) {
+        return query.text + "\n#graph:" + graphName.orElse("");
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    /**
+     * Number of look-ups which waited for a concurrent evaluation of the same query
+     */
+    public synchronized int getWaits() {
+        return waits;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static long estimateBytes(Value v) {
+        return v == null ?
+                0 :
+                BYTES_PER_VALUE + 2L * v.stringValue().length();
+    }
+
+    class Recorder implements Consumer<BindingSet> {
+
+        private final CanonicalQuery query;
+        // original names of the canonical variables (in the order of the result header)
+        private final ImmutableList<String> bindingNames;
+        private final ImmutableList.Builder<Value[]> rows;
+        private long rowBytes;
+        private boolean overflow;
+
+        private Recorder(CanonicalQuery query, List<String> bindingNames) {
+            this.query = query;
+            this.bindingNames = ImmutableList.copyOf(bindingNames);
+            this.rows = ImmutableList.builder();
+            this.rowBytes = 0;
+            this.overflow = false;
+        }
+
+        @Override
+        public void accept(BindingSet bs) {
+            if (overflow) {
+                return;
+            }
+            Value[] row = new Value[bindingNames.size()];
+            rowBytes += BYTES_PER_ROW;
+            for (int i = 0; i < row.length; i++) {
+                row[i] = bs.getValue(bindingNames.get(i));
+                rowBytes += estimateBytes(row[i]);
+            }
+            rows.add(row);
+            // the result cannot be cached anyway, stop recording
+            if (rowBytes > maxBytes) {
+                overflow = true;
+            }
+        }
+
+        void store() {
+            if (overflow) {
+                return;
+            }
+            put(
+                    getKey(query),
+                    new CachedResult(
+                            bindingNames.stream()
+                                    .map(query::getCanonicalName)
+                                    .collect(ImmutableCollectors.toList()),
+                            rows.build(),
+                            rowBytes
+                    ));
+        }
+    }
+
+    private static class CachedResult {
+
+        private final ImmutableList<String> canonicalBindingNames;
+        private final ImmutableList<Value[]> rows;
+        private final long bytes;
+
+        private CachedResult(ImmutableList<String> canonicalBindingNames, ImmutableList<Value[]> rows, long bytes) {
+            this.canonicalBindingNames = canonicalBindingNames;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Solution mappings are rebuilt lazily, with the variable names of the (possibly different) query being evaluated
+         */
+        private IteratingTupleQueryResult replay(CanonicalQuery query) {
+            ImmutableList<String> names = canonicalBindingNames.stream()
+                    .map(query::getOriginalName)
+                    .collect(ImmutableCollectors.toList());
+            return new IteratingTupleQueryResult(
+                    names,
+                    Iterables.transform(rows, r -> toBindingSet(names, r))
+            );
+        }
+
+        private static BindingSet toBindingSet(ImmutableList<String> names, Value[] row) {
+            List<String> boundNames = new ArrayList<>(row.length);
+            List<Value> values = new ArrayList<>(row.length);
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] != null) {
+                    boundNames.add(names.get(i));
+                    values.add(row[i]);
+                }
+            }
+            return new ListBindingSet(boundNames, values);
+        }
+    }
+
+    /**
+     * Query string where whitespace sequences and comments are collapsed (or removed around delimiters), and variables are renamed
+     * by order of first occurrence (?v0, ?v1, ...).
+     * IRIs and string literals are left unchanged.
+     */
+    static class CanonicalQuery {
+
+        private final String text;
+        private final ImmutableMap<String, String> originalToCanonical;
+        private final ImmutableMap<String, String> canonicalToOriginal;
+
+        private CanonicalQuery(String text, ImmutableMap<String, String> originalToCanonical) {
+            this.text = text;
+            this.originalToCanonical = originalToCanonical;
+            this.canonicalToOriginal = originalToCanonical.entrySet().stream()
+                    .collect(ImmutableCollectors.toMap(
+                            Map.Entry::getValue,
+                            Map.Entry::getKey
+                    ));
+        }
+
+        String getText() {
+            return text;
+        }
+
+        String getCanonicalName(String variable) {
+            String name = originalToCanonical.get(variable);
+            if (name == null) {
+                throw new IllegalArgumentException("Unknown variable " + variable);
+            }
+            return name;
+        }
+
+        String getOriginalName(String canonicalVariable) {
+            String name = canonicalToOriginal.get(canonicalVariable);
+            if (name == null) {
+                throw new IllegalArgumentException("Unknown variable " + canonicalVariable);
+            }
+            return name;
+        }
+
+        static CanonicalQuery of(String query) {
+            StringBuilder sb = new StringBuilder(query.length());
+            Map<String, String> variables = new LinkedHashMap<>();
+            boolean pendingSpace = false;
+            int n = query.length();
+            int i = 0;
+            while (i < n) {
+                char c = query.charAt(i);
+                if (Character.isWhitespace(c)) {
+                    pendingSpace = true;
+                    i++;
+                    continue;
+                }
+                if (c == '#') {
+                    while (i < n && query.charAt(i) != '\n') {
+                        i++;
+                    }
+                    pendingSpace = true;
+                    continue;
+                }
+                if (pendingSpace && sb.length() > 0 && !isDelimiter(c) && !isDelimiter(sb.charAt(sb.length() - 1))) {
+                    sb.append(' ');
+                }
+                pendingSpace = false;
+                int end;
+                if (c == '<' && (end = getIriEnd(query, i)) > 0) {
+                    sb.append(query, i, end);
+                    i = end;
+                } else if (c == '"' || c == '\'') {
+                    end = getStringEnd(query, i);
+                    sb.append(query, i, end);
+                    i = end;
+                } else if ((c == '?' || c == '$') && i + 1 < n && isVariableChar(query.charAt(i + 1))) {
+                    end = i + 1;
+                    while (end < n && isVariableChar(query.charAt(end))) {
+                        end++;
+                    }
+                    String name = query.substring(i + 1, end);
+                    sb.append('?').append(variables.computeIfAbsent(name, v -> "v" + variables.size()));
+                    i = end;
+                } else {
+                    sb.append(c);
+                    i++;
+                }
+            }
+            return new CanonicalQuery(sb.toString(), ImmutableMap.copyOf(variables));
+        }
+
+        /**
+         * Index following the closing '>' if an IRI starts at index i, -1 otherwise (e.g. "<" is a comparison operator)
+         */
+        private static int getIriEnd(String query, int i) {
+            for (int j = i + 1; j < query.length(); j++) {
+                char c = query.charAt(j);
+                if (c == '>') {
+                    return j + 1;
+                }
+                if (Character.isWhitespace(c) || c == '<') {
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        private static int getStringEnd(String query, int i) {
+            char quote = query.charAt(i);
+            int j = i + 1;
+            while (j < query.length()) {
+                char c = query.charAt(j);
+                if (c == '\\') {
+                    j += 2;
+                    continue;
+                }
+                if (c == quote) {
+                    return j + 1;
+                }
+                j++;
+            }
+            return query.length();
+        }
+
+        // whitespace around these characters is not significant
+        private static boolean isDelimiter(char c) {
+            return c == '{' || c == '}' || c == '(' || c == ')' || c == ',' || c == ';';
+        }
+
+        private static boolean isVariableChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_';
+        }
+    }
+}
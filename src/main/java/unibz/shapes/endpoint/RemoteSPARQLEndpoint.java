@@ -0,0 +1,179 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.eclipse.rdf4j.http.client.SparqlSession;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * SPARQL endpoint accessed over HTTP.
+ * All connections share a single (keep-alive) HTTP client.
+ * <p>
+ * A list of preferred result formats can be provided.
+ * The first one is requested (through content negotiation), and the next one is used
+ * if the result of a query cannot be parsed in the current one, or if the endpoint rejects it.
+ */
+public class RemoteSPARQLEndpoint extends AbstractSPARQLEndpoint {
+
+    private static final ImmutableMap<String, TupleQueryResultFormat> resultFormats = ImmutableMap.of(
+            "binary", TupleQueryResultFormat.BINARY,
+            "tsv", TupleQueryResultFormat.TSV,
+            "json", TupleQueryResultFormat.JSON,
+            "xml", TupleQueryResultFormat.SPARQL
+    );
+
+    private final CloseableHttpClient httpClient;
+    private final NegotiatingSPARQLRepository repo;
+
+    public RemoteSPARQLEndpoint(String endPointURL) {
+        this(endPointURL, DEFAULT_POOL_SIZE);
+    }
+
+    public RemoteSPARQLEndpoint(String endPointURL, int poolSize) {
+        this(endPointURL, poolSize, Optional.empty(), Optional.empty());
+    }
+
+    public RemoteSPARQLEndpoint(String endPointURL, int poolSize, Optional<QueryResultCache> cache,
+                                Optional<PersistentQueryResultCache> persistentCache) {
+        this(endPointURL, poolSize, cache, persistentCache, ImmutableList.of());
+    }
+
+    public RemoteSPARQLEndpoint(String endPointURL, int poolSize, Optional<QueryResultCache> cache,
+                                Optional<PersistentQueryResultCache> persistentCache, ImmutableList<String> preferredFormats) {
+        this(endPointURL, poolSize, cache, persistentCache, preferredFormats, Optional.empty());
+    }
+
+    /**
+     * @param preferredFormats names of result formats (see getResultFormatNames()), by decreasing preference.
+     *                         If empty, the default content negotiation of RDF4J is used.
+     * @param pagination       if present, query results are retrieved page by page
+     */
+    public RemoteSPARQLEndpoint(String endPointURL, int poolSize, Optional<QueryResultCache> cache,
+                                Optional<PersistentQueryResultCache> persistentCache, ImmutableList<String> preferredFormats,
+                                Optional<Pagination> pagination) {
+        this(endPointURL, poolSize, createHttpClient(poolSize), cache, persistentCache, getResultFormats(preferredFormats), pagination);
+    }
+
+    private RemoteSPARQLEndpoint(String endPointURL, int poolSize, CloseableHttpClient httpClient, Optional<QueryResultCache> cache,
+                                 Optional<PersistentQueryResultCache> persistentCache, ImmutableList<TupleQueryResultFormat> preferredFormats,
+                                 Optional<Pagination> pagination) {
+        this(endPointURL, poolSize, httpClient, createRepository(endPointURL, httpClient, preferredFormats), cache, persistentCache, pagination);
+    }
+
+    private RemoteSPARQLEndpoint(String endPointURL, int poolSize, CloseableHttpClient httpClient, NegotiatingSPARQLRepository repo,
+                                 Optional<QueryResultCache> cache, Optional<PersistentQueryResultCache> persistentCache,
+                                 Optional<Pagination> pagination) {
+        super(endPointURL, repo, poolSize, cache, persistentCache, pagination);
+        this.httpClient = httpClient;
+        this.repo = repo;
+    }
+
+    public static ImmutableSet<String> getResultFormatNames() {
+        return resultFormats.keySet();
+    }
+
+    private static ImmutableList<TupleQueryResultFormat> getResultFormats(ImmutableList<String> names) {
+        return names.stream()
+                .map(n -> {
+                    TupleQueryResultFormat format = resultFormats.get(n.toLowerCase());
+                    if (format == null) {
+                        throw new IllegalArgumentException("Unknown result format " + n + ", expected one of " + getResultFormatNames());
+                    }
+                    return format;
+                })
+                .collect(ImmutableCollectors.toList());
+    }
+
+    private static CloseableHttpClient createHttpClient(int poolSize) {
+        PoolingHttpClientConnectionManager connManager = new PoolingHttpClientConnectionManager();
+        connManager.setMaxTotal(poolSize);
+        connManager.setDefaultMaxPerRoute(poolSize);
+        return HttpClients.custom()
+                .setConnectionManager(connManager)
+                .build();
+    }
+
+    private static NegotiatingSPARQLRepository createRepository(String endPointURL, CloseableHttpClient httpClient,
+                                                                ImmutableList<TupleQueryResultFormat> preferredFormats) {
+        NegotiatingSPARQLRepository repo = new NegotiatingSPARQLRepository(endPointURL, preferredFormats);
+        repo.setHttpClient(httpClient);
+        repo.initialize();
+        return repo;
+    }
+
+    @Override
+    Optional<String> getResultFormat() {
+        return repo.getCurrentFormat()
+                .map(TupleQueryResultFormat::getName);
+    }
+
+    @Override
+    boolean fallBack(String failedFormat) {
+        return repo.fallBack(failedFormat);
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        httpClient.close();
+    }
+
+    private static class NegotiatingSPARQLRepository extends SPARQLRepository {
+
+        private final ImmutableList<TupleQueryResultFormat> preferredFormats;
+        // sessions of the (long-lived) connections, updated when falling back to another format
+        private final List<SparqlSession> sessions;
+        private volatile int current;
+
+        NegotiatingSPARQLRepository(String endPointURL, ImmutableList<TupleQueryResultFormat> preferredFormats) {
+            super(endPointURL);
+            this.preferredFormats = preferredFormats;
+            this.sessions = new CopyOnWriteArrayList<>();
+            this.current = 0;
+        }
+
+        @Override
+        protected SparqlSession createHTTPClient() {
+            SparqlSession session = super.createHTTPClient();
+            if (!preferredFormats.isEmpty()) {
+                session.setPreferredTQRFormat(preferredFormats.get(current));
+                sessions.add(session);
+            }
+            return session;
+        }
+
+        Optional<TupleQueryResultFormat> getCurrentFormat() {
+            int i = current;
+            return i < preferredFormats.size() ?
+                    Optional.of(preferredFormats.get(i)) :
+                    Optional.empty();
+        }
+
+        synchronized boolean fallBack(String failedFormat) {
+            Optional<TupleQueryResultFormat> format = getCurrentFormat();
+            if (!format.isPresent()) {
+                return false;
+            }
+            // another thread may have fallen back already
+            if (format.get().getName().equals(failedFormat)) {
+                if (current + 1 >= preferredFormats.size()) {
+                    return false;
+                }
+                current++;
+                sessions.forEach(s -> s.setPreferredTQRFormat(preferredFormats.get(current)));
+            }
+            return true;
+        }
+    }
+}
@@ -2,66 +2,45 @@ package unibz.shapes.endpoint;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import org.eclipse.rdf4j.query.QueryLanguage;
-import org.eclipse.rdf4j.query.TupleQuery;
-import org.eclipse.rdf4j.repository.Repository;
-import org.eclipse.rdf4j.repository.RepositoryConnection;
-import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.eclipse.rdf4j.query.BindingSet;
 import unibz.shapes.core.Query;
-import unibz.shapes.util.ImmutableCollectors;
 
-import java.time.Instant;
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.function.Consumer;
 
-public class SPARQLEndpoint {
+public interface SPARQLEndpoint extends Closeable {
 
+    int DEFAULT_POOL_SIZE = 4;
 
-    private static Logger log = LoggerFactory.getLogger(SPARQLEndpoint.class);
-    private final String endPointURL;
+    ImmutableList<QueryEvaluation> runQueries(ImmutableSet<Query> queries);
 
-    public SPARQLEndpoint(String endPointURL) {
-        this.endPointURL = endPointURL;
-    }
+    QueryEvaluation runQuery(String queryId, String queryString);
 
-    public ImmutableList<QueryEvaluation> runQueries(ImmutableSet<Query> queries) {
+    /**
+     * Streaming evaluation: solution mappings are passed to the consumer as they arrive, and are not retained
+     * by the returned QueryEvaluation.
+     */
+    QueryEvaluation runQuery(String queryId, String queryString, Consumer<BindingSet> consumer);
 
-        ImmutableList<QueryEvaluation> evals;
-        Repository repo = new SPARQLRepository(endPointURL);
-        repo.initialize();
+    String getURL();
 
-        try (RepositoryConnection conn = repo.getConnection()) {
-            evals = queries.stream()
-                    .map(q -> runQuery(conn, q.getId(), q.getSparql()))
-                    .collect(ImmutableCollectors.toList());
-        }
-        repo.shutDown();
-        return evals;
-    }
+    Optional<QueryResultCache> getCache();
 
-    public QueryEvaluation runQuery(String queryId, String queryString) {
-        Repository repo = new SPARQLRepository(endPointURL);
-        repo.initialize();
+    Optional<PersistentQueryResultCache> getPersistentCache();
 
-        try (RepositoryConnection conn = repo.getConnection()) {
-            QueryEvaluation eval = runQuery(conn, queryId, queryString);
-            repo.shutDown();
-            return eval;
-        }
-    }
+    /**
+     * True if results are retrieved from the endpoint page by page (see Pagination)
+     */
+    boolean isPaginated();
 
-    private QueryEvaluation runQuery(RepositoryConnection conn, String queryId, String queryString) {
-        log.debug("Evaluating query:\n" + queryString);
+    /**
+     * Maximal number of queries evaluated simultaneously
+     */
+    int getPoolSize();
 
-        TupleQuery tupleQuery = conn.prepareTupleQuery(QueryLanguage.SPARQL, queryString);
-        Instant start = Instant.now();
-        QueryEvaluation eval = new QueryEvaluation(queryId, queryString, tupleQuery.evaluate(), start);
-        eval.iterate();
-        return eval;
-    }
-
-    public String getURL() {
-        return endPointURL;
-    }
+    /**
+     * For each connection opened so far, number of times it has been reused
+     */
+    ImmutableList<Integer> getConnectionReuseCounts();
 }
-
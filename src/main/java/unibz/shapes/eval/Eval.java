@@ -1,13 +1,23 @@
 package unibz.shapes.eval;
 
+import com.google.common.collect.ImmutableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import unibz.shapes.endpoint.EmbeddedSPARQLEndpoint;
+import unibz.shapes.endpoint.Pagination;
+import unibz.shapes.endpoint.PersistentQueryResultCache;
+import unibz.shapes.endpoint.QueryResultCache;
+import unibz.shapes.endpoint.RemoteSPARQLEndpoint;
 import unibz.shapes.endpoint.SPARQLEndpoint;
 import unibz.shapes.shape.Schema;
 import unibz.shapes.shape.preprocess.ShapeParser;
 import unibz.shapes.util.FileOutput;
+import unibz.shapes.util.Output;
 import unibz.shapes.valid.Validation;
 import unibz.shapes.valid.rewrite.RewritingBasedValidation;
+import unibz.shapes.valid.result.CountingResultSink;
+import unibz.shapes.valid.result.StreamingResultSink;
+import unibz.shapes.valid.rule.RuleBasedValidOptions;
 import unibz.shapes.valid.rule.RuleBasedValidation;
 
 import java.io.File;
@@ -16,6 +26,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Optional;
 import java.util.stream.Stream;
@@ -26,20 +37,56 @@ import static unibz.shapes.shape.preprocess.ShapeParser.Format;
 public class Eval {
 
     private static Logger log = (Logger) LoggerFactory.getLogger(Eval.class);
+    private static final String DEFAULT_GRAPH_VERSION = "0";
+    private static final long DEFAULT_MAX_CACHE_DIR_SIZE = 1024;
+    // in-memory cache enabled by default when targets are validated by chunks (in MB)
+    private static final long DEFAULT_CHUNK_CACHE_SIZE = 512;
     private static final String usage =
             "\nUsage:\n\n" +
                     "\t java -jar valid-<version>.jar "+
-                    "[-r] [-j] [-d schemaDir] [-f schemaFile] [-s schemaString] [-g graphName] endpoint outputDir\n\n" +
+                    "[-r] [-j] [-e] [-S] [-O] [-R] [-a] [-L logLevel] [-M memoryBudget] [-C chunkSize [-W chunkWorkers]] [-T saturationWorkers] [-G groundingWorkers] [-d schemaDir] [-f schemaFile] [-s schemaString] [-g graphName] [-p poolSize] [-P pageSize] [-b maxQueryLength] [-F maxFocusNodes] [-c cacheSize] [-k cacheDir [-v graphVersion] [-m maxCacheDirSize]] (endpoint [-t resultFormats] | [-l data] [-n storeDir]) outputDir\n\n" +
                     "with:\n\n" +
                     "-r:                    Shapes format: SHACL/RDF (Turtle)\n" +
                     "-j:                    Shapes format: JSON (default format if none of -r or -j is specified)\n" +
+                    "-e:                    Compact (primitive array) storage of rules, instead of a HashMap\n" +
+                    "-S:                    Evaluates shapes bottom-up, by strongly connected component of the dependency graph\n" +
+                    "\t\t\t\t\t\t\t(rules only accumulate within recursive components, but queries are not restricted to reached nodes)\n" +
+                    "-O:                    Estimates the result size of each query with a COUNT query before ordering queries\n" +
+                    "\t\t\t\t\t\t\t(unless estimated from a previous evaluation or from the query cache)\n" +
+                    "-R:                    Writes the result for each target (with its evaluation path) to results.txt, as soon as it is decided\n" +
+                    "-a:                    Output files (logs and results) are written by background threads\n" +
+                    "logLevel:              Level of the validation log and target logs, among " + Arrays.toString(Output.Level.values()) + " (default DEBUG):\n" +
+                    "\t\t\t\t\t\t\tINFO omits messages per shape, query and target\n" +
+                    "memoryBudget:          Estimated size of the rules kept in memory, in MB, above which rules are spilled to disk\n" +
+                    "chunkSize:             Validates targets by chunks of this size, each with its own rules, sharing query results\n" +
+                    "\t\t\t\t\t\t\tthrough the query cache (enabled with size " + DEFAULT_CHUNK_CACHE_SIZE + " MB if -c is not specified)\n" +
+                    "chunkWorkers:          Maximal number of chunks validated simultaneously (default 1)\n" +
+                    "saturationWorkers:     Number of threads propagating independent groups of ground rules (default 1)\n" +
+                    "groundingWorkers:      Number of threads grounding the solution mappings of each query (default 1)\n" +
                     "schemaDir:             Directory containing the shape schema:\n" +
                     "\t\t\t\t\t\t\tJSON format: one shape per file, extension \".json\"\n" +
                     "\t\t\t\t\t\t\tSHACL/RDF format: extension \".ttl\"\n" +
                     "schemaFile:            File containing the shape schema (for the SHACL/RDF format only, extension \".ttl\")\n" +
                     "schemaString:          Shape schema as a string (for the SHACL/RDF format only)\n" +
                     "graphName:             Name of the RDF graph to be validated (using the SPARQL \"GRAPH\" operator)\n" +
+                    "poolSize:              Maximal number of simultaneous connections (and queries) to the endpoint (default " + SPARQLEndpoint.DEFAULT_POOL_SIZE + ")\n" +
+                    "pageSize:              Enables pagination of query results (LIMIT/OFFSET), with this initial page size\n" +
+                    "\t\t\t\t\t\t\t(adapted to the latency of the endpoint, and bounded by its result limit if one is detected)\n" +
+                    "maxQueryLength:        Queries are restricted to the remaining targets (for target shapes) or to the nodes reached\n" +
+                    "\t\t\t\t\t\t\tfrom the previous depth (for referenced shapes), with VALUES blocks,\n" +
+                    "\t\t\t\t\t\t\tsplit into batches of queries of at most this length (default " + RuleBasedValidOptions.DEFAULT_MAX_QUERY_LENGTH + " characters)\n" +
+                    "\t\t\t\t\t\t\t(with chunks of targets, queries are only restricted if it is specified)\n" +
+                    "maxFocusNodes:         Maximal number of nodes a query is restricted to (default " + RuleBasedValidOptions.DEFAULT_MAX_FOCUS_NODES + "),\n" +
+                    "\t\t\t\t\t\t\tabove it, solution mappings about other nodes are dropped instead\n" +
+                    "cacheSize:             Enables an in-memory cache of query results, of the given size in MB\n" +
+                    "cacheDir:              Enables a persistent cache of query results (shared across runs) in this directory\n" +
+                    "graphVersion:          Version tag of the validated graph, to be changed whenever the graph is modified (default \"" + DEFAULT_GRAPH_VERSION + "\")\n" +
+                    "maxCacheDirSize:       Maximal size of the persistent cache in MB (default " + DEFAULT_MAX_CACHE_DIR_SIZE + ")\n" +
                     "endpoint:              SPARQL endpoint exposing the graph to be validated\n" +
+                    "resultFormats:         Comma-separated list of preferred query result formats, among " + RemoteSPARQLEndpoint.getResultFormatNames() + "\n" +
+                    "\t\t\t\t\t\t\t(the next format is used if the endpoint fails with the current one)\n" +
+                    "data:                  RDF file (Turtle, N-Triples, ...) or directory, loaded into an embedded store instead of using an endpoint\n" +
+                    "storeDir:              Directory of a persistent embedded store (RDF4J native store) instead of an in-memory one\n" +
                     "outputDir:             Output directory (validation results statistics and logs)\n" +
                     "";
 
@@ -49,6 +96,10 @@ public class Eval {
     private static Optional<Path> singleQuery = Optional.empty();
     private static Path outputDir;
     private static ShapeParser.Format shapeFormat;
+    private static RuleBasedValidOptions options;
+    private static boolean streamResults;
+    private static Output.Level logLevel;
+    private static boolean asyncOutput;
 
     public static void main(String[] args) {
 
@@ -59,24 +110,34 @@ public class Eval {
         schema.getShapes()
                 .forEach(sh -> sh.computeConstraintQueries(schema, graph));
         createOutputDir(outputDir);
-        try {
-            Validation validation = singleQuery.isPresent() ?
-                    new RewritingBasedValidation(
-                            singleQuery.get(),
-                            endpoint,
-                            new FileOutput(Paths.get(outputDir.toString(), "validation.log").toFile()),
-                            new FileOutput(Paths.get(outputDir.toString(), "targets_violated.txt").toFile())
-                    ) :
-                    new RuleBasedValidation(
-                            endpoint,
-                            schema,
-                            new FileOutput(Paths.get(outputDir.toString(), "validation.log").toFile()),
-                            new FileOutput(Paths.get(outputDir.toString(), "targets_valid.log").toFile()),
-                            new FileOutput(Paths.get(outputDir.toString(), "targets_violated.log").toFile()),
-                            new FileOutput(Paths.get(outputDir.toString(), "stats.txt").toFile())
-                    );
-            Instant start = Instant.now();
-            validation.exec();
+        try (SPARQLEndpoint endpoint = Eval.endpoint) {
+            Instant start;
+            if (singleQuery.isPresent()) {
+                Validation validation = new RewritingBasedValidation(
+                        singleQuery.get(),
+                        endpoint,
+                        new FileOutput(Paths.get(outputDir.toString(), "validation.log").toFile()),
+                        new FileOutput(Paths.get(outputDir.toString(), "targets_violated.txt").toFile())
+                );
+                start = Instant.now();
+                validation.exec();
+            } else {
+                // results are not kept in memory: only target logs (and results.txt) are written
+                options.setResultSink(streamResults ?
+                        new StreamingResultSink(getOutput("results.txt")) :
+                        new CountingResultSink());
+                RuleBasedValidation validation = new RuleBasedValidation(
+                        endpoint,
+                        schema,
+                        getOutput("validation.log").setLevel(logLevel),
+                        getOutput("targets_valid.log").setLevel(logLevel),
+                        getOutput("targets_violated.log").setLevel(logLevel),
+                        getOutput("stats.txt"),
+                        options
+                );
+                start = Instant.now();
+                validation.execToSink();
+            }
             Instant finish = Instant.now();
             long elapsed = Duration.between(start, finish).toMillis();
             log.info("Total execution time: " + elapsed);
@@ -87,6 +148,10 @@ public class Eval {
 
 
 
+    private static Output getOutput(String fileName) throws IOException {
+        return new FileOutput(Paths.get(outputDir.toString(), fileName).toFile(), asyncOutput);
+    }
+
     private static void createOutputDir(Path outputDir) {
         File dir = outputDir.toFile();
         if (!dir.exists())
@@ -98,7 +163,20 @@ public class Eval {
         Optional<Path> schemaFile = Optional.empty();
         Optional<String> schemaString = Optional.empty();
         graph = Optional.empty();
+        int poolSize = SPARQLEndpoint.DEFAULT_POOL_SIZE;
+        Optional<Pagination> pagination = Optional.empty();
+        Optional<Long> cacheSize = Optional.empty();
+        Optional<Path> cacheDir = Optional.empty();
+        Optional<Path> data = Optional.empty();
+        Optional<Path> nativeStoreDir = Optional.empty();
+        ImmutableList<String> resultFormats = ImmutableList.of();
+        String graphVersion = DEFAULT_GRAPH_VERSION;
+        long maxCacheDirSize = DEFAULT_MAX_CACHE_DIR_SIZE;
         shapeFormat = ShapeParser.Format.JSON;
+        options = new RuleBasedValidOptions();
+        streamResults = false;
+        logLevel = Output.Level.DEBUG;
+        asyncOutput = false;
         Iterator<String> it = Stream.of(args).iterator();
         try {
             String currentOpt = it.next();
@@ -119,6 +197,72 @@ public class Eval {
                     case "-g":
                         graph = Optional.of(it.next());
                         break;
+                    case "-p":
+                        poolSize = Integer.parseInt(it.next());
+                        break;
+                    case "-P":
+                        pagination = Optional.of(new Pagination(Integer.parseInt(it.next())));
+                        break;
+                    case "-b":
+                        options.setMaxQueryLength(Integer.parseInt(it.next()));
+                        break;
+                    case "-F":
+                        options.setMaxFocusNodes(Integer.parseInt(it.next()));
+                        break;
+                    case "-c":
+                        cacheSize = Optional.of(Long.parseLong(it.next()));
+                        break;
+                    case "-k":
+                        cacheDir = Optional.of(Paths.get(it.next()));
+                        break;
+                    case "-v":
+                        graphVersion = it.next();
+                        break;
+                    case "-m":
+                        maxCacheDirSize = Long.parseLong(it.next());
+                        break;
+                    case "-l":
+                        data = Optional.of(Paths.get(it.next()));
+                        break;
+                    case "-n":
+                        nativeStoreDir = Optional.of(Paths.get(it.next()));
+                        break;
+                    case "-t":
+                        resultFormats = ImmutableList.copyOf(it.next().split(","));
+                        break;
+                    case "-e":
+                        options.setCompactRuleMap(true);
+                        break;
+                    case "-C":
+                        options.setChunkSize(Integer.parseInt(it.next()));
+                        break;
+                    case "-W":
+                        options.setChunkWorkers(Integer.parseInt(it.next()));
+                        break;
+                    case "-T":
+                        options.setSaturationWorkers(Integer.parseInt(it.next()));
+                        break;
+                    case "-G":
+                        options.setGroundingWorkers(Integer.parseInt(it.next()));
+                        break;
+                    case "-a":
+                        asyncOutput = true;
+                        break;
+                    case "-L":
+                        logLevel = Output.Level.valueOf(it.next().toUpperCase());
+                        break;
+                    case "-S":
+                        options.setComponentScheduling(true);
+                        break;
+                    case "-O":
+                        options.setCountProbes(true);
+                        break;
+                    case "-R":
+                        streamResults = true;
+                        break;
+                    case "-M":
+                        options.setMemoryBudget(Long.parseLong(it.next()) * 1024 * 1024);
+                        break;
                     case "-r":
                         shapeFormat = Format.SHACL;
                         break;
@@ -130,8 +274,25 @@ public class Eval {
                 }
                 currentOpt = it.next();
             }
-            endpoint = new SPARQLEndpoint(currentOpt);
-            outputDir = Paths.get(it.next());
+            // no endpoint argument for an embedded store
+            boolean embedded = data.isPresent() || nativeStoreDir.isPresent();
+            String endpointURL = embedded ?
+                    EmbeddedSPARQLEndpoint.getURL(data, nativeStoreDir) :
+                    currentOpt;
+            long maxCacheDirBytes = maxCacheDirSize * 1024 * 1024;
+            String version = graphVersion;
+            if (options.getChunkSize().isPresent() && !cacheSize.isPresent()) {
+                cacheSize = Optional.of(DEFAULT_CHUNK_CACHE_SIZE);
+            }
+            Optional<QueryResultCache> cache = cacheSize.map(s -> new QueryResultCache(s * 1024 * 1024, graph));
+            Optional<PersistentQueryResultCache> persistentCache = cacheDir.map(d ->
+                    new PersistentQueryResultCache(d, maxCacheDirBytes, endpointURL, graph, version));
+            outputDir = Paths.get(embedded ?
+                    currentOpt :
+                    it.next());
+            endpoint = embedded ?
+                    new EmbeddedSPARQLEndpoint(data, nativeStoreDir, poolSize, cache, persistentCache, pagination) :
+                    new RemoteSPARQLEndpoint(endpointURL, poolSize, cache, persistentCache, resultFormats, pagination);
         } catch (Exception e) {
             throw new RuntimeException(usage, e);
         }
@@ -3,6 +3,7 @@ package unibz.shapes.eval;
 import com.google.common.collect.ImmutableSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import unibz.shapes.endpoint.RemoteSPARQLEndpoint;
 import unibz.shapes.endpoint.SPARQLEndpoint;
 import unibz.shapes.shape.Schema;
 import unibz.shapes.shape.impl.SchemaImpl;
@@ -35,17 +36,17 @@ public class EvalGUIJson {
         schema.getShapes()
                 .forEach(sh -> sh.computeConstraintQueries(schema, graphName));
         StringOutput validationLog = new StringOutput(), validTargetsLog = new StringOutput(), inValidTargetsLog = new StringOutput(), statsLog = new StringOutput();
-        Validation validation = new RuleBasedValidation(
-                new SPARQLEndpoint(endpointUrl),
-                schema,
-                validationLog,
-                validTargetsLog,
-                inValidTargetsLog,
-                statsLog
-        );
         Instant start = Instant.now();
         ResultSet rs;
-        try {
+        try (SPARQLEndpoint endpoint = new RemoteSPARQLEndpoint(endpointUrl)) {
+            Validation validation = new RuleBasedValidation(
+                    endpoint,
+                    schema,
+                    validationLog,
+                    validTargetsLog,
+                    inValidTargetsLog,
+                    statsLog
+            );
             rs = validation.exec();
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -1,5 +1,8 @@
 package unibz.shapes.shape;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
 import java.util.stream.Stream;
 
 public interface DependencyGraph {
@@ -9,4 +12,20 @@ public interface DependencyGraph {
     Stream<Shape> getNegReferences(Shape shape);
 
     Stream<Shape> getAllReferences(Shape shape);
+
+    /**
+     * Strongly connected components, in reverse topological order:
+     * a shape only references shapes of its own component or of previous ones
+     */
+    ImmutableList<ImmutableSet<Shape>> getStronglyConnectedComponents();
+
+    /**
+     * True if the shape references itself (directly or not)
+     */
+    boolean isRecursive(Shape shape);
+
+    /**
+     * The shapes, and all shapes they reference (directly or not)
+     */
+    ImmutableSet<Shape> getReachableShapes(ImmutableSet<Shape> shapes);
 }
@@ -11,4 +11,6 @@ public interface Schema {
     ImmutableSet<Shape> getShapes();
 
     ImmutableSet<Shape> getShapesReferencedBy(Shape s);
+
+    DependencyGraph getDependencyGraph();
 }
@@ -7,6 +7,7 @@ import unibz.shapes.shape.DependencyGraph;
 import unibz.shapes.shape.Shape;
 import unibz.shapes.util.ImmutableCollectors;
 
+import java.util.*;
 import java.util.stream.Stream;
 
 public class DependencyGraphImpl implements DependencyGraph {
@@ -18,8 +19,16 @@ public class DependencyGraphImpl implements DependencyGraph {
 
     ImmutableMap<Shape, ImmutableList<ImmutableSet<Shape>>> references;
 
+    private final ImmutableList<ImmutableSet<Shape>> components;
+    private final ImmutableSet<Shape> recursiveShapes;
+
     public DependencyGraphImpl(ImmutableMap<Shape, ImmutableList<ImmutableSet<Shape>>> references) {
         this.references = references;
+        this.components = new Tarjan().computeComponents();
+        this.recursiveShapes = components.stream()
+                .filter(c -> c.size() > 1 || getAllReferences(c.iterator().next()).anyMatch(c::contains))
+                .flatMap(c -> c.stream())
+                .collect(ImmutableCollectors.toSet());
     }
 
     @Override
@@ -40,6 +49,74 @@ public class DependencyGraphImpl implements DependencyGraph {
         );
     }
 
+    @Override
+    public ImmutableList<ImmutableSet<Shape>> getStronglyConnectedComponents() {
+        return components;
+    }
+
+    @Override
+    public boolean isRecursive(Shape shape) {
+        return recursiveShapes.contains(shape);
+    }
+
+    @Override
+    public ImmutableSet<Shape> getReachableShapes(ImmutableSet<Shape> shapes) {
+        Set<Shape> reached = new HashSet<>(shapes);
+        Deque<Shape> toVisit = new ArrayDeque<>(shapes);
+        while (!toVisit.isEmpty()) {
+            getAllReferences(toVisit.poll())
+                    .filter(reached::add)
+                    .forEach(toVisit::add);
+        }
+        return ImmutableSet.copyOf(reached);
+    }
+
+    /**
+     * Tarjan's algorithm: components are produced in reverse topological order
+     */
+    private class Tarjan {
+
+        private final Map<Shape, Integer> index = new HashMap<>();
+        private final Map<Shape, Integer> lowLink = new HashMap<>();
+        private final Deque<Shape> stack = new ArrayDeque<>();
+        private final Set<Shape> onStack = new HashSet<>();
+        private final ImmutableList.Builder<ImmutableSet<Shape>> components = ImmutableList.builder();
+
+        private ImmutableList<ImmutableSet<Shape>> computeComponents() {
+            references.keySet().forEach(s -> {
+                if (!index.containsKey(s)) {
+                    visit(s);
+                }
+            });
+            return components.build();
+        }
+
+        private void visit(Shape shape) {
+            index.put(shape, index.size());
+            lowLink.put(shape, index.get(shape));
+            stack.push(shape);
+            onStack.add(shape);
+            getAllReferences(shape).forEach(r -> {
+                if (!index.containsKey(r)) {
+                    visit(r);
+                    lowLink.put(shape, Math.min(lowLink.get(shape), lowLink.get(r)));
+                } else if (onStack.contains(r)) {
+                    lowLink.put(shape, Math.min(lowLink.get(shape), index.get(r)));
+                }
+            });
+            if (lowLink.get(shape).equals(index.get(shape))) {
+                ImmutableSet.Builder<Shape> component = ImmutableSet.builder();
+                Shape s;
+                do {
+                    s = stack.pop();
+                    onStack.remove(s);
+                    component.add(s);
+                } while (s != shape);
+                components.add(component.build());
+            }
+        }
+    }
+
     static DependencyGraph computeDependencyGraph(ImmutableMap<String, Shape> shapeMap) {
         return new DependencyGraphImpl(shapeMap.values().stream()
                 .collect(ImmutableCollectors.toMap(
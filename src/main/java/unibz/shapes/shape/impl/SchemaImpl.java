@@ -42,4 +42,9 @@ public class SchemaImpl implements Schema {
         return dependencyGraph.getAllReferences(s)
                 .collect(ImmutableCollectors.toSet());
     }
+
+    @Override
+    public DependencyGraph getDependencyGraph() {
+        return dependencyGraph;
+    }
 }
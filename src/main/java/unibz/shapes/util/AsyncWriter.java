@@ -0,0 +1,154 @@
+package unibz.shapes.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writer which hands strings over to a background thread, through a bounded queue.
+ * The background thread encodes them (UTF-8) into a large buffer, which is written to a file channel when full.
+ * <p>
+ * If the queue is full, writing blocks until the background thread catches up (or fails, or terminates).
+ * Strings are only guaranteed to be written once the writer is closed (flush has no effect).
+ * A failure of the background thread (of any kind) is rethrown by the next call to write or close.
+ */
+class AsyncWriter extends Writer {
+
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int BUFFER_SIZE = 1 << 20;
+    // interval (in ms) at which a blocked writing thread checks the background thread
+    private static final int DRAINER_CHECK_INTERVAL = 100;
+    // end of input (compared by identity)
+    private static final String END = new String();
+
+    private final BlockingQueue<String> queue;
+    private final FileChannel channel;
+    private final Thread drainer;
+    private volatile Throwable failure;
+    private boolean closed;
+
+    AsyncWriter(Path file) throws IOException {
+        this.channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING
+        );
+        this.queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        this.drainer = new Thread(this::drain, "output-" + file.getFileName());
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    @Override
+    public void write(String s) throws IOException {
+        checkFailure();
+        put(s);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        write(new String(cbuf, off, len));
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            put(END);
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            channel.close();
+        }
+        checkFailure();
+    }
+
+    private void put(String s) throws IOException {
+        try {
+            while (!queue.offer(s, DRAINER_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                checkFailure();
+                if (!drainer.isAlive()) {
+                    throw new IOException("The output thread " + drainer.getName() + " has terminated");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable t = failure;
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t != null) {
+            throw new IOException("The output thread " + drainer.getName() + " failed", t);
+        }
+    }
+
+    private void drain() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        try {
+            String s;
+            while ((s = queue.take()) != END) {
+                if (failure != null) {
+                    // discarded, so that writing threads are not blocked
+                    continue;
+                }
+                try {
+                    append(buffer, s.getBytes(StandardCharsets.UTF_8));
+                } catch (Throwable e) {
+                    failure = e;
+                }
+            }
+            if (failure == null) {
+                writeOut(buffer);
+            }
+        } catch (InterruptedException e) {
+            failure = new InterruptedIOException();
+        } catch (Throwable e) {
+            failure = e;
+        }
+    }
+
+    private void append(ByteBuffer buffer, byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            writeOut(buffer);
+        }
+        if (bytes.length > buffer.capacity()) {
+            ByteBuffer large = ByteBuffer.wrap(bytes);
+            while (large.hasRemaining()) {
+                channel.write(large);
+            }
+            return;
+        }
+        buffer.put(bytes);
+    }
+
+    private void writeOut(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -8,6 +8,15 @@ import java.io.IOException;
 public class FileOutput extends Output{
 
     public FileOutput(File outputFile) throws IOException {
-        this.writer = new BufferedWriter(new FileWriter(outputFile));
+        this(outputFile, false);
+    }
+
+    /**
+     * @param async if true, the file is written by a background thread (see AsyncWriter)
+     */
+    public FileOutput(File outputFile, boolean async) throws IOException {
+        this.writer = async ?
+                new AsyncWriter(outputFile.toPath()) :
+                new BufferedWriter(new FileWriter(outputFile));
     }
 }
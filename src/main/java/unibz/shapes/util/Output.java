@@ -6,11 +6,22 @@ import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
+import java.util.function.Supplier;
 
 public abstract class Output {
 
+    /**
+     * Messages with a level below the level of the output are ignored.
+     * Messages written without a level have level INFO.
+     */
+    public enum Level {
+        DEBUG, INFO, OFF
+    }
+
     Writer writer;
-    private Instant previous;
+    private volatile Level level = Level.DEBUG;
+    // per thread, so that concurrent validations can time their own steps
+    private final ThreadLocal<Instant> previous = new ThreadLocal<>();
     private final DateTimeFormatter formatter = DateTimeFormatter
             .ofLocalizedDateTime( FormatStyle.SHORT )
 //            .withLocale( Locale.UK )
@@ -21,9 +32,28 @@ public abstract class Output {
         writer.close();
     }
 
+    public Output setLevel(Level level) {
+        this.level = level;
+        return this;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(this.level) >= 0;
+    }
+
     public void write(String s) {
+        write(Level.INFO, () -> s);
+    }
+
+    /**
+     * The message is only built if the level is enabled
+     */
+    public void write(Level level, Supplier<String> message) {
+        if (!isEnabled(level)) {
+            return;
+        }
         try {
-            writer.write(s + "\n");
+            writer.write(message.get() + "\n");
 //            writer.flush();
 
         } catch (IOException e) {
@@ -32,26 +62,25 @@ public abstract class Output {
     }
 
     public void start(String s) {
-        try {
-            previous= Instant.now();
-            writer.write("\n"+formatter.format(previous)+ ":\n");
-            writer.write(s + "\n");
-//            writer.flush();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        start(Level.INFO, () -> s);
+    }
 
+    /**
+     * Starts timing a step (see elapsed), whether the message is written or not
+     */
+    public void start(Level level, Supplier<String> message) {
+        previous.set(Instant.now());
+        write(level, () -> "\n" + formatter.format(previous.get()) + ":\n" + message.get());
     }
 
     public long elapsed() {
+        return elapsed(Level.INFO);
+    }
+
+    public long elapsed(Level level) {
         Instant now = Instant.now();
-        long elapsed = Duration.between(previous, now).toMillis();
-        try {
-            writer.write("elapsed: " + elapsed+" ms\n");
-//            writer.flush();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        long elapsed = Duration.between(previous.get(), now).toMillis();
+        write(level, () -> "elapsed: " + elapsed + " ms");
         return elapsed;
     }
 
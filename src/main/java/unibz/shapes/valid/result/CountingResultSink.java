@@ -0,0 +1,30 @@
+package unibz.shapes.valid.result;
+
+/**
+ * Only counts valid and invalid targets (results are not kept).
+ */
+public class CountingResultSink implements ResultSink<ValidTargetResult, InvalidTargetResult> {
+
+    private int validTargets;
+    private int invalidTargets;
+
+    @Override
+    public void registerValidTarget(ValidTargetResult result) {
+        validTargets++;
+    }
+
+    @Override
+    public void registerInvalidTarget(InvalidTargetResult result) {
+        invalidTargets++;
+    }
+
+    @Override
+    public int getNumberOfValidTargets() {
+        return validTargets;
+    }
+
+    @Override
+    public int getNumberOfInvalidTargets() {
+        return invalidTargets;
+    }
+}
@@ -0,0 +1,11 @@
+package unibz.shapes.valid.result;
+
+/**
+ * Number of valid and invalid targets of a validation (see ResultSet for the results themselves)
+ */
+public interface ResultCounts {
+
+    int getNumberOfValidTargets();
+
+    int getNumberOfInvalidTargets();
+}
@@ -2,9 +2,19 @@ package unibz.shapes.valid.result;
 
 import com.google.common.collect.ImmutableList;
 
-public interface ResultSet {
+public interface ResultSet extends ResultCounts {
 
     ImmutableList<? extends ValidTargetResult> getValidTargetResults();
     ImmutableList<? extends InvalidTargetResult> getInValidTargetResults();
 
+    @Override
+    default int getNumberOfValidTargets() {
+        return getValidTargetResults().size();
+    }
+
+    @Override
+    default int getNumberOfInvalidTargets() {
+        return getInValidTargetResults().size();
+    }
+
 }
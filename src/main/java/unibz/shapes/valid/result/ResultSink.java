@@ -0,0 +1,23 @@
+package unibz.shapes.valid.result;
+
+/**
+ * Receives the result for each target as soon as it is decided.
+ * <p>
+ * A sink is parameterized by the types of results it accepts,
+ * and also provides the number of valid and invalid targets.
+ * Sinks which keep the results themselves also implement ResultSet (e.g. RuleBasedResultSet).
+ * <p>
+ * Sinks are called by one thread at a time.
+ */
+public interface ResultSink<V extends ValidTargetResult, I extends InvalidTargetResult> extends ResultCounts {
+
+    void registerValidTarget(V result);
+
+    void registerInvalidTarget(I result);
+
+    /**
+     * Called once all targets have been registered
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,40 @@
+package unibz.shapes.valid.result;
+
+import unibz.shapes.util.Output;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes each result (one line per target, with its string representation) as soon as it is received,
+ * and only keeps the number of valid and invalid targets.
+ */
+public class StreamingResultSink extends CountingResultSink {
+
+    private final Output output;
+
+    public StreamingResultSink(Output output) {
+        this.output = output;
+    }
+
+    @Override
+    public void registerValidTarget(ValidTargetResult result) {
+        super.registerValidTarget(result);
+        output.write("valid: " + result);
+    }
+
+    @Override
+    public void registerInvalidTarget(InvalidTargetResult result) {
+        super.registerInvalidTarget(result);
+        output.write("violated: " + result);
+    }
+
+    @Override
+    public void close() {
+        try {
+            output.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
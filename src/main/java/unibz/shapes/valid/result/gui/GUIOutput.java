@@ -27,7 +27,7 @@ public class GUIOutput {
     }
 
     public boolean isValid(){
-        return rs.getInValidTargetResults().isEmpty();
+        return rs.getNumberOfInvalidTargets() == 0;
     }
 
     public String getStats(){
@@ -35,11 +35,11 @@ public class GUIOutput {
     }
 
     public int numberOfValidTargets(){
-        return rs.getValidTargetResults().size();
+        return rs.getNumberOfValidTargets();
     }
 
     public int numberOfInValidTargets(){
-        return rs.getInValidTargetResults().size();
+        return rs.getNumberOfInvalidTargets();
     }
 
 }
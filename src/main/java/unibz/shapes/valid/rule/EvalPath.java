@@ -2,37 +2,55 @@ package unibz.shapes.valid.rule;
 
 import com.google.common.collect.ImmutableList;
 import unibz.shapes.shape.Shape;
-import unibz.shapes.util.ImmutableCollectors;
 
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+/**
+ * Sequence of shapes, stored as a persistent linked list (last shape and prefix),
+ * so that extending a path takes constant time and memory, and that prefixes are shared between paths.
+ * <p>
+ * The list of shapes is only materialized on request.
+ */
 public class EvalPath {
 
-    private final ImmutableList<Shape> shapes;
+    // null for the empty path
+    private final Shape shape;
+    private final EvalPath prefix;
+    private final int length;
 
     public EvalPath() {
-        shapes = ImmutableList.of();
+        this.shape = null;
+        this.prefix = null;
+        this.length = 0;
     }
 
     public EvalPath(Shape shape, EvalPath path) {
-        shapes = Stream.concat(
-                path.getShapeStream(),
-                Stream.of(shape)
-        ).collect(ImmutableCollectors.toList());
+        this.shape = shape;
+        this.prefix = path;
+        this.length = path.length + 1;
     }
 
-    private Stream<Shape> getShapeStream() {
-        return shapes.stream();
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public int getLength() {
+        return length;
     }
 
     public ImmutableList<Shape> getShapes() {
-        return shapes;
+        Shape[] shapes = new Shape[length];
+        EvalPath p = this;
+        for (int i = length - 1; i >= 0; i--) {
+            shapes[i] = p.shape;
+            p = p.prefix;
+        }
+        return ImmutableList.copyOf(shapes);
     }
 
     @Override
     public String toString() {
-        return shapes.stream()
+        return getShapes().stream()
                 .map(s -> s.getId())
                 .collect(Collectors.joining("\n"));
     }
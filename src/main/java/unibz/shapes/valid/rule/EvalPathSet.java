@@ -0,0 +1,93 @@
+package unibz.shapes.valid.rule;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import unibz.shapes.shape.Shape;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+
+/**
+ * Set of evaluation paths, which is either given explicitly, or obtained by extending each path of another set with a shape.
+ * <p>
+ * Extending a set takes constant time and memory, whatever the number of paths:
+ * the extended paths are only built when they are requested (e.g. when results are written), and are not memoized.
+ * <p>
+ * Immutable.
+ */
+public class EvalPathSet {
+
+    private static final EvalPathSet EMPTY = new EvalPathSet(ImmutableSet.of(), null, null);
+
+    // null if the set extends parent
+    private final ImmutableSet<EvalPath> paths;
+    private final EvalPathSet parent;
+    private final Shape shape;
+
+    private EvalPathSet(ImmutableSet<EvalPath> paths, EvalPathSet parent, Shape shape) {
+        this.paths = paths;
+        this.parent = parent;
+        this.shape = shape;
+    }
+
+    public static EvalPathSet of(ImmutableSet<EvalPath> paths) {
+        return new EvalPathSet(paths, null, null);
+    }
+
+    public static EvalPathSet empty() {
+        return EMPTY;
+    }
+
+    public EvalPathSet extend(Shape shape) {
+        return new EvalPathSet(null, this, shape);
+    }
+
+    public boolean isEmpty() {
+        return getBase().isEmpty();
+    }
+
+    public ImmutableSet<EvalPath> getPaths() {
+        ImmutableList<Shape> extension = getExtension();
+        return getBase().stream()
+                .map(p -> extend(p, extension))
+                .collect(ImmutableCollectors.toSet());
+    }
+
+    /**
+     * Only builds this path (empty if the set is empty)
+     */
+    public Optional<EvalPath> getFirstPath() {
+        ImmutableList<Shape> extension = getExtension();
+        return getBase().stream()
+                .findFirst()
+                .map(p -> extend(p, extension));
+    }
+
+    private ImmutableSet<EvalPath> getBase() {
+        EvalPathSet s = this;
+        while (s.paths == null) {
+            s = s.parent;
+        }
+        return s.paths;
+    }
+
+    /**
+     * Shapes appended to the paths of the base set, in order
+     */
+    private ImmutableList<Shape> getExtension() {
+        Deque<Shape> shapes = new ArrayDeque<>();
+        for (EvalPathSet s = this; s.paths == null; s = s.parent) {
+            shapes.addFirst(s.shape);
+        }
+        return ImmutableList.copyOf(shapes);
+    }
+
+    private static EvalPath extend(EvalPath path, ImmutableList<Shape> shapes) {
+        for (Shape s : shapes) {
+            path = new EvalPath(s, path);
+        }
+        return path;
+    }
+}
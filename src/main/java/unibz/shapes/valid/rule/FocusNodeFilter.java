@@ -0,0 +1,46 @@
+package unibz.shapes.valid.rule;
+
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.global.RuleSink;
+import unibz.shapes.core.global.TermDictionary;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Only passes on the rules whose head is about one of the given focus nodes.
+ * <p>
+ * All rules grounded for the queries of a shape have the focus node of the solution mapping as the argument of their head.
+ * So if the only relevant atoms for a shape are about these nodes (see getFocusNodes in RuleBasedValidation),
+ * the other solution mappings can be dropped, without restricting the query itself
+ * (e.g. if there are too many nodes for a VALUES block, or so that the query can be shared between chunks of targets).
+ * <p>
+ * Thread-safe if the wrapped sink is.
+ */
+class FocusNodeFilter implements RuleSink {
+
+    private final BitSet nodeIds;
+    private final RuleSink ruleSink;
+    private final LongAdder droppedRules;
+
+    FocusNodeFilter(Collection<String> focusNodes, RuleSink ruleSink) {
+        this.nodeIds = new BitSet();
+        focusNodes.forEach(n -> nodeIds.set(TermDictionary.getNodes().encode(n)));
+        this.ruleSink = ruleSink;
+        this.droppedRules = new LongAdder();
+    }
+
+    @Override
+    public void addRule(long head, long[] body) {
+        if (nodeIds.get(Literal.decode(head).getNodeId())) {
+            ruleSink.addRule(head, body);
+        } else {
+            droppedRules.increment();
+        }
+    }
+
+    long getDroppedRuleNumber() {
+        return droppedRules.sum();
+    }
+}
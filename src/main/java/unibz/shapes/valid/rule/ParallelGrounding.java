@@ -0,0 +1,156 @@
+package unibz.shapes.valid.rule;
+
+import org.eclipse.rdf4j.query.BindingSet;
+import unibz.shapes.core.GroundingPlan;
+import unibz.shapes.core.global.RuleSink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Grounds the solution mappings of a query on a pool of workers, into a rule sink which supports concurrent additions
+ * (e.g. a StripedRuleMap).
+ * <p>
+ * Solution mappings are buffered by the thread which receives them, and each full batch is grounded by a worker.
+ * The number of pending batches is bounded (2 per worker): above it, the receiving thread waits,
+ * so that buffered solution mappings do not grow with the size of the result.
+ * <p>
+ * Either finish or cancel must be called once all solution mappings have been received (or if the query failed).
+ * <p>
+ * Not thread-safe (solution mappings are received by a single thread).
+ */
+class ParallelGrounding implements Consumer<BindingSet> {
+
+    private static final int BATCH_SIZE = 1024;
+
+    private final GroundingPlan plan;
+    private final RuleSink ruleSink;
+    private final ExecutorService executor;
+    private final Semaphore pendingBatches;
+    private final List<Future<?>> futures;
+    private List<BindingSet> batch;
+    // read by workers before grounding a batch
+    private volatile boolean cancelled;
+
+    private final AtomicLong workTime;
+    private long waitTime;
+    private long start;
+    private long end;
+
+    ParallelGrounding(GroundingPlan plan, RuleSink ruleSink, ExecutorService executor, int workers) {
+        this.plan = plan;
+        this.ruleSink = ruleSink;
+        this.executor = executor;
+        this.pendingBatches = new Semaphore(2 * workers);
+        this.futures = new ArrayList<>();
+        this.batch = new ArrayList<>(BATCH_SIZE);
+        this.workTime = new AtomicLong();
+    }
+
+    @Override
+    public void accept(BindingSet bs) {
+        if (futures.isEmpty() && batch.isEmpty()) {
+            start = System.nanoTime();
+        }
+        batch.add(bs);
+        if (batch.size() == BATCH_SIZE) {
+            long waitStart = System.nanoTime();
+            submitBatch();
+            waitTime += System.nanoTime() - waitStart;
+        }
+    }
+
+    private void submitBatch() {
+        List<BindingSet> rows = batch;
+        batch = new ArrayList<>(BATCH_SIZE);
+        try {
+            pendingBatches.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        futures.add(executor.submit(() -> {
+            try {
+                if (cancelled) {
+                    return;
+                }
+                long groundingStart = System.nanoTime();
+                rows.forEach(plan.grounder(ruleSink));
+                workTime.addAndGet(System.nanoTime() - groundingStart);
+            } finally {
+                pendingBatches.release();
+            }
+        }));
+    }
+
+    /**
+     * Grounds the remaining solution mappings, and waits until all batches are grounded
+     */
+    void finish() {
+        if (!batch.isEmpty()) {
+            submitBatch();
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        end = System.nanoTime();
+    }
+
+    /**
+     * Batches which are not grounded yet are skipped, and batches being grounded are waited for,
+     * so that no rule is added to the sink once this method has returned
+     * (e.g. if the evaluation of the query failed, and the sink is discarded or reused).
+     * Failures of workers are ignored, so that this method does not hide the failure which caused the cancellation.
+     * If the thread is interrupted, it stops waiting (and keeps its interrupt status).
+     * Does nothing once finish has returned.
+     */
+    void cancel() {
+        cancelled = true;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // the failure of the query (or of finish) is reported instead
+            }
+        }
+    }
+
+    /**
+     * Time (in ms) from the first solution mapping to the end of grounding
+     */
+    long getElapsedTime() {
+        return futures.isEmpty() ?
+                0 :
+                (end - start) / 1_000_000;
+    }
+
+    /**
+     * Grounding time (in ms) summed over workers
+     */
+    long getWorkTime() {
+        return workTime.get() / 1_000_000;
+    }
+
+    /**
+     * Time (in ms) the receiving thread waited for workers while receiving solution mappings (excluding finish)
+     */
+    long getWaitTime() {
+        return waitTime / 1_000_000;
+    }
+}
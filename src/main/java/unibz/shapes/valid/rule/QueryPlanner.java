@@ -0,0 +1,200 @@
+package unibz.shapes.valid.rule;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.eclipse.rdf4j.model.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import unibz.shapes.core.Query;
+import unibz.shapes.endpoint.QueryEvaluation;
+import unibz.shapes.endpoint.SPARQLEndpoint;
+import unibz.shapes.shape.Shape;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Orders the focus shapes of a depth, and the queries of each shape, by expected benefit per millisecond.
+ * <p>
+ * The benefit of a shape is the number of atoms for this shape which may still decide a target:
+ * remaining targets (for a target shape) and body atoms of the remaining rules.
+ * <p>
+ * The cost of a query (in ms) is estimated with, by order of preference:
+ * - a previous evaluation of the same query (e.g. for another chunk of targets),
+ * - its result in the in-memory query cache (replayed without accessing the endpoint),
+ * - a COUNT probe (if enabled), multiplied by the average time per solution mapping observed so far
+ * (the probes of a plan are evaluated concurrently if an executor is provided),
+ * - the average time of the queries observed so far.
+ * <p>
+ * Thread-safe (queries may be planned and observed by concurrent chunks).
+ */
+class QueryPlanner {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryPlanner.class);
+
+    // minimal cost of a query (also the cost of a cached one)
+    private static final double MIN_QUERY_COST = 1;
+    // before any query has been observed
+    private static final double DEFAULT_MS_PER_SOLUTION_MAPPING = 0.01;
+
+    private final SPARQLEndpoint endpoint;
+    private final boolean countProbes;
+    // query id -> execution time (ms)
+    private final Map<String, Long> observedTimes;
+    // query id -> number of solution mappings (or -1 if the probe failed)
+    private final Map<String, Integer> probedCardinalities;
+    private final LongAdder observedTime;
+    private final LongAdder observedSolutionMappings;
+    private final LongAdder observedQueries;
+    private final LongAdder probes;
+
+    QueryPlanner(SPARQLEndpoint endpoint, boolean countProbes) {
+        this.endpoint = endpoint;
+        this.countProbes = countProbes;
+        this.observedTimes = new ConcurrentHashMap<>();
+        this.probedCardinalities = new ConcurrentHashMap<>();
+        this.observedTime = new LongAdder();
+        this.observedSolutionMappings = new LongAdder();
+        this.observedQueries = new LongAdder();
+        this.probes = new LongAdder();
+    }
+
+    /**
+     * Evaluations from the cache are not representative of the cost of a query, and are ignored
+     */
+    void record(QueryEvaluation eval, long groundingWaitTime) {
+        if (eval.isFromCache()) {
+            return;
+        }
+        long ms = eval.getExecTime().toMillis() - groundingWaitTime;
+        observedTimes.put(eval.getQueryName(), ms);
+        observedTime.add(ms);
+        observedSolutionMappings.add(eval.getNumberOfSolutionMappings());
+        observedQueries.increment();
+    }
+
+    /**
+     * Returns the queries of each shape, with shapes and queries in evaluation order.
+     * Shapes are sorted by decreasing benefit per ms, then by increasing cost, and queries by increasing cost.
+     *
+     * @param atomCounts for each predicate, number of atoms which may still decide a target
+     * @param executor   if present, used to evaluate the COUNT probes of the plan concurrently
+     *                   (must not be needed by the calling thread to complete)
+     */
+    ImmutableMap<Shape, ImmutableList<Query>> plan(ImmutableMap<Shape, ImmutableList<Query>> queries, Map<String, Long> atomCounts,
+                                                   Optional<ExecutorService> executor) {
+        if (countProbes && executor.isPresent()) {
+            runProbes(queries.values().stream()
+                    .flatMap(qs -> qs.stream())
+                    .filter(this::needsProbe)
+                    .collect(ImmutableCollectors.toList()), executor.get());
+        }
+        Map<Query, Double> queryCosts = new IdentityHashMap<>();
+        queries.values().forEach(qs -> qs.forEach(q -> queryCosts.put(q, estimateCost(q))));
+        Map<Shape, Double> shapeCosts = queries.keySet().stream()
+                .collect(ImmutableCollectors.toMap(
+                        s -> s,
+                        s -> queries.get(s).stream()
+                                .mapToDouble(queryCosts::get)
+                                .sum()
+                ));
+        return queries.keySet().stream()
+                .sorted(Comparator
+                        .comparing((Shape s) -> -atomCounts.getOrDefault(s.getId(), 0L) / Math.max(MIN_QUERY_COST, shapeCosts.get(s)))
+                        .thenComparing(shapeCosts::get)
+                        .thenComparing(Shape::getId))
+                .collect(ImmutableCollectors.toMap(
+                        s -> s,
+                        s -> queries.get(s).stream()
+                                .sorted(Comparator.comparing(queryCosts::get))
+                                .collect(ImmutableCollectors.toList())
+                ));
+    }
+
+    private boolean isObservedOrCached(Query q) {
+        return observedTimes.containsKey(q.getId()) ||
+                endpoint.getCache().flatMap(c -> c.getCachedRowNumber(q.getSparql())).isPresent();
+    }
+
+    private boolean needsProbe(Query q) {
+        return !probedCardinalities.containsKey(q.getId()) && !isObservedOrCached(q);
+    }
+
+    /**
+     * Evaluates the probes on the executor, and waits for all of them
+     */
+    private void runProbes(ImmutableList<Query> queries, ExecutorService executor) {
+        List<Future<?>> futures = new ArrayList<>(queries.size());
+        queries.forEach(q -> futures.add(executor.submit(() -> probe(q))));
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    private double estimateCost(Query q) {
+        Long observed = observedTimes.get(q.getId());
+        if (observed != null) {
+            return Math.max(MIN_QUERY_COST, observed);
+        }
+        if (endpoint.getCache().flatMap(c -> c.getCachedRowNumber(q.getSparql())).isPresent()) {
+            return MIN_QUERY_COST;
+        }
+        long queryNumber = observedQueries.sum();
+        if (countProbes) {
+            Optional<Integer> cardinality = probe(q);
+            if (cardinality.isPresent()) {
+                double msPerSolutionMapping = observedSolutionMappings.sum() == 0 ?
+                        DEFAULT_MS_PER_SOLUTION_MAPPING :
+                        (double) observedTime.sum() / observedSolutionMappings.sum();
+                return MIN_QUERY_COST + cardinality.get() * msPerSolutionMapping;
+            }
+        }
+        return queryNumber == 0 ?
+                MIN_QUERY_COST :
+                Math.max(MIN_QUERY_COST, (double) observedTime.sum() / queryNumber);
+    }
+
+    private Optional<Integer> probe(Query q) {
+        Integer cardinality = probedCardinalities.get(q.getId());
+        if (cardinality == null) {
+            cardinality = runProbe(q);
+            probedCardinalities.put(q.getId(), cardinality);
+        }
+        return cardinality < 0 ?
+                Optional.empty() :
+                Optional.of(cardinality);
+    }
+
+    private int runProbe(Query q) {
+        probes.increment();
+        try {
+            QueryEvaluation eval = endpoint.runQuery(q.getId() + "_count", q.getCountQuery());
+            return eval.getBindingSets().stream()
+                    .map(b -> b.getValue("count"))
+                    .filter(v -> v != null)
+                    .map(Value::stringValue)
+                    .map(Integer::parseInt)
+                    .findFirst()
+                    .orElse(-1);
+        } catch (RuntimeException e) {
+            log.warn("Count probe failed for query " + q.getId() + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    int getProbeNumber() {
+        return probes.intValue();
+    }
+}
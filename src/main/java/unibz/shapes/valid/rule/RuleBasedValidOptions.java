@@ -0,0 +1,213 @@
+package unibz.shapes.valid.rule;
+
+import unibz.shapes.valid.result.ResultSink;
+import unibz.shapes.valid.rule.result.RuleBasedInvalidTargetResult;
+import unibz.shapes.valid.rule.result.RuleBasedValidTargetResult;
+
+import java.util.Optional;
+
+/**
+ * Optional settings of a rule-based validation (defaults are used for unset values).
+ */
+public class RuleBasedValidOptions {
+
+    public static final int DEFAULT_MAX_FOCUS_NODES = 100000;
+    public static final int DEFAULT_MAX_QUERY_LENGTH = 8000;
+
+    private Optional<Integer> maxInFlight = Optional.empty();
+    private Optional<Integer> maxQueryLength = Optional.empty();
+    private int maxFocusNodes = DEFAULT_MAX_FOCUS_NODES;
+    private boolean compactRuleMap = false;
+    private Optional<Long> memoryBudget = Optional.empty();
+    private Optional<Integer> chunkSize = Optional.empty();
+    private int chunkWorkers = 1;
+    private Optional<ResultSink<? super RuleBasedValidTargetResult, ? super RuleBasedInvalidTargetResult>> resultSink = Optional.empty();
+    private boolean componentScheduling = false;
+    private int saturationWorkers = 1;
+    private int groundingWorkers = 1;
+    private boolean countProbes = false;
+
+    /**
+     * Maximal number of queries evaluated simultaneously (1 for sequential evaluation).
+     * Defaults to the pool size of the endpoint.
+     */
+    public Optional<Integer> getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public RuleBasedValidOptions setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("The maximal number of simultaneous queries must be positive");
+        }
+        this.maxInFlight = Optional.of(maxInFlight);
+        return this;
+    }
+
+    /**
+     * Queries are restricted to the nodes that may still be relevant (with VALUES blocks),
+     * split into batches so that each query has at most this length in characters (DEFAULT_MAX_QUERY_LENGTH if empty):
+     * remaining targets for target shapes, and nodes reached from the previous depth for referenced shapes.
+     * With chunks of targets, queries are only restricted if this length is set
+     * (otherwise unrestricted results are shared between chunks, see RuleBasedValidation.validateChunks).
+     */
+    public Optional<Integer> getMaxQueryLength() {
+        return maxQueryLength;
+    }
+
+    public RuleBasedValidOptions setMaxQueryLength(int maxQueryLength) {
+        if (maxQueryLength < 1) {
+            throw new IllegalArgumentException("The maximal query length must be positive");
+        }
+        this.maxQueryLength = Optional.of(maxQueryLength);
+        return this;
+    }
+
+    /**
+     * Maximal number of focus nodes queries are restricted to.
+     * Above it, queries are not restricted, and the solution mappings about other nodes are dropped when they are received.
+     */
+    public int getMaxFocusNodes() {
+        return maxFocusNodes;
+    }
+
+    public RuleBasedValidOptions setMaxFocusNodes(int maxFocusNodes) {
+        this.maxFocusNodes = maxFocusNodes;
+        return this;
+    }
+
+    /**
+     * If true, the rules grounded for a query are staged in primitive arrays (see CompactRuleMap), instead of a HashMap.
+     * Rules are only staged with parallel queries or several grounding workers:
+     * otherwise they are grounded directly into the saturation engine (see Saturator).
+     */
+    public boolean isCompactRuleMap() {
+        return compactRuleMap;
+    }
+
+    public RuleBasedValidOptions setCompactRuleMap(boolean compactRuleMap) {
+        this.compactRuleMap = compactRuleMap;
+        return this;
+    }
+
+    /**
+     * If present, estimated size (in bytes) of the rules kept in memory, above which rules are spilled to disk
+     * (except for the ones produced by the shapes of the current depth)
+     */
+    public Optional<Long> getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public RuleBasedValidOptions setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("The memory budget cannot be negative");
+        }
+        this.memoryBudget = Optional.of(memoryBudget);
+        return this;
+    }
+
+    /**
+     * If present, targets are validated by chunks of this size, each with a fresh evaluation state
+     * (query results are shared between chunks through the caches of the endpoint)
+     */
+    public Optional<Integer> getChunkSize() {
+        return chunkSize;
+    }
+
+    public RuleBasedValidOptions setChunkSize(int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("The chunk size must be positive");
+        }
+        this.chunkSize = Optional.of(chunkSize);
+        return this;
+    }
+
+    /**
+     * Maximal number of chunks of targets validated simultaneously
+     */
+    public int getChunkWorkers() {
+        return chunkWorkers;
+    }
+
+    public RuleBasedValidOptions setChunkWorkers(int chunkWorkers) {
+        if (chunkWorkers < 1) {
+            throw new IllegalArgumentException("The number of chunk workers must be positive");
+        }
+        this.chunkWorkers = chunkWorkers;
+        return this;
+    }
+
+    /**
+     * Receives target results as they are decided.
+     * Defaults to an in-memory result set (RuleBasedResultSet).
+     * With a sink which does not keep results (e.g. CountingResultSink), validation is run with RuleBasedValidation.execToSink.
+     */
+    public Optional<ResultSink<? super RuleBasedValidTargetResult, ? super RuleBasedInvalidTargetResult>> getResultSink() {
+        return resultSink;
+    }
+
+    public RuleBasedValidOptions setResultSink(ResultSink<? super RuleBasedValidTargetResult, ? super RuleBasedInvalidTargetResult> resultSink) {
+        this.resultSink = Optional.of(resultSink);
+        return this;
+    }
+
+    /**
+     * If true, shapes are evaluated bottom-up, by strongly connected component of the dependency graph
+     * (instead of top-down from the target shapes, by depth).
+     * Rules then only accumulate within recursive components,
+     * but queries for referenced shapes cannot be restricted to the nodes reached from the target shapes.
+     */
+    public boolean isComponentScheduling() {
+        return componentScheduling;
+    }
+
+    public RuleBasedValidOptions setComponentScheduling(boolean componentScheduling) {
+        this.componentScheduling = componentScheduling;
+        return this;
+    }
+
+    /**
+     * Number of threads propagating independent components of the ground rules during saturation
+     * (1 for sequential saturation)
+     */
+    public int getSaturationWorkers() {
+        return saturationWorkers;
+    }
+
+    public RuleBasedValidOptions setSaturationWorkers(int saturationWorkers) {
+        if (saturationWorkers < 1) {
+            throw new IllegalArgumentException("The number of saturation workers must be positive");
+        }
+        this.saturationWorkers = saturationWorkers;
+        return this;
+    }
+
+    /**
+     * Number of threads grounding the solution mappings of a query (1 for grounding by the thread receiving them).
+     * With several workers, rules are grounded into a StripedRuleMap (of hash or compact rule maps, see isCompactRuleMap).
+     */
+    public int getGroundingWorkers() {
+        return groundingWorkers;
+    }
+
+    public RuleBasedValidOptions setGroundingWorkers(int groundingWorkers) {
+        if (groundingWorkers < 1) {
+            throw new IllegalArgumentException("The number of grounding workers must be positive");
+        }
+        this.groundingWorkers = groundingWorkers;
+        return this;
+    }
+
+    /**
+     * If true, the size of the result of a query is estimated with a COUNT query (once per query)
+     * before ordering queries, unless it can be estimated from a previous evaluation or from the query cache
+     * (see QueryPlanner)
+     */
+    public boolean isCountProbes() {
+        return countProbes;
+    }
+
+    public RuleBasedValidOptions setCountProbes(boolean countProbes) {
+        this.countProbes = countProbes;
+        return this;
+    }
+}
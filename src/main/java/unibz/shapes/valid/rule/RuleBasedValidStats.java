@@ -1,27 +1,85 @@
 package unibz.shapes.valid.rule;
 
+import com.google.common.collect.ImmutableList;
+import unibz.shapes.endpoint.PersistentQueryResultCache;
+import unibz.shapes.endpoint.QueryEvaluation;
+import unibz.shapes.endpoint.QueryResultCache;
 import unibz.shapes.util.Output;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * Thread-safe (targets may be validated by concurrent chunks).
+ */
 public class RuleBasedValidStats {
 
         void writeAll(Output statsOutput) {
             statsOutput.write("targets:\n" + initialTargets);
             statsOutput.write("max number of solution mappings for a query:\n" + maxSolutionMappings);
             statsOutput.write("total number of solution mappings:\n" + totalSolutionMappings);
-            statsOutput.write("max number of rules in memory:\n" + maxRuleNumber);
+            statsOutput.write("max number of rules in the saturation engine:\n" + maxRuleNumber);
+            statsOutput.write("estimated saturation engine size (bytes) for the max number of rules:\n" + ruleMapBytesAtMaxRuleNumber);
+            statsOutput.write("estimated bytes per rule in the saturation engine:\n" + (maxRuleNumber == 0 ?
+                    0 :
+                    ruleMapBytesAtMaxRuleNumber / maxRuleNumber));
+            statsOutput.write("max number of rules staged for a query:\n" + maxStagedRuleNumber);
+            statsOutput.write("estimated staged rule map size (bytes) for the max number of staged rules:\n" + stagedBytesAtMaxStagedRuleNumber);
+            statsOutput.write("estimated bytes per staged rule:\n" + (maxStagedRuleNumber == 0 ?
+                    0 :
+                    stagedBytesAtMaxStagedRuleNumber / maxStagedRuleNumber));
+            statsOutput.write("rules spilled to disk (bytes):\n" + spilledBytes);
+            statsOutput.write("number of spilled rule segments paged in:\n" + pageIns);
+            statsOutput.write("number of rules dropped (focus node outside of the frontier of an unrestricted query):\n" + droppedRules);
+            statsOutput.write("max spill file size (bytes):\n" + maxSpillFileSize);
             statsOutput.write("number of queries:\n" + numberOfQueries);
+            statsOutput.write("number of queries skipped (all targets decided):\n" + skippedQueries);
+            statsOutput.write("number of count probes:\n" + countProbes);
             statsOutput.write("max exec time for a query:\n" + maxQueryExectime);
             statsOutput.write("total query exec time:\n" + totalQueryExectime);
             statsOutput.write("max grounding time for a query:\n" + maxGroundingTime);
             statsOutput.write("total grounding time:\n" + totalGroundingTime);
+            statsOutput.write("grounding throughput (solution mappings/s):\n" + (totalGroundingTime == 0 ?
+                    0 :
+                    1000L * totalSolutionMappings / totalGroundingTime));
+            statsOutput.write("grounding workers:\n" + groundingWorkers);
+            statsOutput.write("grounding throughput per worker (solution mappings/s):\n" + (totalGroundingWorkTime == 0 ?
+                    0 :
+                    1000L * totalSolutionMappings / totalGroundingWorkTime));
             statsOutput.write("max saturation time:\n" + maxSaturationTime);
             statsOutput.write("total saturation time:\n" + totalSaturationTime);
             statsOutput.write("total time:\n" + totalTime);
+            statsOutput.write("number of shapes with restricted queries:\n" + restrictedShapes);
+            statsOutput.write("total number of focus nodes in restricted queries:\n" + totalFocusNodes);
+            statsOutput.write("max time to first row for a query:\n" + maxTimeToFirstRow);
+            statsOutput.write("time to first row (ms) and rows/s per query:\n" + String.join("\n", queryThroughput));
+            statsOutput.write("non-consumer time (ms, i.e. evaluation, transfer and parsing) and number of solution mappings per result format:\n" + nonConsumerTimePerFormat.entrySet().stream()
+                    .map(e -> e.getKey() + ": " + e.getValue()[0] + ", " + e.getValue()[1])
+                    .collect(Collectors.joining("\n")));
+            statsOutput.write("query cache hits:\n" + cacheHits);
+            statsOutput.write("query cache misses:\n" + cacheMisses);
+            statsOutput.write("query cache bytes saved:\n" + cacheBytesSaved);
+            statsOutput.write("query cache look-ups which waited for a concurrent evaluation:\n" + cacheWaits);
+            statsOutput.write("persistent query cache hits:\n" + persistentCacheHits);
+            statsOutput.write("persistent query cache misses:\n" + persistentCacheMisses);
+            statsOutput.write("connection reuse counts:\n" + connectionReuseCounts.stream()
+                    .map(String::valueOf)
+                    .collect(Collectors.joining(", ")));
         }
 
         private int initialTargets = 0;
 
         int maxRuleNumber = 0;
+        private long ruleMapBytesAtMaxRuleNumber = 0;
+        private int maxStagedRuleNumber = 0;
+        private long stagedBytesAtMaxStagedRuleNumber = 0;
+        private long spilledBytes = 0;
+        private int pageIns = 0;
+        private long maxSpillFileSize = 0;
+        private long droppedRules = 0;
         private int totalSolutionMappings = 0;
         private int maxSolutionMappings = 0;
 
@@ -29,24 +87,57 @@ public class RuleBasedValidStats {
         private long maxQueryExectime = 0;
         private long totalGroundingTime = 0;
         private long maxGroundingTime = 0;
+        private long totalGroundingWorkTime = 0;
+        private int groundingWorkers = 1;
         private long totalSaturationTime = 0;
         private long maxSaturationTime = 0;
         private int numberOfQueries = 0;
+        private int skippedQueries = 0;
+        private int countProbes = 0;
+        private long maxTimeToFirstRow = 0;
+        private int restrictedShapes = 0;
+        private long totalFocusNodes = 0;
+        private final List<String> queryThroughput = new ArrayList<>();
+        // result format -> (total non-consumer time, total number of solution mappings)
+        private final Map<String, long[]> nonConsumerTimePerFormat = new TreeMap<>();
 
         private long totalTime = 0;
-
-        void recordInitialTargets(int k) {
+        private ImmutableList<Integer> connectionReuseCounts = ImmutableList.of();
+        private int cacheHits = 0;
+        private int cacheMisses = 0;
+        private long cacheBytesSaved = 0;
+        private int cacheWaits = 0;
+        private int persistentCacheHits = 0;
+        private int persistentCacheMisses = 0;
+
+        synchronized void recordInitialTargets(int k) {
             initialTargets = k;
         }
 
-        void recordGroundingTime(long ms) {
+        /**
+         * Elapsed time, and time summed over grounding workers
+         */
+        synchronized void recordGroundingTime(long ms, long workMs) {
             if (ms > maxGroundingTime) {
                 maxGroundingTime = ms;
             }
             totalGroundingTime += ms;
+            totalGroundingWorkTime += workMs;
+        }
+
+        synchronized void recordSkippedQueries(int k) {
+            skippedQueries += k;
+        }
+
+        synchronized void recordCountProbes(int k) {
+            countProbes = k;
+        }
+
+        synchronized void recordGroundingWorkers(int k) {
+            groundingWorkers = k;
         }
 
-        void recordQueryExecTime(long ms) {
+        synchronized void recordQueryExecTime(long ms) {
             if (ms > maxQueryExectime) {
                 maxQueryExectime = ms;
             }
@@ -54,20 +145,43 @@ public class RuleBasedValidStats {
 
         }
 
-        void recordSaturationTime(long ms) {
+        synchronized void recordSaturationTime(long ms) {
             if (ms > maxSaturationTime) {
                 maxSaturationTime = ms;
             }
             totalSaturationTime += ms;
         }
 
-        void recordNumberOfRules(int k) {
+        synchronized void recordNumberOfRules(int k, long bytes) {
             if (k > maxRuleNumber) {
                 maxRuleNumber = k;
+                ruleMapBytesAtMaxRuleNumber = bytes;
+            }
+        }
+
+        /**
+         * Rules grounded for a query into a rule map of its own (parallel queries or grounding workers)
+         */
+        synchronized void recordStagedRules(int k, long bytes) {
+            if (k > maxStagedRuleNumber) {
+                maxStagedRuleNumber = k;
+                stagedBytesAtMaxStagedRuleNumber = bytes;
             }
         }
 
-        void recordNumberOfSolutionMappings(int k) {
+        synchronized void recordDroppedRules(long k) {
+            droppedRules += k;
+        }
+
+        synchronized void recordSpill(long bytes, int pageIns, long fileSize) {
+            this.spilledBytes += bytes;
+            this.pageIns += pageIns;
+            if (fileSize > maxSpillFileSize) {
+                maxSpillFileSize = fileSize;
+            }
+        }
+
+        synchronized void recordNumberOfSolutionMappings(int k) {
             if (k > maxSolutionMappings) {
                 maxSolutionMappings = k;
             }
@@ -78,11 +192,50 @@ public class RuleBasedValidStats {
 //
 //        }
 
-        void recordTotalTime(long ms) {
+        synchronized void recordTotalTime(long ms) {
             totalTime = ms;
         }
 
-        void recordQuery() {
+        synchronized void recordQuery() {
             numberOfQueries++;
         }
+
+        synchronized void recordQueryThroughput(QueryEvaluation eval) {
+            long timeToFirstRow = eval.getTimeToFirstRow()
+                    .map(d -> d.toMillis())
+                    .orElse(-1L);
+            if (timeToFirstRow > maxTimeToFirstRow) {
+                maxTimeToFirstRow = timeToFirstRow;
+            }
+            String format = eval.isFromCache() ?
+                    "cache" :
+                    eval.getResultFormat().orElse("default");
+            long[] formatStats = nonConsumerTimePerFormat.computeIfAbsent(format, f -> new long[2]);
+            formatStats[0] += eval.getNonConsumerTime().toMillis();
+            formatStats[1] += eval.getNumberOfSolutionMappings();
+            queryThroughput.add(eval.getQueryName() + ": " +
+                    (timeToFirstRow < 0 ? "-" : timeToFirstRow) + ", " +
+                    String.format("%.1f", eval.getRowsPerSecond()));
+        }
+
+        synchronized void recordRestrictedShape(int focusNodes) {
+            restrictedShapes++;
+            totalFocusNodes += focusNodes;
+        }
+
+        synchronized void recordQueryCache(QueryResultCache cache) {
+            cacheHits = cache.getHits();
+            cacheMisses = cache.getMisses();
+            cacheBytesSaved = cache.getBytesSaved();
+            cacheWaits = cache.getWaits();
+        }
+
+        synchronized void recordPersistentQueryCache(PersistentQueryResultCache cache) {
+            persistentCacheHits = cache.getHits();
+            persistentCacheMisses = cache.getMisses();
+        }
+
+        synchronized void recordConnectionReuseCounts(ImmutableList<Integer> counts) {
+            connectionReuseCounts = counts;
+        }
 }
@@ -1,30 +1,54 @@
 package unibz.shapes.valid.rule;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
-import org.eclipse.rdf4j.query.BindingSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.eclipse.rdf4j.model.IRI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import unibz.shapes.core.GroundingPlan;
 import unibz.shapes.core.Literal;
 import unibz.shapes.core.Query;
 import unibz.shapes.core.RulePattern;
 import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.RuleSink;
+import unibz.shapes.core.global.TermDictionary;
+import unibz.shapes.core.global.impl.CompactRuleMap;
+import unibz.shapes.core.global.impl.HashRuleMap;
+import unibz.shapes.core.global.impl.StripedRuleMap;
 import unibz.shapes.endpoint.QueryEvaluation;
 import unibz.shapes.endpoint.SPARQLEndpoint;
-import unibz.shapes.shape.ConstraintConjunction;
+import unibz.shapes.shape.DependencyGraph;
 import unibz.shapes.shape.Schema;
 import unibz.shapes.shape.Shape;
 import unibz.shapes.util.ImmutableCollectors;
 import unibz.shapes.util.Output;
+import unibz.shapes.valid.result.ResultCounts;
 import unibz.shapes.valid.result.ResultSet;
+import unibz.shapes.valid.result.ResultSink;
 import unibz.shapes.valid.Validation;
+import unibz.shapes.valid.rule.result.RuleBasedInvalidTargetResult;
 import unibz.shapes.valid.rule.result.RuleBasedResultSet;
+import unibz.shapes.valid.rule.result.RuleBasedValidTargetResult;
 
 import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static unibz.shapes.util.Output.Level.DEBUG;
 
 public class RuleBasedValidation implements Validation {
 
@@ -39,10 +63,56 @@ public class RuleBasedValidation implements Validation {
     private final Output invalidTargetsOuput;
     private final Output statsOutput;
     private final RuleBasedValidStats stats;
-    private final RuleBasedResultSet resultSet;
+    private final ResultSink<? super RuleBasedValidTargetResult, ? super RuleBasedInvalidTargetResult> resultSink;
+    // maximal number of queries evaluated simultaneously (1 for sequential evaluation)
+    private final int maxInFlight;
+    private final Optional<Integer> maxQueryLength;
+    private final int maxFocusNodes;
+    private final Supplier<RuleMap> ruleMapFactory;
+    private final Optional<Long> memoryBudget;
+    private final Optional<Integer> chunkSize;
+    private final int chunkWorkers;
+    private final boolean componentScheduling;
+    private final int saturationWorkers;
+    private final int groundingWorkers;
+    private final QueryPlanner planner;
+    // shapes reachable from the target shapes in the dependency graph
+    private final ImmutableSet<Shape> relevantShapes;
+    // for each shape, the shapes that reference it
+    private final ImmutableMap<Shape, ImmutableSet<Shape>> referencingShapes;
+    private ExecutorService queryExecutor;
+    private ForkJoinPool saturationPool;
+    private ExecutorService groundingExecutor;
+    // targets are validated by chunks (see validateChunks)
+    private boolean chunked;
 
     public RuleBasedValidation(SPARQLEndpoint endpoint, Schema schema, Output logOutput, Output validTargetsOuput, Output invalidTargetsOuput, Output statsOuput) {
+        this(endpoint, schema, logOutput, validTargetsOuput, invalidTargetsOuput, statsOuput, new RuleBasedValidOptions());
+    }
+
+    public RuleBasedValidation(SPARQLEndpoint endpoint, Schema schema, Output logOutput, Output validTargetsOuput, Output invalidTargetsOuput, Output statsOuput, RuleBasedValidOptions options) {
+        this.maxInFlight = options.getMaxInFlight().orElse(endpoint.getPoolSize());
+        this.maxQueryLength = options.getMaxQueryLength();
+        this.maxFocusNodes = options.getMaxFocusNodes();
+        this.groundingWorkers = options.getGroundingWorkers();
+        // rule map for the rules staged for a query (parallel queries or grounding workers),
+        // into which rules are grounded concurrently with several grounding workers
+        if (options.isCompactRuleMap()) {
+            this.ruleMapFactory = groundingWorkers > 1 ?
+                    () -> new StripedRuleMap(4 * groundingWorkers, CompactRuleMap::new) :
+                    CompactRuleMap::new;
+        } else {
+            this.ruleMapFactory = groundingWorkers > 1 ?
+                    () -> new StripedRuleMap(4 * groundingWorkers, HashRuleMap::new) :
+                    HashRuleMap::new;
+        }
+        this.memoryBudget = options.getMemoryBudget();
+        this.chunkSize = options.getChunkSize();
+        this.chunkWorkers = options.getChunkWorkers();
+        this.componentScheduling = options.isComponentScheduling();
+        this.saturationWorkers = options.getSaturationWorkers();
         this.endpoint = endpoint;
+        this.planner = new QueryPlanner(endpoint, options.isCountProbes());
         this.schema = schema;
         this.validTargetsOuput = validTargetsOuput;
         this.invalidTargetsOuput = invalidTargetsOuput;
@@ -51,29 +121,85 @@ public class RuleBasedValidation implements Validation {
         targetShapePredicates = targetShapes.stream()
                 .map(Shape::getId)
                 .collect(ImmutableCollectors.toSet());
+        relevantShapes = schema.getDependencyGraph().getReachableShapes(targetShapes);
+        referencingShapes = schema.getShapes().stream()
+                .collect(ImmutableCollectors.toMap(
+                        s -> s,
+                        s -> schema.getShapes().stream()
+                                .filter(r -> schema.getShapesReferencedBy(r).contains(s))
+                                .collect(ImmutableCollectors.toSet())
+                ));
         this.stats = new RuleBasedValidStats();
-        this.resultSet = new RuleBasedResultSet();
+        this.resultSink = options.getResultSink().orElseGet(RuleBasedResultSet::new);
         statsOutput = statsOuput;
 
     }
 
+    /**
+     * Returns the results, kept by the result sink (by default a RuleBasedResultSet).
+     * Fails if the sink does not keep results (e.g. a CountingResultSink): use execToSink instead.
+     */
+    @Override
     public ResultSet exec() {
+        if (!(resultSink instanceof ResultSet)) {
+            throw new IllegalStateException("The result sink does not keep results, use execToSink()");
+        }
+        execToSink();
+        return (ResultSet) resultSink;
+    }
+
+    /**
+     * Pushes the results to the result sink, and returns the number of valid and invalid targets
+     */
+    public ResultCounts execToSink() {
         Instant start = Instant.now();
         logOutput.write("Retrieving targets ...");
         Set<Literal> targets = extractTargetAtoms();
         logOutput.write("\nTargets retrieved.");
         logOutput.write("Number of targets:\n" + targets.size());
         stats.recordInitialTargets(targets.size());
-        validate(
-                0,
-                EvalState.init(targetShapes, targets),
-                targetShapes
-        );
+        if (maxInFlight > 1) {
+            queryExecutor = Executors.newFixedThreadPool(maxInFlight);
+        }
+        if (saturationWorkers > 1) {
+            saturationPool = new ForkJoinPool(saturationWorkers);
+        }
+        if (groundingWorkers > 1) {
+            groundingExecutor = Executors.newFixedThreadPool(
+                    groundingWorkers,
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("grounding-%d")
+                            .build()
+            );
+        }
+        stats.recordGroundingWorkers(groundingWorkers);
+        chunked = chunkSize.isPresent() && targets.size() > chunkSize.get();
+        try {
+            if (chunked) {
+                validateChunks(targets, chunkSize.get());
+            } else {
+                validateTargets(targets);
+            }
+        } finally {
+            if (queryExecutor != null) {
+                queryExecutor.shutdownNow();
+            }
+            if (saturationPool != null) {
+                saturationPool.shutdownNow();
+            }
+            if (groundingExecutor != null) {
+                groundingExecutor.shutdownNow();
+            }
+        }
         Instant finish = Instant.now();
         long elapsed = Duration.between(start, finish).toMillis();
         stats.recordTotalTime(elapsed);
         log.info("Total execution time: " + elapsed);
         logOutput.write("\nMaximal number or rules in memory: " + stats.maxRuleNumber);
+        stats.recordCountProbes(planner.getProbeNumber());
+        stats.recordConnectionReuseCounts(endpoint.getConnectionReuseCounts());
+        endpoint.getCache().ifPresent(stats::recordQueryCache);
+        endpoint.getPersistentCache().ifPresent(stats::recordPersistentQueryCache);
         stats.writeAll(statsOutput);
 
         try {
@@ -84,7 +210,79 @@ public class RuleBasedValidation implements Validation {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        return resultSet;
+        resultSink.close();
+        return resultSink;
+    }
+
+    private void validateTargets(Set<Literal> targets) {
+        EvalState state = EvalState.init(targetShapes, targets, Optional.ofNullable(saturationPool));
+        try {
+            if (componentScheduling) {
+                validateByComponents(state);
+            } else {
+                validate(
+                        0,
+                        state,
+                        targetShapes
+                );
+            }
+        } finally {
+            state.saturator.close();
+        }
+        stats.recordSpill(state.saturator.getSpilledBytes(), state.saturator.getPageIns(), state.saturator.getSpillFileSize());
+    }
+
+    /**
+     * Targets are validated by chunks of (at most) this size, each with its own evaluation state,
+     * so that the number of rules in memory does not depend on the number of targets.
+     * Within a chunk, solution mappings about nodes which are irrelevant to its targets are dropped whenever possible
+     * (see canRestrict and FocusNodeFilter), so queries are not restricted to the chunk (unless a maximal query length is set),
+     * and their results are shared between chunks through the caches of the endpoint
+     * (a query evaluated by a chunk is not evaluated concurrently by another one, see QueryResultCache).
+     * Rules can only be dropped for a shape once all the shapes that reference it have been evaluated,
+     * so for recursive shapes, the rules of a chunk may still be about any node.
+     */
+    private void validateChunks(Set<Literal> targets, int chunkSize) {
+        List<List<Literal>> chunks = Lists.partition(
+                targets.stream()
+                        .sorted(Comparator.comparingLong(Literal::getCode))
+                        .collect(Collectors.toList()),
+                chunkSize
+        );
+        logOutput.write("Validating targets in " + chunks.size() + " chunks");
+        if (!endpoint.getCache().isPresent() && !endpoint.getPersistentCache().isPresent()) {
+            log.warn("No query result cache: queries are evaluated again for each chunk of targets");
+        } else if (!endpoint.getCache().isPresent() && chunkWorkers > 1) {
+            log.warn("No in-memory query result cache: concurrent chunks may evaluate the same query simultaneously");
+        }
+        ExecutorService chunkExecutor = Executors.newFixedThreadPool(
+                chunkWorkers,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("target-chunk-%d")
+                        .build()
+        );
+        try {
+            List<Future<?>> futures = IntStream.range(0, chunks.size())
+                    .mapToObj(i -> chunkExecutor.submit(() -> {
+                        logOutput.write("\nChunk " + i + ": " + chunks.get(i).size() + " targets");
+                        validateTargets(new HashSet<>(chunks.get(i)));
+                    }))
+                    .collect(Collectors.toList());
+            futures.forEach(this::waitFor);
+        } finally {
+            chunkExecutor.shutdownNow();
+        }
+    }
+
+    private void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
     }
 
     private Set<Literal> extractTargetAtoms() {
@@ -102,8 +300,14 @@ public class RuleBasedValidation implements Validation {
         );
         logOutput.elapsed();
         return eval.getBindingSets().stream()
-                .map(b -> b.getBinding("x").getValue().stringValue())
-                .map(i -> new Literal(shape.getId(), i, true))
+                .map(b -> b.getBinding("x").getValue())
+                .map(v -> {
+                    Literal target = new Literal(shape.getId(), v.stringValue(), true);
+                    if (!(v instanceof IRI)) {
+                        TermDictionary.getNodes().markNonIRI(target.getNodeId());
+                    }
+                    return target;
+                })
                 .collect(Collectors.toSet());
     }
 
@@ -116,13 +320,14 @@ public class RuleBasedValidation implements Validation {
     private void validate(int depth, EvalState state, ImmutableSet<Shape> focusShapes) {
 
         // termination condition 1: all targets are validated/violated
-        if (state.remainingTargets.isEmpty()) {
+        if (!state.targets.hasRemaining()) {
             return;
         }
 
-        // termination condition 2: all shapes have been visited
-        if (state.visitedShapes.size() == schema.getShapes().size()) {
-            state.remainingTargets.forEach(t -> registerTarget(t, true, depth, state, "not violated after termination", Optional.empty()));
+        // termination condition 2: all shapes reachable from the target shapes have been visited,
+        // or no other shape may decide the remaining targets
+        if (focusShapes.isEmpty() || state.visitedShapes.containsAll(relevantShapes)) {
+            state.targets.getRemaining().forEach(t -> registerTarget(t, true, depth, state, "not violated after termination", Optional.empty()));
             return;
         }
 
@@ -133,29 +338,103 @@ public class RuleBasedValidation implements Validation {
         validate(depth + 1, state, updateFocusShapes(state, focusShapes));
     }
 
-    private void registerTarget(Literal t, boolean isValid, int depth, EvalState state, String logMessage, Optional<Shape> focusShape) {
-        String log = t.toString() +
+    /**
+     * Components of the dependency graph are validated bottom-up (each one after all the components it references),
+     * one component per depth.
+     * So when the shapes of a non-recursive component are evaluated, all atoms their rules refer to are already decided,
+     * and these rules are resolved (and discarded) by saturation right away.
+     * Rules can only remain within recursive components (and for the shapes that depend on their undecided atoms).
+     * <p>
+     * Each component is evaluated with an engine of its own (see Saturator.carryOver),
+     * which only keeps the undecided rules, and the true atoms of the shapes referenced by this component or the next ones.
+     */
+    private void validateByComponents(EvalState state) {
+        DependencyGraph graph = schema.getDependencyGraph();
+        state.evalPathsMap = getEvalPathsFromTargetShapes();
+        ImmutableList<ImmutableSet<Shape>> components = graph.getStronglyConnectedComponents().stream()
+                .filter(c -> relevantShapes.containsAll(c))
+                .collect(ImmutableCollectors.toList());
+        int depth = 0;
+        for (ImmutableSet<Shape> component : components) {
+            if (!state.targets.hasRemaining()) {
+                return;
+            }
+            carryOver(state, getReferencedPredicates(components.subList(depth, components.size())));
+            boolean recursive = graph.isRecursive(component.iterator().next());
+            logOutput.start("Starting validation of component " + depth + ": " + component.stream()
+                    .map(Shape::getId)
+                    .collect(Collectors.joining(", ")) +
+                    (recursive ? " (recursive)" : ""));
+            validateFocusShapes(state, component, depth);
+            depth++;
+        }
+        int finalDepth = depth;
+        state.targets.getRemaining().forEach(t -> registerTarget(t, true, finalDepth, state, "not violated after termination", Optional.empty()));
+    }
+
+    private ImmutableSet<String> getReferencedPredicates(List<ImmutableSet<Shape>> components) {
+        return components.stream()
+                .flatMap(c -> c.stream())
+                .flatMap(s -> Stream.concat(Stream.of(s), schema.getShapesReferencedBy(s).stream()))
+                .flatMap(s -> s.getPredicates().stream())
+                .collect(ImmutableCollectors.toSet());
+    }
+
+    private void carryOver(EvalState state, ImmutableSet<String> keptPredicates) {
+        Saturator previous = state.saturator;
+        state.saturator = previous.carryOver(keptPredicates);
+        if (state.saturator != previous) {
+            previous.close();
+            logOutput.write(DEBUG, () -> "Rules carried over to the next component: " + state.saturator.getRuleNumber() +
+                    ", estimated size: " + state.saturator.getEstimatedBytes() + " (before: " + previous.getEstimatedBytes() + ")");
+        }
+    }
+
+    /**
+     * For each relevant shape, a shortest path from a target shape
+     */
+    private Map<Shape, EvalPathSet> getEvalPathsFromTargetShapes() {
+        Map<Shape, EvalPathSet> paths = new HashMap<>();
+        targetShapes.forEach(s -> paths.put(s, EvalPathSet.of(ImmutableSet.of(new EvalPath()))));
+        Deque<Shape> toVisit = new ArrayDeque<>(targetShapes);
+        while (!toVisit.isEmpty()) {
+            Shape shape = toVisit.poll();
+            EvalPathSet path = paths.get(shape);
+            schema.getShapesReferencedBy(shape).stream()
+                    .filter(r -> !paths.containsKey(r))
+                    .forEach(r -> {
+                        paths.put(r, path.extend(r));
+                        toVisit.add(r);
+                    });
+        }
+        return paths;
+    }
+
+    // synchronized: targets may be registered by concurrent chunks
+    private synchronized void registerTarget(Literal t, boolean isValid, int depth, EvalState state, String logMessage, Optional<Shape> focusShape) {
+        // only built if the target outputs are enabled
+        Supplier<String> log = () -> t.toString() +
                 ", depth " + depth +
                 (focusShape.map(shape -> ", focus shape " + shape).orElse("")) +
                 ", " + logMessage;
-        ImmutableSet<EvalPath> evalPaths;
+        EvalPathSet evalPaths;
         if (isValid) {
-            validTargetsOuput.write(log);
+            validTargetsOuput.write(DEBUG, log);
             evalPaths = focusShape.isPresent()?
                     state.getEvalPaths(focusShape.get()):
-                    ImmutableSet.of();
-            resultSet.registerValidTarget(t,depth, focusShape, evalPaths);
+                    EvalPathSet.empty();
+            resultSink.registerValidTarget(new RuleBasedValidTargetResult(t, depth, focusShape, evalPaths));
         } else {
-            invalidTargetsOuput.write(log);
+            invalidTargetsOuput.write(DEBUG, log);
             Shape shape = focusShape.orElseThrow(
                     () -> new RuntimeException("A violation result must have a focus shape"));
-            resultSet.registerInvalidTarget(t, depth, shape, state.getEvalPaths(shape));
+            resultSink.registerInvalidTarget(new RuleBasedInvalidTargetResult(t, depth, shape, state.getEvalPaths(shape)));
         }
     }
 
     private ImmutableSet<Shape> updateFocusShapes(EvalState state, ImmutableSet<Shape> focusShapes) {
 
-        ImmutableSet<String> bodyAtomsPred = state.ruleMap.getAllBodyAtoms()
+        ImmutableSet<String> bodyAtomsPred = state.saturator.getAllBodyAtoms()
                 .map(a -> a.getPredicate())
                 .collect(ImmutableCollectors.toSet());
 
@@ -176,220 +455,373 @@ public class RuleBasedValidation implements Validation {
     }
 
     private void saturate(EvalState state, int depth, Shape s) {
-        boolean negated = negateUnMatchableHeads(state, depth, s);
-        boolean inferred = applyRules(state, depth, s);
-        if (negated || inferred) {
-            saturate(state, depth, s);
+        ImmutableList<Literal> decidedTargets = state.saturator.saturate();
+        decidedTargets.forEach(t -> {
+            Literal target = t.getAtom();
+            boolean decided = t.isPos() ?
+                    state.targets.setValid(target) :
+                    state.targets.setInvalid(target);
+            if (!decided) {
+                return;
+            }
+            registerTarget(target, t.isPos(), depth, state, "", Optional.of(s));
+        });
+        if (!decidedTargets.isEmpty()) {
+            logOutput.write(DEBUG, () -> "Remaining targets :" + state.targets.getRemainingNumber());
         }
     }
 
-    private boolean applyRules(EvalState state, int depth, Shape s) {
-        RuleMap retainedRules = new RuleMap();
-        ImmutableList<Literal> freshLiterals = state.ruleMap.entrySet().stream()
-                .map(e -> applyRules(e.getKey(), e.getValue(), state, retainedRules))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(ImmutableCollectors.toList());
-        state.ruleMap = retainedRules;
-        state.assignment.addAll(freshLiterals);
-        if (freshLiterals.isEmpty()) {
-            return false;
+    private void validateFocusShapes(EvalState state, ImmutableSet<Shape> focusShapes, int depth) {
+        // queries are computed before any of them is evaluated (so that sequential and parallel modes evaluate the same queries)
+        ImmutableMap<String, ImmutableList<String>> frontier = getFrontier(state);
+        ImmutableMap<Shape, Optional<ImmutableList<String>>> focusNodes = focusShapes.stream()
+                .collect(ImmutableCollectors.toMap(
+                        s -> s,
+                        s -> getFocusNodes(state, s, frontier)
+                ));
+        ImmutableMap<Shape, ImmutableList<Query>> queries = focusShapes.stream()
+                .collect(ImmutableCollectors.toMap(
+                        s -> s,
+                        s -> getQueries(s, focusNodes.get(s).filter(n -> canRestrict(s, n)))
+                ));
+        // if the queries for a shape cannot be restricted to its focus nodes, rules about other nodes are dropped instead
+        ImmutableMap<Shape, Optional<ImmutableList<String>>> focusNodeFilters = focusShapes.stream()
+                .collect(ImmutableCollectors.toMap(
+                        s -> s,
+                        s -> focusNodes.get(s).filter(n -> !canRestrict(s, n))
+                ));
+        ImmutableMap<Shape, ImmutableList<Query>> plan = planner.plan(queries, getAtomCounts(state), Optional.ofNullable(queryExecutor));
+        // rules for the shapes of this depth are the most likely to be needed soon, so they are not spilled
+        ImmutableSet<String> hotPredicates = focusShapes.stream()
+                .flatMap(s -> s.getPredicates().stream())
+                .collect(ImmutableCollectors.toSet());
+        if (queryExecutor == null) {
+            // rules are grounded directly into the saturation engine (unless they are grounded by several workers)
+            evalShapes(state, plan, depth, hotPredicates, s -> q -> groundingExecutor == null ?
+                    evalQuery(q, s, state.saturator, focusNodeFilters.get(s)) :
+                    evalStagedQuery(q, s, focusNodeFilters.get(s)));
+            return;
+        }
+        // All queries for this depth are issued at once, in the order of the plan (at most maxInFlight of them are evaluated simultaneously).
+        // Each query is grounded into its own rule map, which is then added to the saturation engine,
+        // shape after shape, in the same order as in sequential mode.
+        Map<Query, Future<GroundedQuery>> pending = new IdentityHashMap<>();
+        plan.forEach((s, qs) -> qs.forEach(q ->
+                pending.put(q, queryExecutor.submit(() -> evalStagedQuery(q, s, focusNodeFilters.get(s))))
+        ));
+        if (!evalShapes(state, plan, depth, hotPredicates, s -> q -> getGroundedQuery(pending.get(q)))) {
+            // queries which are already running are not interrupted (their connection can be reused)
+            pending.values().forEach(f -> f.cancel(false));
         }
+    }
 
-        ImmutableSet<Literal> candidateValidTargets = freshLiterals.stream()
-                .filter(a -> targetShapePredicates.contains(a.getPredicate()))
-                .collect(ImmutableCollectors.toSet());
+    /**
+     * Shapes are evaluated in the order of the plan, until all targets are decided.
+     * Returns false if the queries of some shapes were skipped.
+     */
+    private boolean evalShapes(EvalState state, ImmutableMap<Shape, ImmutableList<Query>> plan, int depth, ImmutableSet<String> hotPredicates,
+                               Function<Shape, Function<Query, GroundedQuery>> queryEvaluators) {
+        ImmutableList<Shape> shapes = plan.keySet().asList();
+        for (int i = 0; i < shapes.size(); i++) {
+            if (!state.targets.hasRemaining()) {
+                int skipped = shapes.subList(i, shapes.size()).stream()
+                        .mapToInt(s -> plan.get(s).size())
+                        .sum();
+                logOutput.write(DEBUG, () -> "All targets decided, skipping " + skipped + " queries");
+                stats.recordSkippedQueries(skipped);
+                return false;
+            }
+            Shape s = shapes.get(i);
+            evalShape(state, s, depth, plan.get(s), hotPredicates, queryEvaluators.apply(s));
+        }
+        return true;
+    }
 
-        Map<Boolean, List<Literal>> part1 = state.remainingTargets.stream()
-                .collect(Collectors.partitioningBy(candidateValidTargets::contains));
+    /**
+     * For each predicate, number of atoms which may still decide a target:
+     * remaining targets, and body atoms of the current rules
+     */
+    private Map<String, Long> getAtomCounts(EvalState state) {
+        return Stream.concat(state.targets.getRemaining(), state.saturator.getAllBodyAtoms())
+                .collect(Collectors.groupingBy(
+                        Literal::getPredicate,
+                        Collectors.counting()
+                ));
+    }
 
-        state.remainingTargets = ImmutableSet.copyOf(part1.get(false));
+    private Stream<Query> getQueries(Shape s) {
+        return s.getDisjuncts().stream()
+                .flatMap(d -> Stream.concat(
+                        Stream.of(d.getMinQuery()),
+                        d.getMaxQueries().stream()
+                ));
+    }
 
-//        stats.recordDecidedTargets(part1.get(true).size());
+    private ImmutableList<Query> getQueries(Shape s, Optional<ImmutableList<String>> focusNodes) {
+        if (!focusNodes.isPresent()) {
+            return getQueries(s).collect(ImmutableCollectors.toList());
+        }
+        logOutput.write(DEBUG, () -> "Restricting queries for shape " + s.getId() + " to " + focusNodes.get().size() + " focus nodes");
+        stats.recordRestrictedShape(focusNodes.get().size());
+        return getQueries(s)
+                .flatMap(q -> restrict(q, focusNodes.get(), maxQueryLength.orElse(RuleBasedValidOptions.DEFAULT_MAX_QUERY_LENGTH)))
+                .collect(ImmutableCollectors.toList());
+    }
 
-        Map<Boolean, List<Literal>> part2 = part1.get(true).stream()
-                .collect(Collectors.partitioningBy(Literal::isPos));
+    /**
+     * For each shape name, arguments of the atoms for this shape that may still be relevant:
+     * remaining targets, and arguments of the undecided body atoms of the current rules (nodes reached from the previous depth)
+     */
+    private ImmutableMap<String, ImmutableList<String>> getFrontier(EvalState state) {
+        Map<String, Set<String>> frontier = new HashMap<>();
+        Stream.concat(state.targets.getRemaining(), state.saturator.getUndecidedBodyAtoms())
+                .forEach(a -> frontier.computeIfAbsent(a.getPredicate(), p -> new HashSet<>()).add(a.getArg()));
+        return frontier.entrySet().stream()
+                .collect(ImmutableCollectors.toMap(
+                        Map.Entry::getKey,
+                        e -> e.getValue().stream()
+                                .sorted()
+                                .collect(ImmutableCollectors.toList())
+                ));
+    }
 
-        state.validTargets.addAll(part2.get(true));
-        state.invalidTargets.addAll(part2.get(false));
-        part2.get(true).forEach(t ->
-                registerTarget(t, true, depth, state, "", Optional.of(s))
-        );
-        part2.get(false).forEach(t ->
-                registerTarget(t, false, depth, state, "", Optional.of(s))
-        );
-        logOutput.write("Remaining targets :" + state.remainingTargets.size());
-        return true;
+    /**
+     * Nodes the queries (or the rules grounded) for this shape can be restricted to, if any.
+     * <p>
+     * This is only the case if all shapes that reference this one have already been visited:
+     * then no new atom for this shape can be produced, and the only relevant ones are in the frontier.
+     * In particular, a target shape that no shape references can be restricted to its remaining targets.
+     */
+    private Optional<ImmutableList<String>> getFocusNodes(EvalState state, Shape s, ImmutableMap<String, ImmutableList<String>> frontier) {
+        if (!state.visitedShapes.containsAll(referencingShapes.get(s))) {
+            return Optional.empty();
+        }
+        return Optional.of(frontier.getOrDefault(s.getId(), ImmutableList.of()));
     }
 
-    private Optional<Literal> applyRules(Literal head, Set<ImmutableSet<Literal>> bodies, EvalState state, RuleMap retainedRules) {
-        if (bodies.stream()
-                .anyMatch(b -> applyRule(head, b, state, retainedRules))) {
-//            state.assignment.add(head);
-            return Optional.of(head);
+    /**
+     * If false, the queries for this shape are not restricted, and rules about other nodes are dropped instead (see FocusNodeFilter):
+     * if the frontier is too large (the unrestricted queries are then cheaper),
+     * if one of the nodes is not an IRI (blank nodes and literals cannot appear in a VALUES block),
+     * or with chunks of targets, unless the maximal query length is set (so that results are shared between chunks).
+     * <p>
+     * Restricting with a subquery (instead of a VALUES block) is not supported.
+     */
+    private boolean canRestrict(Shape s, ImmutableList<String> focusNodes) {
+        if (chunked && !maxQueryLength.isPresent()) {
+            return false;
         }
-        return Optional.empty();
+        if (focusNodes.size() > maxFocusNodes) {
+            logOutput.write(DEBUG, () -> "Frontier of shape " + s.getId() + " too large (" + focusNodes.size() + " nodes), queries are not restricted");
+            return false;
+        }
+        return focusNodes.stream().allMatch(TermDictionary.getNodes()::isIRI);
     }
 
-    private boolean applyRule(Literal head, ImmutableSet<Literal> body, EvalState state, RuleMap retainedRules) {
-        if (state.assignment.containsAll(body)) {
-            return true;
+    /**
+     * One query per batch of focus nodes, each batch fitting into the maximal query length
+     */
+    private Stream<Query> restrict(Query q, ImmutableList<String> focusNodes, int maxLength) {
+        int baseLength = q.restrict(q.getId(), ImmutableList.of()).getSparql().length();
+        List<Query> batches = new ArrayList<>();
+        List<String> batch = new ArrayList<>();
+        int length = baseLength;
+        for (String n : focusNodes) {
+            int nodeLength = n.length() + 3;
+            if (!batch.isEmpty() && length + nodeLength > maxLength) {
+                batches.add(q.restrict(q.getId() + "_batch" + batches.size(), batch));
+                batch = new ArrayList<>();
+                length = baseLength;
+            }
+            batch.add(n);
+            length += nodeLength;
         }
-        if (body.stream()
-                .noneMatch(a -> state.assignment.contains(a.getNegation()))) {
-            retainedRules.addRule(head, body);
+        if (!batch.isEmpty()) {
+            batches.add(q.restrict(q.getId() + "_batch" + batches.size(), batch));
         }
-        return false;
+        return batches.stream();
     }
 
-    private void validateFocusShapes(EvalState state, ImmutableSet<Shape> focusShapes, int depth) {
-        focusShapes.forEach(s -> evalShape(state, s, depth));
+    private GroundedQuery getGroundedQuery(Future<GroundedQuery> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
     }
 
-    private void evalShape(EvalState state, Shape s, int depth) {
-        logOutput.write("evaluating queries for shape " + s.getId());
-        s.getDisjuncts().forEach(d -> evalDisjunct(state, d, s));
-        state.evaluatedPredicates.addAll(s.getPredicates());
+    private void evalShape(EvalState state, Shape s, int depth, ImmutableList<Query> queries, ImmutableSet<String> hotPredicates,
+                           Function<Query, GroundedQuery> queryEvaluator) {
+        logOutput.write(DEBUG, () -> "evaluating queries for shape " + s.getId());
+        queries.forEach(q -> {
+            GroundedQuery groundedQuery = queryEvaluator.apply(q);
+            groundedQuery.stagedRules.ifPresent(rules -> {
+                stats.recordStagedRules(rules.getRuleNumber(), rules.getEstimatedBytes());
+                state.saturator.addRules(rules);
+            });
+            recordQuery(groundedQuery);
+        });
+        // atoms for this shape without rule can only be false once all its queries have been grounded
+        state.saturator.setEvaluated(s.getPredicates());
         state.addVisitedShape(s);
         saveRuleNumber(state);
 
-        logOutput.start("saturation ...");
+        logOutput.start(DEBUG, () -> "saturation ...");
         saturate(state, depth, s);
-        stats.recordSaturationTime(logOutput.elapsed());
+        stats.recordSaturationTime(logOutput.elapsed(DEBUG));
+        memoryBudget.ifPresent(b -> spill(state, b, hotPredicates));
 
-        logOutput.write("\nvalid targets: " + state.validTargets.size());
-        logOutput.write("\nInvalid targets: " + state.invalidTargets.size());
-        logOutput.write("\nRemaining targets: " + state.remainingTargets.size());
+        logOutput.write(DEBUG, () -> "\nvalid targets: " + state.targets.getValidNumber());
+        logOutput.write(DEBUG, () -> "\nInvalid targets: " + state.targets.getInvalidNumber());
+        logOutput.write(DEBUG, () -> "\nRemaining targets: " + state.targets.getRemainingNumber());
     }
 
-    private void saveRuleNumber(EvalState state) {
-        int ruleNumber = state.ruleMap.getRuleNumber();
-        logOutput.write("Number of rules " + ruleNumber);
-        stats.recordNumberOfRules(ruleNumber);
-    }
-
-    private void evalDisjunct(EvalState state, ConstraintConjunction d, Shape s) {
-        evalQuery(state, d.getMinQuery(), s);
-        d.getMaxQueries()
-                .forEach(q -> evalQuery(state, q, s));
+    private void spill(EvalState state, long budget, ImmutableSet<String> hotPredicates) {
+        int spilledRules = state.saturator.getSpilledRuleNumber();
+        state.saturator.spill(budget, hotPredicates);
+        if (state.saturator.getSpilledRuleNumber() > spilledRules) {
+            logOutput.write("Memory budget exceeded, spilled rules: " + state.saturator.getSpilledRuleNumber() +
+                    ", estimated size of in-memory rules: " + state.saturator.getEstimatedBytes());
+        }
     }
 
-    private void evalQuery(EvalState state, Query q, Shape s) {
-        logOutput.start("Evaluating query:\n" + q.getSparql());
-        QueryEvaluation eval = endpoint.runQuery(q.getId(), q.getSparql());
-        stats.recordQueryExecTime(logOutput.elapsed());
-        logOutput.write("Number of solution mappings: " + eval.getBindingSets().size());
-        stats.recordNumberOfSolutionMappings(eval.getBindingSets().size());
-        stats.recordQuery();
-        logOutput.start("Grounding rules ...");
-        eval.getBindingSets().forEach(
-                b -> evalBindingSet(state, b, q.getRulePattern(), s.getRulePatterns())
-        );
-        stats.recordGroundingTime(logOutput.elapsed());
+    private void saveRuleNumber(EvalState state) {
+        int ruleNumber = state.saturator.getRuleNumber();
+        logOutput.write(DEBUG, () -> "Number of rules " + ruleNumber);
+        stats.recordNumberOfRules(ruleNumber, state.saturator.getEstimatedBytes());
     }
 
-    private void evalBindingSet(EvalState state, BindingSet bs, RulePattern queryRP, ImmutableSet<RulePattern> shapeRPs) {
-        evalBindingSet(state, bs, queryRP);
-        shapeRPs.forEach(p -> evalBindingSet(state, bs, p));
-
+    /**
+     * Rules are grounded into a rule map of their own (see ruleMapFactory), returned with the evaluation.
+     * May be called concurrently (by different threads).
+     */
+    private GroundedQuery evalStagedQuery(Query q, Shape s, Optional<ImmutableList<String>> focusNodes) {
+        RuleMap ruleMap = ruleMapFactory.get();
+        return evalQuery(q, s, ruleMap, focusNodes).withStagedRules(ruleMap);
     }
 
-    private void evalBindingSet(EvalState state, BindingSet bs, RulePattern pattern) {
-        Set<String> bindingVars = bs.getBindingNames();
-        if (bindingVars.containsAll(pattern.getVariables())) {
-            state.ruleMap.addRule(
-                    pattern.instantiateAtom(pattern.getHead(), bs),
-                    pattern.instantiateBody(bs)
+    /**
+     * If present, only rules about these focus nodes are kept (see FocusNodeFilter).
+     * If grounding workers are used, the sink must support concurrent additions.
+     * May be called concurrently (by different threads, with different sinks).
+     */
+    private GroundedQuery evalQuery(Query q, Shape s, RuleSink ruleSink, Optional<ImmutableList<String>> focusNodes) {
+        // Rules are grounded while solution mappings are received (streaming mode)
+        GroundingPlan plan = GroundingPlan.compile(ImmutableList.<RulePattern>builder()
+                .add(q.getRulePattern())
+                .addAll(s.getRulePatterns())
+                .build());
+        Optional<FocusNodeFilter> filter = focusNodes.map(n -> new FocusNodeFilter(n, ruleSink));
+        RuleSink sink = filter.isPresent() ?
+                filter.get() :
+                ruleSink;
+        GroundedQuery groundedQuery;
+        if (groundingExecutor != null) {
+            ParallelGrounding grounding = new ParallelGrounding(plan, sink, groundingExecutor, groundingWorkers);
+            QueryEvaluation eval;
+            try {
+                eval = endpoint.runQuery(
+                        q.getId(),
+                        q.getSparql(),
+                        grounding
+                );
+                grounding.finish();
+            } finally {
+                // if the query or a worker failed, the remaining batches must not be grounded into the sink afterwards
+                grounding.cancel();
+            }
+            groundedQuery = new GroundedQuery(eval, Optional.empty(), grounding.getElapsedTime(), grounding.getWorkTime(), grounding.getWaitTime());
+        } else {
+            long[] groundingTime = {0};
+            GroundingPlan.Grounder grounder = plan.grounder(sink);
+            QueryEvaluation eval = endpoint.runQuery(
+                    q.getId(),
+                    q.getSparql(),
+                    b -> {
+                        long groundingStart = System.nanoTime();
+                        grounder.accept(b);
+                        groundingTime[0] += System.nanoTime() - groundingStart;
+                    }
             );
+            long ms = groundingTime[0] / 1_000_000;
+            groundedQuery = new GroundedQuery(eval, Optional.empty(), ms, ms, ms);
         }
+        filter.ifPresent(f -> stats.recordDroppedRules(f.getDroppedRuleNumber()));
+        return groundedQuery;
     }
 
-    private boolean negateUnMatchableHeads(EvalState state, int depth, Shape s) {
-        Set<Literal> ruleHeads = state.ruleMap.keySet();
-
-        int initialAssignmentSize = state.assignment.size();
-
-        // first negate unmatchable body atoms
-        state.ruleMap.getAllBodyAtoms().
-                filter(a -> !isSatisfiable(a, state, ruleHeads))
-                .map(this::getNegatedAtom)
-                .forEach(a -> state.assignment.add(a));
-
-        // then negate unmatchable targets
-        Map<Boolean, List<Literal>> part2 = state.remainingTargets.stream().
-                collect(Collectors.partitioningBy(
-                        a -> isSatisfiable(a, state, ruleHeads)
-                ));
-        List<Literal> inValidTargets = part2.get(false);
-        state.invalidTargets.addAll(inValidTargets);
-
-        inValidTargets.forEach(t ->
-                registerTarget(t, false, depth, state, "", Optional.of(s))
-        );
-
-        state.assignment.addAll(
-                inValidTargets.stream()
-                        .map(Literal::getNegation)
-                        .collect(ImmutableCollectors.toSet())
-        );
-        state.remainingTargets = new HashSet<>(part2.get(true));
-
-        return initialAssignmentSize != state.assignment.size();
+    private void recordQuery(GroundedQuery groundedQuery) {
+        QueryEvaluation eval = groundedQuery.eval;
+        logOutput.write(DEBUG, () -> "\nEvaluated query and grounded rules:\n" + eval.getQueryString());
+        logOutput.write(DEBUG, () -> "elapsed: " + eval.getExecTime().toMillis() + " ms");
+        stats.recordQueryExecTime(eval.getExecTime().toMillis() - groundedQuery.groundingWaitTime);
+        planner.record(eval, groundedQuery.groundingWaitTime);
+        stats.recordGroundingTime(groundedQuery.groundingTime, groundedQuery.groundingWorkTime);
+        logOutput.write(DEBUG, () -> "Number of solution mappings: " + eval.getNumberOfSolutionMappings());
+        stats.recordNumberOfSolutionMappings(eval.getNumberOfSolutionMappings());
+        stats.recordQuery();
+        stats.recordQueryThroughput(eval);
     }
 
-    private Literal getNegatedAtom(Literal a) {
-        return a.isPos() ?
-                a.getNegation() :
-                a;
-    }
+    private static class GroundedQuery {
+
+        private final QueryEvaluation eval;
+        // rules to be added to the saturation engine (if they were not grounded into it)
+        private final Optional<RuleMap> stagedRules;
+        // elapsed (wall clock) time
+        private final long groundingTime;
+        // summed over grounding workers
+        private final long groundingWorkTime;
+        // included in the evaluation time of the query
+        private final long groundingWaitTime;
+
+        private GroundedQuery(QueryEvaluation eval, Optional<RuleMap> stagedRules, long groundingTime, long groundingWorkTime, long groundingWaitTime) {
+            this.eval = eval;
+            this.stagedRules = stagedRules;
+            this.groundingTime = groundingTime;
+            this.groundingWorkTime = groundingWorkTime;
+            this.groundingWaitTime = groundingWaitTime;
+        }
 
-    private boolean isSatisfiable(Literal a, EvalState state, Set<Literal> ruleHeads) {
-        return (!state.evaluatedPredicates.contains(a.getPredicate())) || ruleHeads.contains(a.getAtom()) || state.assignment.contains(a);
+        private GroundedQuery withStagedRules(RuleMap rules) {
+            return new GroundedQuery(eval, Optional.of(rules), groundingTime, groundingWorkTime, groundingWaitTime);
+        }
     }
 
-
     private static class EvalState {
 
         private Set<Shape> visitedShapes;
-        private Set<String> evaluatedPredicates;
 
-        RuleMap ruleMap;
-        Set<Literal> remainingTargets;
-        Set<Literal> validTargets;
-        Set<Literal> invalidTargets;
-        Set<Literal> assignment;
+        Saturator saturator;
+        TargetSet targets;
 
         //Map from shape name to a set of evaluation paths
-        Map<Shape, ImmutableSet<EvalPath>> evalPathsMap;
+        Map<Shape, EvalPathSet> evalPathsMap;
 
-        static EvalState init(ImmutableSet<Shape> targetShapes, Set<Literal> targets) {
+        static EvalState init(ImmutableSet<Shape> targetShapes, Set<Literal> targets, Optional<ForkJoinPool> saturationPool) {
+            Saturator saturator = new Saturator(saturationPool);
+            saturator.addTargets(targets);
             return new EvalState(
-                    targets,
-                    new RuleMap(),
-                    new HashSet<>(),
-                    new HashSet<>(),
-                    new HashSet<>(),
-                    new HashSet<>(),
+                    new TargetSet(targets),
+                    saturator,
                     new HashSet<>(),
                     targetShapes.stream()
                             .collect(Collectors.toMap(
                                     s -> s,
-                                    s -> ImmutableSet.of(
+                                    s -> EvalPathSet.of(ImmutableSet.of(
                                             new EvalPath()
-                                    )
+                                    ))
                     ))
             );
         }
 
-        private EvalState(Set<Literal> targetLiterals, RuleMap ruleMap, Set<Literal> assignment, Set<Shape> visitedShapes,
-                          Set<String> evaluatedPredicates, Set<Literal> validTargets, Set<Literal> invalidTargets, Map<Shape, ImmutableSet<EvalPath>> evalPathsMap) {
-            this.remainingTargets = targetLiterals;
-            this.ruleMap = ruleMap;
-            this.assignment = assignment;
+        private EvalState(TargetSet targets, Saturator saturator, Set<Shape> visitedShapes, Map<Shape, EvalPathSet> evalPathsMap) {
+            this.targets = targets;
+            this.saturator = saturator;
             this.visitedShapes = visitedShapes;
-            this.evaluatedPredicates = evaluatedPredicates;
-            this.validTargets = validTargets;
-            this.invalidTargets = invalidTargets;
             this.evalPathsMap = evalPathsMap;
         }
 
@@ -397,31 +829,20 @@ public class RuleBasedValidation implements Validation {
             visitedShapes.add(shape);
         }
 
-        void addEvaluatedPredicates(ImmutableSet<String> predicates) {
-            evaluatedPredicates.addAll(predicates);
-        }
-
         public void updateEvalPathMap(Shape shape, ImmutableSet<Shape> referencedShapes) {
             if (!evalPathsMap.containsKey(shape))
                 throw new RuntimeException("Shape " + shape.getId() + " should have a (possibly empty) set of evaluation paths");
-            ImmutableSet<EvalPath> paths = evalPathsMap.get(shape);
+            EvalPathSet paths = evalPathsMap.get(shape);
             evalPathsMap.remove(shape);
+            // constant time per referenced shape, the extended paths are only built for results
             referencedShapes.forEach(s ->
                     evalPathsMap.put(
                             s,
-                            extendEvalPathSet(
-                                    s,
-                                    paths
-                            )));
-        }
-
-        private ImmutableSet<EvalPath> extendEvalPathSet(Shape s, ImmutableSet<EvalPath> paths) {
-            return paths.stream()
-                    .map(p -> new EvalPath(s, p))
-                    .collect(ImmutableCollectors.toSet());
+                            paths.extend(s)
+                    ));
         }
 
-        ImmutableSet<EvalPath> getEvalPaths(Shape shape) {
+        EvalPathSet getEvalPaths(Shape shape) {
             return evalPathsMap.get(shape);
         }
 
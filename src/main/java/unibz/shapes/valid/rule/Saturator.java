@@ -0,0 +1,1016 @@
+package unibz.shapes.valid.rule;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.RuleSink;
+import unibz.shapes.core.global.TermDictionary;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * Incremental saturation of ground rules (unit propagation).
+ * <p>
+ * Each atom (positive ground literal) is true, false or unknown.
+ * A rule fires (its head becomes true) once all its body literals are true,
+ * and is discarded once one of them is false, or once its head is true.
+ * An unknown atom whose predicate has been evaluated becomes false once no rule with this head remains.
+ * <p>
+ * Each rule has a counter of body literals that are not true yet, and each atom has a counter of remaining rules
+ * with this head (support), as well as the list of rules that mention it in their body.
+ * So assigning a value to an atom only touches the rules that mention it:
+ * the cost of saturation is proportional to the changes, not to the number of rules.
+ * <p>
+ * Rules are deduplicated (hash table over the head and the sorted body), so that they can be grounded directly
+ * into the engine (see addRule(long, long[])).
+ * Discarded rules are removed from the arrays (compaction) once they outnumber the remaining ones.
+ * <p>
+ * Atoms are partitioned into components (union-find): the head and body atoms of a rule are in the same component.
+ * So a value assigned to an atom can only be propagated to atoms of the same component,
+ * and, if a pool is provided, components are propagated in parallel (see saturate).
+ * Components only grow when rules are added, and are recomputed from the remaining rules on compaction.
+ * <p>
+ * Rules can be spilled to a memory-mapped file (see spill), by segments of at most MAX_SEGMENT_BYTES,
+ * each of which contains whole components (unless a component is larger than a segment).
+ * A spilled rule still counts as a support for its head, but is not updated when the value of a body atom changes.
+ * Instead, a segment is marked as dirty once one of its body atoms has a value (each atom has the list of segments it occurs in),
+ * and dirty segments are paged back in (and their rules re-evaluated) during saturation.
+ * The region of a segment which is paged back in is reused by later segments (free list).
+ * <p>
+ * Not thread-safe (parallel propagation is internal to saturate).
+ */
+class Saturator implements RuleSink {
+
+    private static final int NONE = -1;
+    private static final byte UNKNOWN = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    // maximal size of a spilled segment (a dirty segment is paged in as a whole, so segments are kept small)
+    private static final long MAX_SEGMENT_BYTES = 1L << 20;
+    // minimal number of atoms to be propagated for a parallel propagation
+    private static final int PARALLEL_THRESHOLD = 1024;
+    // pending value of a discarded rule
+    private static final int DISCARDED = -1;
+
+    // atoms (by atom index)
+    private long[] atomCodes;
+    private byte[] values;
+    private int[] support;
+    private int[] firstOccurrence;
+    private int[] firstRule;
+    // union-find parent of each atom
+    private int[] component;
+    private final BitSet targets;
+    private int atomCount;
+    // open-addressing table: atom index + 1 (0 for an empty slot)
+    private int[] atomTable;
+
+    // occurrences of atoms in rule bodies (linked lists): rule index * 2 (+ 1 for a negative literal)
+    private int[] occurrenceRule;
+    private int[] occurrenceNext;
+    private int occurrenceCount;
+
+    // rules (by rule index)
+    private int[] ruleHead;
+    private int[] ruleNext;
+    private int[] ruleHash;
+    // number of body literals which are not true yet (or DISCARDED)
+    private int[] pending;
+    // body of rule r: bodies[bodyOffsets[r]] ... bodies[bodyOffsets[r + 1] - 1]
+    private int[] bodyOffsets;
+    private long[] bodies;
+    private int ruleCount;
+    private int ruleNumber;
+    // open-addressing table: rule index + 1 (0 for an empty slot), discarded rules included until compaction
+    private int[] ruleTable;
+
+    private final Set<Integer> evaluatedPredicates;
+    // atoms whose predicate has not been evaluated yet, by predicate
+    private final Map<Integer, List<Integer>> unevaluatedAtoms;
+    // propagation outside of parallel saturation
+    private final Propagation main;
+    private final Optional<ForkJoinPool> pool;
+
+    // spilled segments by segment index (null once paged in)
+    private final List<SpilledSegment> spilledSegments;
+    // segments in which each atom occurs (linked lists): segment index
+    private int[] firstSegmentLink;
+    private int[] segmentLinkSegment;
+    private int[] segmentLinkNext;
+    private int segmentLinkCount;
+    private FileChannel spillChannel;
+    private Path spillFile;
+    // end of the last region in use
+    private long spillPosition;
+    private long spillFileSize;
+    // free regions of the spill file before spillPosition: offset -> size (adjacent regions are merged)
+    private final TreeMap<Long, Long> freeRegions;
+    private int spilledRuleNumber;
+    private long spilledBytes;
+    private int pageIns;
+
+    Saturator() {
+        this(Optional.empty());
+    }
+
+    /**
+     * If present, the pool is used to propagate independent components in parallel
+     */
+    Saturator(Optional<ForkJoinPool> pool) {
+        this.pool = pool;
+        this.atomCodes = new long[16];
+        this.values = new byte[16];
+        this.support = new int[16];
+        this.firstOccurrence = new int[16];
+        this.firstRule = new int[16];
+        this.component = new int[16];
+        this.targets = new BitSet();
+        this.atomTable = new int[32];
+        this.occurrenceRule = new int[16];
+        this.occurrenceNext = new int[16];
+        this.ruleHead = new int[16];
+        this.ruleNext = new int[16];
+        this.ruleHash = new int[16];
+        this.ruleTable = new int[32];
+        this.pending = new int[16];
+        this.bodyOffsets = new int[17];
+        this.bodies = new long[32];
+        this.evaluatedPredicates = new HashSet<>();
+        this.unevaluatedAtoms = new HashMap<>();
+        this.main = new Propagation(new BitSet());
+        this.spilledSegments = new ArrayList<>();
+        this.firstSegmentLink = new int[16];
+        this.segmentLinkSegment = new int[16];
+        this.segmentLinkNext = new int[16];
+        this.freeRegions = new TreeMap<>();
+    }
+
+    void addTargets(Collection<Literal> targetLiterals) {
+        targetLiterals.forEach(t -> targets.set(getOrAddAtom(t.getAtom().getCode())));
+    }
+
+    void addRules(RuleMap rules) {
+        rules.entrySet().forEach(e -> {
+            long head = e.getKey().getCode();
+            e.getValue().forEach(b -> {
+                long[] body = new long[b.size()];
+                int i = 0;
+                for (Literal l : b) {
+                    body[i++] = l.getCode();
+                }
+                Arrays.sort(body);
+                addSortedRule(head, body);
+            });
+        });
+    }
+
+    /**
+     * A rule which is already in the engine is ignored.
+     * The head must be positive.
+     */
+    @Override
+    public void addRule(long head, long[] body) {
+        long[] codes = body.clone();
+        Arrays.sort(codes);
+        int n = 0;
+        for (int i = 0; i < codes.length; i++) {
+            if (i == 0 || codes[i] != codes[i - 1]) {
+                codes[n++] = codes[i];
+            }
+        }
+        addSortedRule(head, n == codes.length ?
+                codes :
+                Arrays.copyOf(codes, n));
+    }
+
+    /**
+     * Atoms with these predicates, and no rule, are false
+     */
+    void setEvaluated(ImmutableSet<String> predicates) {
+        predicates.forEach(p -> {
+            int id = TermDictionary.getPredicates().encode(p);
+            evaluatedPredicates.add(id);
+            List<Integer> atoms = unevaluatedAtoms.remove(id);
+            if (atoms != null) {
+                main.candidates.addAll(atoms);
+            }
+        });
+    }
+
+    /**
+     * Returns the targets decided since the last call: positive literals for valid targets, negative ones for invalid targets
+     */
+    ImmutableList<Literal> saturate() {
+        do {
+            if (pool.isPresent() && main.size() >= PARALLEL_THRESHOLD) {
+                propagateByComponent(pool.get());
+            } else {
+                propagate(main);
+            }
+            ruleNumber -= main.discardedRules;
+            main.discardedRules = 0;
+        } while (pageIn());
+        if (ruleCount - ruleNumber > ruleNumber && ruleCount > 1024) {
+            compact();
+        }
+        ImmutableList<Literal> decided = ImmutableList.copyOf(main.decidedTargets);
+        main.decidedTargets.clear();
+        return decided;
+    }
+
+    private void propagate(Propagation p) {
+        p.candidates.forEach(a -> falsifyIfUnsupported(a, p));
+        p.candidates.clear();
+        while (!p.queue.isEmpty()) {
+            propagate(p.queue.poll(), p);
+        }
+    }
+
+    /**
+     * The atoms to be propagated are grouped by component, and components are grouped into batches,
+     * each of which is propagated by a task of the pool.
+     * Tasks write to disjoint entries of the shared arrays (the atoms and rules of their components),
+     * and their decided targets and discarded rules are merged afterwards (in batch order).
+     */
+    private void propagateByComponent(ForkJoinPool pool) {
+        int batchSize = Math.max(1, main.size() / (4 * pool.getParallelism()));
+        List<Propagation> batches = new ArrayList<>();
+        Map<Integer, Propagation> batchByComponent = new HashMap<>();
+        Function<Integer, Propagation> getBatch = a -> batchByComponent.computeIfAbsent(find(a), c -> {
+            if (batches.isEmpty() || batches.get(batches.size() - 1).size() >= batchSize) {
+                batches.add(new Propagation(null));
+            }
+            return batches.get(batches.size() - 1);
+        });
+        main.candidates.forEach(a -> getBatch.apply(a).candidates.add(a));
+        main.queue.forEach(a -> getBatch.apply(a).queue.add(a));
+        main.candidates.clear();
+        main.queue.clear();
+        main.queued.clear();
+        batches.stream()
+                .map(b -> pool.submit(() -> propagate(b)))
+                .collect(Collectors.toList())
+                .forEach(ForkJoinTask::join);
+        batches.forEach(b -> {
+            main.decidedTargets.addAll(b.decidedTargets);
+            ruleNumber -= b.discardedRules;
+        });
+    }
+
+    /**
+     * A new engine, which only contains the targets which are not decided yet, the rules which are not discarded,
+     * and the true atoms whose predicate is among the given ones.
+     * The other decided atoms are dropped.
+     * A dropped false atom is decided again if it reappears, since its predicate is evaluated and it has no rule.
+     * So a true atom may only be dropped if no rule added later can refer to it.
+     * Body literals which are already true are dropped from the rules.
+     * <p>
+     * Returns this engine if rules have been spilled.
+     * Otherwise this engine must not be used anymore (but it must still be closed).
+     */
+    Saturator carryOver(ImmutableSet<String> keptPredicates) {
+        if (spillChannel != null) {
+            return this;
+        }
+        Saturator carried = new Saturator(pool);
+        carried.evaluatedPredicates.addAll(evaluatedPredicates);
+        Set<Integer> kept = keptPredicates.stream()
+                .map(p -> TermDictionary.getPredicates().encode(p))
+                .collect(Collectors.toSet());
+        for (int a = 0; a < atomCount; a++) {
+            if (values[a] == UNKNOWN && targets.get(a)) {
+                carried.targets.set(carried.getOrAddAtom(atomCodes[a]));
+            } else if (values[a] == TRUE && kept.contains(Literal.decode(atomCodes[a]).getPredicateId())) {
+                int atom = carried.getOrAddAtom(atomCodes[a]);
+                // no rule is updated: the atom has no occurrence yet
+                carried.values[atom] = TRUE;
+            }
+        }
+        for (int r = 0; r < ruleCount; r++) {
+            if (pending[r] == DISCARDED) {
+                continue;
+            }
+            long[] body = Arrays.stream(bodies, bodyOffsets[r], bodyOffsets[r + 1])
+                    .filter(l -> values[getAtom(Literal.getAtom(l))] == UNKNOWN)
+                    .toArray();
+            carried.addSortedRule(atomCodes[ruleHead[r]], body);
+        }
+        return carried;
+    }
+
+    boolean isTrue(Literal l) {
+        int a = getAtom(l.getAtom().getCode());
+        return a != NONE && values[a] == (l.isPos() ? TRUE : FALSE);
+    }
+
+    /**
+     * Number of rules which have not been discarded (including spilled ones)
+     */
+    int getRuleNumber() {
+        return ruleNumber + spilledRuleNumber;
+    }
+
+    Stream<Literal> getAllBodyAtoms() {
+        return Stream.concat(
+                IntStream.range(0, ruleCount)
+                        .filter(r -> pending[r] != DISCARDED)
+                        .boxed()
+                        .flatMap(r -> Arrays.stream(bodies, bodyOffsets[r], bodyOffsets[r + 1])
+                                .mapToObj(Literal::decode)),
+                spilledSegments.stream()
+                        .filter(Objects::nonNull)
+                        .flatMap(s -> Arrays.stream(s.bodyAtoms).boxed())
+                        .map(a -> Literal.decode(atomCodes[a]))
+        );
+    }
+
+    /**
+     * Atoms of the body literals of the current rules (spilled ones included) whose value is not decided yet,
+     * without duplicates.
+     * The sign of the literal does not matter: the value of the atom is needed to decide the rule either way.
+     */
+    Stream<Literal> getUndecidedBodyAtoms() {
+        BitSet atoms = new BitSet();
+        for (int r = 0; r < ruleCount; r++) {
+            if (pending[r] == DISCARDED) {
+                continue;
+            }
+            for (int i = bodyOffsets[r]; i < bodyOffsets[r + 1]; i++) {
+                int a = getAtom(Literal.getAtom(bodies[i]));
+                if (values[a] == UNKNOWN) {
+                    atoms.set(a);
+                }
+            }
+        }
+        spilledSegments.stream()
+                .filter(Objects::nonNull)
+                .forEach(s -> {
+                    for (int a : s.bodyAtoms) {
+                        if (values[a] == UNKNOWN) {
+                            atoms.set(a);
+                        }
+                    }
+                });
+        return atoms.stream()
+                .mapToObj(a -> Literal.decode(atomCodes[a]));
+    }
+
+    int getSpilledRuleNumber() {
+        return spilledRuleNumber;
+    }
+
+    /**
+     * Total number of bytes written to disk
+     */
+    long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Number of segments paged back in
+     */
+    int getPageIns() {
+        return pageIns;
+    }
+
+    /**
+     * Size of the spill file (bytes), which is not truncated when segments are paged in
+     */
+    long getSpillFileSize() {
+        return spillFileSize;
+    }
+
+    /**
+     * If the estimated size of the engine exceeds the budget (in bytes), spills rules to disk,
+     * largest components first, until the budget is met.
+     * Only rules whose head predicate is not hot are spilled.
+     */
+    void spill(long budget, ImmutableSet<String> hotPredicates) {
+        long excess = getEstimatedBytes() - budget;
+        if (excess <= 0) {
+            return;
+        }
+        Set<Integer> hot = hotPredicates.stream()
+                .map(p -> TermDictionary.getPredicates().encode(p))
+                .collect(Collectors.toSet());
+        Map<Integer, List<Integer>> partitions = new HashMap<>();
+        for (int r = 0; r < ruleCount; r++) {
+            int predicate = Literal.decode(atomCodes[ruleHead[r]]).getPredicateId();
+            if (pending[r] != DISCARDED && !hot.contains(predicate)) {
+                partitions.computeIfAbsent(find(ruleHead[r]), c -> new ArrayList<>()).add(r);
+            }
+        }
+        List<List<Integer>> sortedPartitions = partitions.values().stream()
+                .sorted(Comparator.comparing(l -> -l.size()))
+                .collect(Collectors.toList());
+        // small components are grouped into the same segment
+        List<Integer> segment = new ArrayList<>();
+        long segmentBytes = 0;
+        long segmentFreedBytes = 0;
+        for (List<Integer> partition : sortedPartitions) {
+            if (excess - segmentFreedBytes <= 0) {
+                break;
+            }
+            for (int r : partition) {
+                long ruleBytes = getSpilledSize(r);
+                if (segmentBytes + ruleBytes > MAX_SEGMENT_BYTES && !segment.isEmpty()) {
+                    excess -= spillSegment(segment, segmentBytes);
+                    segment = new ArrayList<>();
+                    segmentBytes = 0;
+                    segmentFreedBytes = 0;
+                }
+                segment.add(r);
+                segmentBytes += ruleBytes;
+                segmentFreedBytes += getFreedBytes(r);
+            }
+        }
+        if (!segment.isEmpty()) {
+            spillSegment(segment, segmentBytes);
+        }
+        compact();
+    }
+
+    /**
+     * Head code, body length and body codes
+     */
+    private long getSpilledSize(int r) {
+        return 12L + 8L * (bodyOffsets[r + 1] - bodyOffsets[r]);
+    }
+
+    /**
+     * Approximate number of bytes freed in memory by spilling the rule
+     */
+    private long getFreedBytes(int r) {
+        return 16 + 16L * (bodyOffsets[r + 1] - bodyOffsets[r]);
+    }
+
+    /**
+     * Returns the (approximate) number of bytes freed in memory
+     */
+    private long spillSegment(List<Integer> rules, long size) {
+        long offset = allocate(size);
+        ByteBuffer buffer = map(FileChannel.MapMode.READ_WRITE, offset, size);
+        BitSet bodyAtoms = new BitSet();
+        long freedBytes = 0;
+        for (int r : rules) {
+            buffer.putLong(atomCodes[ruleHead[r]]);
+            buffer.putInt(bodyOffsets[r + 1] - bodyOffsets[r]);
+            for (int i = bodyOffsets[r]; i < bodyOffsets[r + 1]; i++) {
+                buffer.putLong(bodies[i]);
+                bodyAtoms.set(getAtom(Literal.getAtom(bodies[i])));
+            }
+            // the rule still supports its head
+            pending[r] = DISCARDED;
+            ruleNumber--;
+            freedBytes += getFreedBytes(r);
+        }
+        SpilledSegment segment = new SpilledSegment(offset, size, rules.size(), bodyAtoms.stream().toArray());
+        addSegmentLinks(spilledSegments.size(), segment);
+        spilledSegments.add(segment);
+        spilledRuleNumber += rules.size();
+        spilledBytes += size;
+        return freedBytes;
+    }
+
+    private void addSegmentLinks(int s, SpilledSegment segment) {
+        for (int a : segment.bodyAtoms) {
+            int link = segmentLinkCount++;
+            if (link == segmentLinkSegment.length) {
+                segmentLinkSegment = Arrays.copyOf(segmentLinkSegment, 2 * link);
+                segmentLinkNext = Arrays.copyOf(segmentLinkNext, 2 * link);
+            }
+            segmentLinkSegment[link] = s;
+            segmentLinkNext[link] = firstSegmentLink[a];
+            firstSegmentLink[a] = link;
+        }
+    }
+
+    /**
+     * Returns the offset of a free region of the spill file, first fit (or at the end of the file)
+     */
+    private long allocate(long size) {
+        Optional<Map.Entry<Long, Long>> region = freeRegions.entrySet().stream()
+                .filter(e -> e.getValue() >= size)
+                .findFirst();
+        if (!region.isPresent()) {
+            long offset = spillPosition;
+            spillPosition += size;
+            spillFileSize = Math.max(spillFileSize, spillPosition);
+            return offset;
+        }
+        long offset = region.get().getKey();
+        long regionSize = region.get().getValue();
+        freeRegions.remove(offset);
+        if (regionSize > size) {
+            freeRegions.put(offset + size, regionSize - size);
+        }
+        return offset;
+    }
+
+    private void free(long offset, long size) {
+        Map.Entry<Long, Long> previous = freeRegions.lowerEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            freeRegions.remove(previous.getKey());
+            offset = previous.getKey();
+            size += previous.getValue();
+        }
+        Long next = freeRegions.remove(offset + size);
+        if (next != null) {
+            size += next;
+        }
+        if (offset + size == spillPosition) {
+            spillPosition = offset;
+        } else {
+            freeRegions.put(offset, size);
+        }
+    }
+
+    /**
+     * Reloads the dirty segments (if any), and returns true if some were reloaded
+     */
+    private boolean pageIn() {
+        boolean pagedIn = false;
+        for (int s = 0; s < spilledSegments.size(); s++) {
+            SpilledSegment segment = spilledSegments.get(s);
+            if (segment != null && segment.dirty) {
+                spilledSegments.set(s, null);
+                pageIn(segment);
+                pagedIn = true;
+            }
+        }
+        return pagedIn;
+    }
+
+    private void pageIn(SpilledSegment segment) {
+        ByteBuffer buffer = map(FileChannel.MapMode.READ_ONLY, segment.offset, segment.size);
+        for (int i = 0; i < segment.ruleNumber; i++) {
+            int head = getAtom(buffer.getLong());
+            long[] body = new long[buffer.getInt()];
+            for (int j = 0; j < body.length; j++) {
+                body[j] = buffer.getLong();
+            }
+            // the rule is re-evaluated against the current values
+            support[head]--;
+            if (!addSortedRule(atomCodes[head], body) && isEvaluated(head)) {
+                falsifyIfUnsupported(head, main);
+            }
+        }
+        spilledRuleNumber -= segment.ruleNumber;
+        pageIns++;
+        free(segment.offset, segment.size);
+    }
+
+    private ByteBuffer map(FileChannel.MapMode mode, long position, long size) {
+        try {
+            if (spillChannel == null) {
+                spillFile = Files.createTempFile("rules", ".spill");
+                spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            return spillChannel.map(mode, position, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Deletes the spill file (if any)
+     */
+    void close() {
+        if (spillChannel == null) {
+            return;
+        }
+        try {
+            spillChannel.close();
+            Files.deleteIfExists(spillFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    long getEstimatedBytes() {
+        return 8L * atomCodes.length +
+                values.length +
+                4L * support.length +
+                4L * firstOccurrence.length +
+                4L * firstRule.length +
+                4L * component.length +
+                4L * atomTable.length +
+                4L * occurrenceRule.length +
+                4L * occurrenceNext.length +
+                4L * ruleHead.length +
+                4L * ruleNext.length +
+                4L * ruleHash.length +
+                4L * ruleTable.length +
+                4L * pending.length +
+                4L * bodyOffsets.length +
+                8L * bodies.length +
+                4L * firstSegmentLink.length +
+                4L * (segmentLinkSegment.length + segmentLinkNext.length) +
+                spilledSegments.stream()
+                        .filter(Objects::nonNull)
+                        .mapToLong(seg -> 4L * seg.bodyAtoms.length)
+                        .sum();
+    }
+
+    /**
+     * The body must be sorted, without duplicates.
+     * Returns false if the rule is not needed (its head has a value, or a body literal is false)
+     */
+    private boolean addSortedRule(long headCode, long[] body) {
+        if (!Literal.isPos(headCode)) {
+            throw new IllegalArgumentException("Unexpected negative rule head " + Literal.decode(headCode));
+        }
+        int head = getOrAddAtom(headCode);
+        if (values[head] != UNKNOWN) {
+            return false;
+        }
+        int hash = hash(headCode, body);
+        int mask = ruleTable.length - 1;
+        int slot = hash & mask;
+        while (ruleTable[slot] != 0) {
+            int r = ruleTable[slot] - 1;
+            if (ruleHash[r] == hash && ruleHead[r] == head && pending[r] != DISCARDED && bodyEquals(r, body)) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int unsatisfied = 0;
+        for (long l : body) {
+            int a = getOrAddAtom(Literal.getAtom(l));
+            // the value of a queued atom is not propagated yet: the rule will be updated when it is
+            if (values[a] == UNKNOWN || main.queued.get(a)) {
+                unsatisfied++;
+            } else if (isFalse(a, Literal.isPos(l))) {
+                return false;
+            }
+        }
+        int r = ruleCount++;
+        ensureRuleCapacity(body.length);
+        ruleHead[r] = head;
+        ruleHash[r] = hash;
+        pending[r] = unsatisfied;
+        int offset = bodyOffsets[r];
+        for (long l : body) {
+            bodies[offset++] = l;
+            int a = getAtom(Literal.getAtom(l));
+            addOccurrence(a, r, Literal.isPos(l));
+            union(head, a);
+        }
+        bodyOffsets[r + 1] = offset;
+        ruleNext[r] = firstRule[head];
+        firstRule[head] = r;
+        support[head]++;
+        ruleNumber++;
+        insertRule(r);
+        if (unsatisfied == 0) {
+            assign(head, TRUE, main);
+        }
+        return true;
+    }
+
+    private boolean bodyEquals(int r, long[] body) {
+        int offset = bodyOffsets[r];
+        if (bodyOffsets[r + 1] - offset != body.length) {
+            return false;
+        }
+        for (int i = 0; i < body.length; i++) {
+            if (bodies[offset + i] != body[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insertRule(int r) {
+        if (2 * (r + 1) > ruleTable.length) {
+            rebuildRuleTable(2 * ruleTable.length);
+            return;
+        }
+        int mask = ruleTable.length - 1;
+        int slot = ruleHash[r] & mask;
+        while (ruleTable[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        ruleTable[slot] = r + 1;
+    }
+
+    /**
+     * Rebuilds the rule table with the given size (a power of 2), from the rules which are not discarded
+     */
+    private void rebuildRuleTable(int size) {
+        ruleTable = new int[size];
+        int mask = size - 1;
+        for (int r = 0; r < ruleCount; r++) {
+            if (pending[r] == DISCARDED) {
+                continue;
+            }
+            int slot = ruleHash[r] & mask;
+            while (ruleTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            ruleTable[slot] = r + 1;
+        }
+    }
+
+    private boolean isFalse(int atom, boolean isPos) {
+        return values[atom] == (isPos ? FALSE : TRUE);
+    }
+
+    private void assign(int atom, byte value, Propagation p) {
+        if (values[atom] != UNKNOWN) {
+            return;
+        }
+        values[atom] = value;
+        if (targets.get(atom)) {
+            p.decidedTargets.add(Literal.decode(value == TRUE ?
+                    atomCodes[atom] :
+                    Literal.negate(atomCodes[atom])));
+        }
+        p.queue.add(atom);
+        if (p.queued != null) {
+            p.queued.set(atom);
+        }
+        // may be set concurrently by several tasks (to the same value)
+        for (int link = firstSegmentLink[atom]; link != NONE; link = segmentLinkNext[link]) {
+            SpilledSegment segment = spilledSegments.get(segmentLinkSegment[link]);
+            if (segment != null) {
+                segment.dirty = true;
+            }
+        }
+    }
+
+    private void falsifyIfUnsupported(int atom, Propagation p) {
+        if (values[atom] == UNKNOWN && support[atom] == 0) {
+            assign(atom, FALSE, p);
+        }
+    }
+
+    private void propagate(int atom, Propagation p) {
+        if (p.queued != null) {
+            p.queued.clear(atom);
+        }
+        if (values[atom] == TRUE) {
+            // the rules for this head are no longer needed
+            for (int r = firstRule[atom]; r != NONE; r = ruleNext[r]) {
+                discard(r, false, p);
+            }
+        }
+        for (int o = firstOccurrence[atom]; o != NONE; o = occurrenceNext[o]) {
+            int r = occurrenceRule[o] >>> 1;
+            if (pending[r] == DISCARDED) {
+                continue;
+            }
+            if (isFalse(atom, (occurrenceRule[o] & 1) == 0)) {
+                discard(r, true, p);
+            } else if (--pending[r] == 0) {
+                assign(ruleHead[r], TRUE, p);
+            }
+        }
+    }
+
+    private void discard(int r, boolean updateSupport, Propagation p) {
+        if (pending[r] == DISCARDED) {
+            return;
+        }
+        pending[r] = DISCARDED;
+        p.discardedRules++;
+        int head = ruleHead[r];
+        if (--support[head] == 0 && updateSupport && isEvaluated(head)) {
+            falsifyIfUnsupported(head, p);
+        }
+    }
+
+    private boolean isEvaluated(int atom) {
+        return evaluatedPredicates.contains(Literal.decode(atomCodes[atom]).getPredicateId());
+    }
+
+    private int getAtom(long code) {
+        int mask = atomTable.length - 1;
+        int slot = hash(code) & mask;
+        while (atomTable[slot] != 0) {
+            int a = atomTable[slot] - 1;
+            if (atomCodes[a] == code) {
+                return a;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private int getOrAddAtom(long code) {
+        int mask = atomTable.length - 1;
+        int slot = hash(code) & mask;
+        while (atomTable[slot] != 0) {
+            int a = atomTable[slot] - 1;
+            if (atomCodes[a] == code) {
+                return a;
+            }
+            slot = (slot + 1) & mask;
+        }
+        int a = atomCount++;
+        if (a == atomCodes.length) {
+            atomCodes = Arrays.copyOf(atomCodes, 2 * a);
+            values = Arrays.copyOf(values, 2 * a);
+            support = Arrays.copyOf(support, 2 * a);
+            firstOccurrence = Arrays.copyOf(firstOccurrence, 2 * a);
+            firstRule = Arrays.copyOf(firstRule, 2 * a);
+            component = Arrays.copyOf(component, 2 * a);
+            firstSegmentLink = Arrays.copyOf(firstSegmentLink, 2 * a);
+        }
+        atomCodes[a] = code;
+        component[a] = a;
+        firstOccurrence[a] = NONE;
+        firstRule[a] = NONE;
+        firstSegmentLink[a] = NONE;
+        atomTable[slot] = a + 1;
+        if (2 * atomCount > atomTable.length) {
+            rehashAtoms();
+        }
+        if (isEvaluated(a)) {
+            main.candidates.add(a);
+        } else {
+            unevaluatedAtoms.computeIfAbsent(Literal.decode(code).getPredicateId(), p -> new ArrayList<>()).add(a);
+        }
+        return a;
+    }
+
+    private void rehashAtoms() {
+        atomTable = new int[2 * atomTable.length];
+        int mask = atomTable.length - 1;
+        for (int a = 0; a < atomCount; a++) {
+            int slot = hash(atomCodes[a]) & mask;
+            while (atomTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            atomTable[slot] = a + 1;
+        }
+    }
+
+    private static int hash(long code) {
+        long h = code * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int hash(long headCode, long[] body) {
+        int h = hash(headCode);
+        for (long c : body) {
+            h = 31 * h + hash(c);
+        }
+        return h;
+    }
+
+    private int find(int atom) {
+        while (component[atom] != atom) {
+            component[atom] = component[component[atom]];
+            atom = component[atom];
+        }
+        return atom;
+    }
+
+    private void union(int atom1, int atom2) {
+        int c1 = find(atom1);
+        int c2 = find(atom2);
+        if (c1 != c2) {
+            component[Math.max(c1, c2)] = Math.min(c1, c2);
+        }
+    }
+
+    private void addOccurrence(int atom, int rule, boolean isPos) {
+        int o = occurrenceCount++;
+        if (o == occurrenceRule.length) {
+            occurrenceRule = Arrays.copyOf(occurrenceRule, 2 * o);
+            occurrenceNext = Arrays.copyOf(occurrenceNext, 2 * o);
+        }
+        occurrenceRule[o] = (rule << 1) | (isPos ? 0 : 1);
+        occurrenceNext[o] = firstOccurrence[atom];
+        firstOccurrence[atom] = o;
+    }
+
+    private void ensureRuleCapacity(int bodyLength) {
+        int r = ruleCount - 1;
+        if (r == ruleHead.length) {
+            ruleHead = Arrays.copyOf(ruleHead, 2 * r);
+            ruleNext = Arrays.copyOf(ruleNext, 2 * r);
+            ruleHash = Arrays.copyOf(ruleHash, 2 * r);
+            pending = Arrays.copyOf(pending, 2 * r);
+            bodyOffsets = Arrays.copyOf(bodyOffsets, 2 * r + 1);
+        }
+        int required = bodyOffsets[r] + bodyLength;
+        if (required > bodies.length) {
+            bodies = Arrays.copyOf(bodies, Math.max(2 * bodies.length, required));
+        }
+    }
+
+    /**
+     * Removes discarded rules and paged-in segments, and rebuilds the occurrence, head and segment lists, as well as the components
+     */
+    private void compact() {
+        int capacity = Math.max(16, 2 * ruleNumber);
+        int[] newRuleHead = new int[capacity];
+        int[] newRuleHash = new int[capacity];
+        int[] newPending = new int[capacity];
+        int[] newBodyOffsets = new int[capacity + 1];
+        long[] newBodies = new long[Math.max(32, bodyOffsets[ruleCount])];
+        int n = 0;
+        for (int r = 0; r < ruleCount; r++) {
+            if (pending[r] == DISCARDED) {
+                continue;
+            }
+            newRuleHead[n] = ruleHead[r];
+            newRuleHash[n] = ruleHash[r];
+            newPending[n] = pending[r];
+            int length = bodyOffsets[r + 1] - bodyOffsets[r];
+            System.arraycopy(bodies, bodyOffsets[r], newBodies, newBodyOffsets[n], length);
+            newBodyOffsets[n + 1] = newBodyOffsets[n] + length;
+            n++;
+        }
+        ruleHead = newRuleHead;
+        ruleHash = newRuleHash;
+        pending = newPending;
+        bodyOffsets = newBodyOffsets;
+        bodies = Arrays.copyOf(newBodies, Math.max(32, newBodyOffsets[n]));
+        ruleNext = new int[capacity];
+        ruleCount = n;
+        rebuildRuleTable(4 * Integer.highestOneBit(capacity));
+
+        Arrays.fill(firstOccurrence, 0, atomCount, NONE);
+        Arrays.fill(firstRule, 0, atomCount, NONE);
+        occurrenceCount = 0;
+        occurrenceRule = new int[Math.max(16, bodyOffsets[n])];
+        occurrenceNext = new int[occurrenceRule.length];
+        for (int a = 0; a < atomCount; a++) {
+            component[a] = a;
+        }
+        for (int r = 0; r < n; r++) {
+            ruleNext[r] = firstRule[ruleHead[r]];
+            firstRule[ruleHead[r]] = r;
+            for (int i = bodyOffsets[r]; i < bodyOffsets[r + 1]; i++) {
+                Literal l = Literal.decode(bodies[i]);
+                int a = getAtom(l.getAtom().getCode());
+                addOccurrence(a, r, l.isPos());
+                union(ruleHead[r], a);
+            }
+        }
+
+        spilledSegments.removeIf(Objects::isNull);
+        Arrays.fill(firstSegmentLink, 0, atomCount, NONE);
+        segmentLinkCount = 0;
+        for (int s = 0; s < spilledSegments.size(); s++) {
+            addSegmentLinks(s, spilledSegments.get(s));
+        }
+    }
+
+    /**
+     * Atoms to be propagated, and the effects of their propagation (merged into the engine by saturate)
+     */
+    private static class Propagation {
+
+        // atoms which may have become false (no support, evaluated predicate)
+        private final List<Integer> candidates = new ArrayList<>();
+        // atoms with a new value, to be propagated
+        private final Deque<Integer> queue = new ArrayDeque<>();
+        // atoms in the queue (only tracked outside of parallel propagation, see addRule)
+        private final BitSet queued;
+        private final List<Literal> decidedTargets = new ArrayList<>();
+        private int discardedRules;
+
+        private Propagation(BitSet queued) {
+            this.queued = queued;
+        }
+
+        private int size() {
+            return candidates.size() + queue.size();
+        }
+    }
+
+    private static class SpilledSegment {
+
+        private final long offset;
+        private final long size;
+        private final int ruleNumber;
+        // sorted, without duplicates
+        private final int[] bodyAtoms;
+        private boolean dirty;
+
+        private SpilledSegment(long offset, long size, int ruleNumber, int[] bodyAtoms) {
+            this.offset = offset;
+            this.size = size;
+            this.ruleNumber = ruleNumber;
+            this.bodyAtoms = bodyAtoms;
+        }
+    }
+}
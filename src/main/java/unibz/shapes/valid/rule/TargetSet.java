@@ -0,0 +1,85 @@
+package unibz.shapes.valid.rule;
+
+import unibz.shapes.core.Literal;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.stream.Stream;
+
+/**
+ * Target atoms, each of which is either remaining, valid or invalid.
+ * <p>
+ * Targets are identified by their index in a sorted array of literal encodings,
+ * and each status is a bitset over these indices.
+ * So updating the status of a target does not allocate, and the set of remaining targets is never copied.
+ * <p>
+ * Not thread-safe.
+ */
+class TargetSet {
+
+    private final long[] codes;
+    private final BitSet remaining;
+    private final BitSet valid;
+    private final BitSet invalid;
+    private int remainingNumber;
+
+    TargetSet(Collection<Literal> targets) {
+        this.codes = targets.stream()
+                .mapToLong(t -> t.getAtom().getCode())
+                .sorted()
+                .distinct()
+                .toArray();
+        this.remaining = new BitSet(codes.length);
+        this.valid = new BitSet(codes.length);
+        this.invalid = new BitSet(codes.length);
+        remaining.set(0, codes.length);
+        this.remainingNumber = codes.length;
+    }
+
+    /**
+     * Returns false if this literal is not a remaining target
+     */
+    boolean setValid(Literal target) {
+        return decide(target, valid);
+    }
+
+    /**
+     * Returns false if this literal is not a remaining target
+     */
+    boolean setInvalid(Literal target) {
+        return decide(target, invalid);
+    }
+
+    private boolean decide(Literal target, BitSet status) {
+        int i = Arrays.binarySearch(codes, target.getAtom().getCode());
+        if (i < 0 || !remaining.get(i)) {
+            return false;
+        }
+        remaining.clear(i);
+        remainingNumber--;
+        status.set(i);
+        return true;
+    }
+
+    Stream<Literal> getRemaining() {
+        return remaining.stream()
+                .mapToObj(i -> Literal.decode(codes[i]));
+    }
+
+    boolean hasRemaining() {
+        return remainingNumber > 0;
+    }
+
+    int getRemainingNumber() {
+        return remainingNumber;
+    }
+
+    int getValidNumber() {
+        return valid.cardinality();
+    }
+
+    int getInvalidNumber() {
+        return invalid.cardinality();
+    }
+}
@@ -1,12 +1,11 @@
 package unibz.shapes.valid.rule.result;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
 import unibz.shapes.core.Literal;
 import unibz.shapes.shape.Shape;
 import unibz.shapes.util.ImmutableCollectors;
 import unibz.shapes.valid.result.InvalidTargetResult;
-import unibz.shapes.valid.rule.EvalPath;
+import unibz.shapes.valid.rule.EvalPathSet;
 
 import java.util.stream.Stream;
 
@@ -14,7 +13,7 @@ public class RuleBasedInvalidTargetResult extends RuleBasedResult implements Inv
 
     private final Shape focusShape;
 
-    public RuleBasedInvalidTargetResult(Literal target, int depth, Shape focusShape, ImmutableSet<EvalPath> evalPaths) {
+    public RuleBasedInvalidTargetResult(Literal target, int depth, Shape focusShape, EvalPathSet evalPaths) {
         super(target, depth, evalPaths);
         this.focusShape = focusShape;
     }
@@ -35,10 +34,9 @@ public class RuleBasedInvalidTargetResult extends RuleBasedResult implements Inv
     }
 
     private String displayFirstEvalpath() {
-        EvalPath path = evalPaths.iterator().next();
-
-        return path.getShapes().size() == 0?
-                focusShape.toString():
-                focusShape + " -> "+path.toString();
+        return evalPaths.getFirstPath()
+                .filter(p -> !p.isEmpty())
+                .map(p -> focusShape + " -> " + p)
+                .orElse(focusShape.toString());
     }
 }
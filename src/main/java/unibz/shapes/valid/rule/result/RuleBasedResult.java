@@ -3,14 +3,15 @@ package unibz.shapes.valid.rule.result;
 import com.google.common.collect.ImmutableSet;
 import unibz.shapes.core.Literal;
 import unibz.shapes.valid.rule.EvalPath;
+import unibz.shapes.valid.rule.EvalPathSet;
 
 abstract class RuleBasedResult {
 
     protected final Literal target;
-    protected final ImmutableSet<EvalPath> evalPaths;
+    protected final EvalPathSet evalPaths;
     protected final int depth;
 
-    public RuleBasedResult(Literal target, int depth, ImmutableSet<EvalPath> evalPaths){
+    public RuleBasedResult(Literal target, int depth, EvalPathSet evalPaths){
         this.target = target;
         this.evalPaths = evalPaths;
         this.depth = depth;
@@ -20,8 +21,11 @@ abstract class RuleBasedResult {
         return target;
     }
 
+    /**
+     * Built on each call (see EvalPathSet)
+     */
     public ImmutableSet<EvalPath> getEvalPaths() {
-        return evalPaths;
+        return evalPaths.getPaths();
     }
 
     public int getDepth() {
@@ -1,18 +1,17 @@
 package unibz.shapes.valid.rule.result;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableSet;
-import unibz.shapes.core.Literal;
-import unibz.shapes.shape.Shape;
 import unibz.shapes.valid.result.ResultSet;
-import unibz.shapes.valid.rule.EvalPath;
+import unibz.shapes.valid.result.ResultSink;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
-public class RuleBasedResultSet implements ResultSet {
+/**
+ * Keeps all results in memory
+ */
+public class RuleBasedResultSet implements ResultSink<RuleBasedValidTargetResult, RuleBasedInvalidTargetResult>, ResultSet {
 
 
     // Implemented as lists for efficiency.
@@ -25,12 +24,14 @@ public class RuleBasedResultSet implements ResultSet {
         this.invalidTargetResults = new ArrayList<>();
     }
 
-    public void registerValidTarget(Literal target, int depth, Optional<Shape> focusShape, ImmutableSet<EvalPath> evalPaths){
-        validTargetResults.add(new RuleBasedValidTargetResult(target, depth, focusShape, evalPaths));
+    @Override
+    public void registerValidTarget(RuleBasedValidTargetResult result){
+        validTargetResults.add(result);
     }
 
-    public void registerInvalidTarget(Literal target, int depth, Shape focusShape, ImmutableSet<EvalPath> evalPaths){
-        invalidTargetResults.add(new RuleBasedInvalidTargetResult(target, depth, focusShape, evalPaths));
+    @Override
+    public void registerInvalidTarget(RuleBasedInvalidTargetResult result){
+        invalidTargetResults.add(result);
     }
 
     public ImmutableList<RuleBasedValidTargetResult> getValidTargetResults(){
@@ -40,6 +41,16 @@ public class RuleBasedResultSet implements ResultSet {
         return ImmutableList.copyOf(invalidTargetResults);
     }
 
+    @Override
+    public int getNumberOfValidTargets() {
+        return validTargetResults.size();
+    }
+
+    @Override
+    public int getNumberOfInvalidTargets() {
+        return invalidTargetResults.size();
+    }
+
     @Override
     public String toString() {
         return invalidTargetResults.stream()
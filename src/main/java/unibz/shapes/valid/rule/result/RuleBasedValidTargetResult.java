@@ -1,10 +1,9 @@
 package unibz.shapes.valid.rule.result;
 
-import com.google.common.collect.ImmutableSet;
 import unibz.shapes.core.Literal;
 import unibz.shapes.shape.Shape;
 import unibz.shapes.valid.result.ValidTargetResult;
-import unibz.shapes.valid.rule.EvalPath;
+import unibz.shapes.valid.rule.EvalPathSet;
 
 import java.util.Optional;
 
@@ -12,7 +11,7 @@ public class RuleBasedValidTargetResult extends RuleBasedResult implements Valid
 
     protected final Optional<Shape> focusShape;
 
-    public RuleBasedValidTargetResult(Literal target, int depth, Optional<Shape> focusShape, ImmutableSet<EvalPath> evalPaths) {
+    public RuleBasedValidTargetResult(Literal target, int depth, Optional<Shape> focusShape, EvalPathSet evalPaths) {
         super(target, depth, evalPaths);
         this.focusShape = focusShape;
     }
@@ -24,4 +23,13 @@ public class RuleBasedValidTargetResult extends RuleBasedResult implements Valid
     public Optional<Shape> getFocusShape() {
         return focusShape;
     }
+
+    @Override
+    public String toString() {
+        return getTarget() +
+                ", valid at depth " +
+                getDepth() +
+                focusShape.map(s -> ", focus shape: " + s)
+                        .orElse(", not violated after termination");
+    }
 }
@@ -13,6 +13,11 @@ public class TestEvalJSON {
         Eval.main(new String[]{"-d", "ex/shapes/nonRec/1/", "http://dbpedia.org/sparql","./output"});
     }
 
+    @Test
+    public void nonRec2_embedded_json() {
+        Eval.main(new String[]{"-d", "ex/shapes/nonRec/2/", "-l", "src/test/resources/data/movies.ttl", "./output"});
+    }
+
     @Test
     public void varia1_json() {
         Eval.main(new String[]{"-d", "ex/shapes/varia/", "http://dbpedia.org/sparql","./output"});
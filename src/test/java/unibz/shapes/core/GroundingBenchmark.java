@@ -0,0 +1,102 @@
+package unibz.shapes.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.impl.ListBindingSet;
+import org.openjdk.jmh.annotations.*;
+import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.impl.CompactRuleMap;
+import unibz.shapes.core.global.impl.HashRuleMap;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Grounding of synthetic solution mappings (a query pattern and a shape pattern, with 3 variables),
+ * with a GroundingPlan or one pattern and one atom at a time (see PatternGrounding).
+ * Solution mappings are in random order, or sorted by focus node (as consecutive solution mappings often share their focus node,
+ * whose encoding is then reused by the grounder).
+ * <p>
+ * Run with: mvn -Pbench test-compile exec:exec -Dbench=GroundingBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class GroundingBenchmark {
+
+    static final int ROWS = 200000;
+    private static final int NODES = 50000;
+
+    @Param({"hash", "compact"})
+    public String ruleMap;
+
+    @Param({"random", "byFocusNode"})
+    public String rowOrder;
+
+    private ImmutableList<RulePattern> patterns;
+    private GroundingPlan plan;
+    private List<BindingSet> rows;
+
+    @Setup
+    public void setUp() {
+        patterns = ImmutableList.of(
+                new RulePattern(
+                        new Literal("q1", "x", true),
+                        ImmutableSet.of(new Literal("T", "y", true), new Literal("U", "z", false))
+                ),
+                new RulePattern(
+                        new Literal("S", "x", true),
+                        ImmutableSet.of(new Literal("q1", "x", true), new Literal("q2", "x", false))
+                ));
+        plan = GroundingPlan.compile(patterns);
+        rows = createRows(new Random(1));
+        if (rowOrder.equals("byFocusNode")) {
+            rows.sort(Comparator.comparing(b -> b.getValue("x").stringValue()));
+        }
+    }
+
+    static List<BindingSet> createRows(Random random) {
+        ImmutableList<String> names = ImmutableList.of("x", "y", "z", "w");
+        List<BindingSet> rows = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) {
+            List<Value> values = new ArrayList<>(names.size());
+            for (int j = 0; j < 3; j++) {
+                values.add(SimpleValueFactory.getInstance().createIRI("http://ex.org/n" + random.nextInt(NODES)));
+            }
+            values.add(SimpleValueFactory.getInstance().createIRI("http://ex.org/w"));
+            rows.add(new ListBindingSet(names, values));
+        }
+        return rows;
+    }
+
+    private RuleMap createRuleMap() {
+        return ruleMap.equals("hash") ?
+                new HashRuleMap() :
+                new CompactRuleMap();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int groundingPlan() {
+        RuleMap rules = createRuleMap();
+        rows.forEach(plan.grounder(rules));
+        return rules.getRuleNumber();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int patternByPattern() {
+        RuleMap rules = createRuleMap();
+        rows.forEach(b -> PatternGrounding.ground(b, patterns, rules));
+        return rules.getRuleNumber();
+    }
+}
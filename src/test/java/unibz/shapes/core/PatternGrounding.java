@@ -0,0 +1,44 @@
+package unibz.shapes.core;
+
+import com.google.common.collect.ImmutableSet;
+import org.eclipse.rdf4j.query.BindingSet;
+import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.TermDictionary;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Grounding of rule patterns one pattern and one atom at a time,
+ * as done before GroundingPlan (RulePattern.instantiateAtom and instantiateBody).
+ * Reference for tests and benchmarks.
+ */
+class PatternGrounding {
+
+    static void ground(BindingSet bs, List<RulePattern> patterns, RuleMap ruleMap) {
+        Set<String> bindingVars = bs.getBindingNames();
+        for (RulePattern pattern : patterns) {
+            if (bindingVars.containsAll(pattern.getVariables())) {
+                ruleMap.addRule(
+                        instantiateAtom(pattern.getHead(), bs),
+                        instantiateBody(pattern, bs)
+                );
+            }
+        }
+    }
+
+    private static Literal instantiateAtom(Literal a, BindingSet bs) {
+        return new Literal(
+                a.getPredicateId(),
+                TermDictionary.getNodes().encode(bs.getValue(a.getArg()).stringValue()),
+                a.isPos()
+        );
+    }
+
+    private static ImmutableSet<Literal> instantiateBody(RulePattern pattern, BindingSet bs) {
+        return pattern.getLiterals().stream()
+                .map(a -> instantiateAtom(a, bs))
+                .collect(ImmutableCollectors.toSet());
+    }
+}
@@ -0,0 +1,141 @@
+package unibz.shapes.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.impl.ListBindingSet;
+import org.junit.Test;
+import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.impl.CompactRuleMap;
+import unibz.shapes.core.global.impl.HashRuleMap;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * GroundingPlan must produce the same rules as the instantiation of each pattern (see PatternGrounding)
+ */
+public class TestGroundingPlan {
+
+    private static final ImmutableList<String> VARIABLES = ImmutableList.of("x", "y", "z", "w");
+
+    @Test
+    public void patternWithUnboundVariableIsSkipped() {
+        RulePattern query = new RulePattern(
+                new Literal("q1", "x", true),
+                ImmutableSet.of(new Literal("T", "y", true), new Literal("U", "z", false))
+        );
+        RulePattern shape = new RulePattern(
+                new Literal("S", "x", true),
+                ImmutableSet.of(new Literal("q1", "x", true))
+        );
+        ImmutableList<RulePattern> patterns = ImmutableList.of(query, shape);
+        // z is unbound: only the shape pattern is instantiated
+        BindingSet bs = row(ImmutableList.of("x", "y"), ImmutableList.of("http://ex.org/a", "http://ex.org/b"));
+        RuleMap rules = new HashRuleMap();
+        GroundingPlan.compile(patterns).grounder(rules).accept(bs);
+        assertEquals(1, rules.getRuleNumber());
+        assertEquals(
+                ImmutableSet.of(ImmutableSet.of(new Literal("q1", "http://ex.org/a", true))),
+                rules.getRuleSet(new Literal("S", "http://ex.org/a", true))
+        );
+        assertSameRules(patterns, ImmutableList.of(bs));
+    }
+
+    @Test
+    public void sharedVariablesAndRepeatedAtoms() {
+        // the same variable in several atoms and patterns, and a body atom equal to another once instantiated
+        RulePattern p1 = new RulePattern(
+                new Literal("q2", "x", true),
+                ImmutableSet.of(new Literal("T", "x", true), new Literal("T", "y", true), new Literal("U", "y", false))
+        );
+        RulePattern p2 = new RulePattern(
+                new Literal("S", "y", false),
+                ImmutableSet.of(new Literal("q2", "x", true), new Literal("T", "x", true))
+        );
+        List<BindingSet> rows = ImmutableList.of(
+                row(ImmutableList.of("x", "y"), ImmutableList.of("http://ex.org/a", "http://ex.org/a")),
+                row(ImmutableList.of("x", "y"), ImmutableList.of("http://ex.org/a", "http://ex.org/b")),
+                row(ImmutableList.of("y"), ImmutableList.of("http://ex.org/b"))
+        );
+        assertSameRules(ImmutableList.of(p1, p2), rows);
+    }
+
+    @Test
+    public void randomPatternsAndRows() {
+        Random random = new Random(7);
+        int rules = 0;
+        for (int i = 0; i < 200; i++) {
+            ImmutableList.Builder<RulePattern> patterns = ImmutableList.builder();
+            int patternNumber = 1 + random.nextInt(4);
+            for (int j = 0; j < patternNumber; j++) {
+                patterns.add(randomPattern(random));
+            }
+            List<BindingSet> rows = new ArrayList<>();
+            for (int j = 0; j < 100; j++) {
+                rows.add(randomRow(random));
+            }
+            rules += assertSameRules(patterns.build(), rows);
+        }
+        assertTrue(rules > 0);
+    }
+
+    /**
+     * Returns the number of rules
+     */
+    private static int assertSameRules(ImmutableList<RulePattern> patterns, List<BindingSet> rows) {
+        RuleMap expected = new HashRuleMap();
+        rows.forEach(b -> PatternGrounding.ground(b, patterns, expected));
+        GroundingPlan plan = GroundingPlan.compile(patterns);
+        for (RuleMap actual : ImmutableList.of(new HashRuleMap(), new CompactRuleMap())) {
+            rows.forEach(plan.grounder(actual));
+            assertEquals(toMap(expected), toMap(actual));
+            assertEquals(expected.getRuleNumber(), actual.getRuleNumber());
+        }
+        return expected.getRuleNumber();
+    }
+
+    private static Map<Literal, Set<ImmutableSet<Literal>>> toMap(RuleMap ruleMap) {
+        Map<Literal, Set<ImmutableSet<Literal>>> map = new HashMap<>();
+        ruleMap.entrySet().forEach(e -> map.put(e.getKey(), new HashSet<>(e.getValue())));
+        return map;
+    }
+
+    private static RulePattern randomPattern(Random random) {
+        ImmutableSet.Builder<Literal> body = ImmutableSet.builder();
+        int n = random.nextInt(4);
+        for (int i = 0; i < n; i++) {
+            body.add(randomAtom(random, "p" + random.nextInt(3)));
+        }
+        return new RulePattern(randomAtom(random, "h" + random.nextInt(2)), body.build());
+    }
+
+    private static Literal randomAtom(Random random, String predicate) {
+        return new Literal(predicate, VARIABLES.get(random.nextInt(VARIABLES.size())), random.nextBoolean());
+    }
+
+    /**
+     * Each variable is unbound with probability 1/4
+     */
+    private static BindingSet randomRow(Random random) {
+        List<String> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        for (String v : VARIABLES) {
+            if (random.nextInt(4) > 0) {
+                names.add(v);
+                values.add("http://ex.org/n" + random.nextInt(5));
+            }
+        }
+        return row(names, values);
+    }
+
+    private static BindingSet row(List<String> names, List<String> values) {
+        List<Value> iris = new ArrayList<>(values.size());
+        values.forEach(v -> iris.add(SimpleValueFactory.getInstance().createIRI(v)));
+        return new ListBindingSet(names, iris);
+    }
+}
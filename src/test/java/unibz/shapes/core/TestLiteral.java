@@ -0,0 +1,75 @@
+package unibz.shapes.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLiteral {
+
+    private static final int MAX_PREDICATE_ID = (1 << 30) - 1;
+
+    /**
+     * Predicate id, node id and sign do not overlap, including at the bounds of each field
+     */
+    @Test
+    public void fieldsRoundTrip() {
+        int[] predicateIds = {0, 1, 12345, MAX_PREDICATE_ID};
+        // all 32 bits of the node id are kept
+        int[] nodeIds = {0, 1, 67890, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        for (int p : predicateIds) {
+            for (int n : nodeIds) {
+                for (boolean isPos : new boolean[]{true, false}) {
+                    long code = Literal.encode(p, n, isPos);
+                    Literal l = Literal.decode(code);
+                    assertEquals(p, l.getPredicateId());
+                    assertEquals(n, l.getNodeId());
+                    assertEquals(isPos, l.isPos());
+                    assertEquals(isPos, Literal.isPos(code));
+                    assertTrue(code >= 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * The sign is the lowest bit: negating a literal only changes its sign
+     */
+    @Test
+    public void signBit() {
+        long pos = Literal.encode(MAX_PREDICATE_ID, -1, true);
+        long neg = Literal.negate(pos);
+        assertEquals(1L, pos ^ neg);
+        assertFalse(Literal.isPos(neg));
+        assertEquals(pos, Literal.getAtom(neg));
+        assertEquals(pos, Literal.getAtom(pos));
+
+        Literal l = Literal.decode(neg);
+        assertEquals(Literal.decode(pos), l.getAtom());
+        assertEquals(Literal.decode(pos), l.getNegation());
+        assertEquals(l, l.getNegation().getNegation());
+        assertNotEquals(l, l.getNegation());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void predicateIdAboveMax() {
+        Literal.encode(MAX_PREDICATE_ID + 1, 0, true);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativePredicateId() {
+        Literal.encode(-1, 0, true);
+    }
+
+    @Test
+    public void termsAreDecodedThroughTheDictionaries() {
+        Literal l = new Literal("testLiteralShape", "http://example.org/a", false);
+        assertEquals("testLiteralShape", l.getPredicate());
+        assertEquals("http://example.org/a", l.getArg());
+        assertEquals("!testLiteralShape(http://example.org/a)", l.toString());
+        assertEquals(l, new Literal("testLiteralShape", "http://example.org/a", false));
+        assertEquals(l.hashCode(), new Literal("testLiteralShape", "http://example.org/a", false).hashCode());
+    }
+}
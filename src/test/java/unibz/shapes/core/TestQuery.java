@@ -0,0 +1,62 @@
+package unibz.shapes.core;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestQuery {
+
+    private static final String SPARQL = "PREFIX ex: <http://example.org/>\n" +
+            "SELECT DISTINCT ?x ?y WHERE{\n" +
+            "\n" +
+            "?x ex:p ?y.\n" +
+            "\n}";
+
+    @Test
+    public void restrictInsertsAValuesBlock() {
+        Query q = new Query("q", null, SPARQL);
+        Query restricted = q.restrict("q_batch0", ImmutableList.of("http://example.org/a", "http://example.org/b"));
+        assertEquals("q_batch0", restricted.getId());
+        assertSame(q.getRulePattern(), restricted.getRulePattern());
+        assertEquals(
+                "PREFIX ex: <http://example.org/>\n" +
+                        "SELECT DISTINCT ?x ?y WHERE{\n" +
+                        "VALUES ?x { <http://example.org/a> <http://example.org/b> }\n" +
+                        "\n" +
+                        "?x ex:p ?y.\n" +
+                        "\n}",
+                restricted.getSparql()
+        );
+        // the original query is unchanged
+        assertEquals(SPARQL, q.getSparql());
+    }
+
+    /**
+     * Prefixes stay in front of the count query, the rest of the query becomes a subquery
+     */
+    @Test
+    public void countQuery() {
+        assertEquals(
+                "PREFIX ex: <http://example.org/>\n" +
+                        "SELECT (COUNT(*) AS ?count) WHERE {\n" +
+                        "SELECT DISTINCT ?x ?y WHERE{\n" +
+                        "\n" +
+                        "?x ex:p ?y.\n" +
+                        "\n}\n" +
+                        "}",
+                new Query("q", null, SPARQL).getCountQuery()
+        );
+    }
+
+    @Test
+    public void emptyValuesBlock() {
+        assertEquals("VALUES ?x { }", Query.getValuesBlock(ImmutableList.of()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void queryWithoutWhereClauseCannotBeRestricted() {
+        new Query("q", null, "ASK { ?x ?p ?o }").restrict("q_batch0", ImmutableList.of("http://example.org/a"));
+    }
+}
@@ -0,0 +1,92 @@
+package unibz.shapes.core.global.impl;
+
+import com.google.common.collect.ImmutableSet;
+import org.openjdk.jmh.annotations.*;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.global.RuleMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Concurrent additions of the same rules to a rule map, by a number of workers
+ * (each adds the rules of a disjoint subset, as grounding workers do).
+ * <p>
+ * Run with: mvn -Pbench test-compile exec:exec -Dbench=RuleMapContentionBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class RuleMapContentionBenchmark {
+
+    private static final int RULES = 400000;
+    private static final int NODES = 50000;
+
+    @Param({"striped", "synchronized"})
+    public String ruleMap;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    private Literal[] heads;
+    private List<ImmutableSet<Literal>> bodies;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(3);
+        heads = new Literal[RULES];
+        bodies = new ArrayList<>(RULES);
+        for (int i = 0; i < RULES; i++) {
+            heads[i] = new Literal(1, random.nextInt(NODES), true);
+            bodies.add(ImmutableSet.of(
+                    new Literal(2, random.nextInt(NODES), true),
+                    new Literal(3, random.nextInt(NODES), false)
+            ));
+        }
+        executor = Executors.newFixedThreadPool(workers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private RuleMap createRuleMap() {
+        switch (ruleMap) {
+            case "striped":
+                return new StripedRuleMap(4 * workers, HashRuleMap::new);
+            case "synchronized":
+                return new StripedRuleMap(1, HashRuleMap::new);
+            default:
+                throw new IllegalArgumentException("Unknown rule map " + ruleMap);
+        }
+    }
+
+    @Benchmark
+    public int addRules() throws InterruptedException, ExecutionException {
+        RuleMap map = createRuleMap();
+        List<Future<?>> futures = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            int first = w;
+            futures.add(executor.submit(() -> {
+                for (int i = first; i < RULES; i += workers) {
+                    map.addRule(heads[i], bodies.get(i));
+                }
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        return map.getRuleNumber();
+    }
+}
@@ -0,0 +1,135 @@
+package unibz.shapes.core.global.impl;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.global.RuleMap;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Applies the same random operations to a CompactRuleMap and to a HashRuleMap, and compares their content
+ */
+public class TestCompactRuleMap {
+
+    private static final int OPERATIONS = 200000;
+
+    @Test
+    public void sameRulesAsHashRuleMap() {
+        for (long seed = 0; seed < 5; seed++) {
+            // few heads, so that heads get several rules, and rules are removed and added again
+            compare(new Random(seed), 50, 20);
+            compare(new Random(seed), 5000, 200);
+        }
+    }
+
+    @Test
+    public void compactionAfterRemovals() {
+        CompactRuleMap map = new CompactRuleMap();
+        RuleMap expected = new HashRuleMap();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            Literal head = literal(random, 1000);
+            ImmutableSet<Literal> body = body(random, 1000);
+            map.addRule(head, body);
+            expected.addRule(head, body);
+        }
+        long bytes = map.getEstimatedBytes();
+        // removes and adds back all rules, several times: the arrays are compacted instead of growing
+        for (int round = 0; round < 10; round++) {
+            for (Literal head : new ArrayList<>(expected.keySet())) {
+                map.remove(head);
+            }
+            expected.entrySet().forEach(e -> e.getValue().forEach(b -> map.addRule(e.getKey(), b)));
+        }
+        assertSameRules(expected, map);
+        assertTrue("allocated " + map.getEstimatedBytes() + " bytes instead of " + bytes, map.getEstimatedBytes() <= 2 * bytes);
+    }
+
+    private static void compare(Random random, int nodes, int maxHeadNodes) {
+        CompactRuleMap map = new CompactRuleMap();
+        RuleMap expected = new HashRuleMap();
+        for (int i = 0; i < OPERATIONS; i++) {
+            Literal head = literal(random, maxHeadNodes);
+            int op = random.nextInt(100);
+            if (op < 60) {
+                ImmutableSet<Literal> body = body(random, nodes);
+                map.addRule(head, body);
+                expected.addRule(head, body);
+            } else if (op < 80) {
+                // encoded literals, possibly with duplicates
+                long[] body = new long[1 + random.nextInt(4)];
+                for (int j = 0; j < body.length; j++) {
+                    body[j] = j > 0 && random.nextBoolean() ?
+                            body[j - 1] :
+                            literal(random, nodes).getCode();
+                }
+                map.addRule(head.getCode(), body);
+                expected.addRule(head.getCode(), body);
+            } else if (op < 90) {
+                map.remove(head);
+                expected.remove(head);
+            } else if (op < 95) {
+                Set<ImmutableSet<Literal>> bodies = bodies(random, nodes);
+                map.addRuleSet(head, bodies);
+                expected.addRuleSet(head, new HashSet<>(bodies));
+            } else {
+                Set<ImmutableSet<Literal>> bodies = bodies(random, nodes);
+                map.replace(head, bodies);
+                expected.replace(head, new HashSet<>(bodies));
+            }
+        }
+        assertSameRules(expected, map);
+    }
+
+    private static void assertSameRules(RuleMap expected, RuleMap map) {
+        Map<Literal, Set<ImmutableSet<Literal>>> expectedRules = toMap(expected);
+        assertEquals(expectedRules, toMap(map));
+        assertEquals(expectedRules.keySet(), new HashSet<>(map.keySet()));
+        assertEquals(expectedRules.size(), map.keySet().size());
+        assertEquals(expectedRules.size(), map.entrySet().size());
+        assertEquals(expectedRules.values().stream().mapToInt(Set::size).sum(), map.getRuleNumber());
+        assertEquals(HashMultiset.create(expected.getAllBodyAtoms().collect(Collectors.toList())),
+                HashMultiset.create(map.getAllBodyAtoms().collect(Collectors.toList())));
+        for (Literal head : expectedRules.keySet()) {
+            assertTrue(map.keySet().contains(head));
+            assertEquals(expectedRules.get(head), map.getRuleSet(head));
+        }
+    }
+
+    private static Map<Literal, Set<ImmutableSet<Literal>>> toMap(RuleMap ruleMap) {
+        Map<Literal, Set<ImmutableSet<Literal>>> map = new HashMap<>();
+        // rule maps may keep heads without rules
+        ruleMap.entrySet().stream()
+                .filter(e -> !e.getValue().isEmpty())
+                .forEach(e -> map.put(e.getKey(), new HashSet<>(e.getValue())));
+        return map;
+    }
+
+    private static Literal literal(Random random, int nodes) {
+        return new Literal(1 + random.nextInt(3), random.nextInt(nodes), random.nextBoolean());
+    }
+
+    private static ImmutableSet<Literal> body(Random random, int nodes) {
+        ImmutableSet.Builder<Literal> body = ImmutableSet.builder();
+        int n = 1 + random.nextInt(3);
+        for (int j = 0; j < n; j++) {
+            body.add(literal(random, nodes));
+        }
+        return body.build();
+    }
+
+    private static Set<ImmutableSet<Literal>> bodies(Random random, int nodes) {
+        Set<ImmutableSet<Literal>> bodies = new HashSet<>();
+        int n = 1 + random.nextInt(3);
+        for (int j = 0; j < n; j++) {
+            bodies.add(body(random, nodes));
+        }
+        return bodies;
+    }
+}
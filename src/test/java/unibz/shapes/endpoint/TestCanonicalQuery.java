@@ -0,0 +1,58 @@
+package unibz.shapes.endpoint;
+
+import org.junit.Test;
+import unibz.shapes.endpoint.QueryResultCache.CanonicalQuery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TestCanonicalQuery {
+
+    @Test
+    public void whitespaceCommentsAndVariableNamesAreIgnored() {
+        CanonicalQuery q1 = CanonicalQuery.of("SELECT ?x ?y WHERE {\n  ?x <http://example.org/p> ?y . # comment\n}");
+        CanonicalQuery q2 = CanonicalQuery.of("SELECT $a ?b WHERE { ?a <http://example.org/p> ?b . }");
+        assertEquals("SELECT ?v0 ?v1 WHERE{?v0 <http://example.org/p> ?v1 .}", q1.getText());
+        assertEquals(q1.getText(), q2.getText());
+    }
+
+    /**
+     * Variables are renamed by order of first occurrence, so the order of the projection matters
+     */
+    @Test
+    public void variablesAreRenamedByFirstOccurrence() {
+        CanonicalQuery q = CanonicalQuery.of("SELECT ?y ?x WHERE { ?x <http://example.org/p> ?y }");
+        assertEquals("v0", q.getCanonicalName("y"));
+        assertEquals("v1", q.getCanonicalName("x"));
+        assertEquals("x", q.getOriginalName("v1"));
+        assertNotEquals(
+                q.getText(),
+                CanonicalQuery.of("SELECT ?x ?y WHERE { ?x <http://example.org/p> ?y }").getText()
+        );
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVariable() {
+        CanonicalQuery.of("SELECT ?x WHERE { ?x ?p ?o }").getCanonicalName("y");
+    }
+
+    /**
+     * IRIs and string literals are left unchanged, even if they contain '#', '?' or whitespace,
+     * and a comparison operator is not mistaken for the start of an IRI
+     */
+    @Test
+    public void irisAndLiteralsAreLeftUnchanged() {
+        CanonicalQuery q = CanonicalQuery.of(
+                "SELECT ?x WHERE { ?x <http://example.org/ns#p> \"a  ?b # c\" ; <http://example.org/q> ?n . FILTER (?n < 3 && ?n > 1) }");
+        assertEquals(
+                "SELECT ?v0 WHERE{?v0 <http://example.org/ns#p> \"a  ?b # c\";<http://example.org/q> ?v1 . FILTER(?v1 < 3 && ?v1 > 1)}",
+                q.getText()
+        );
+        assertNotEquals(
+                q.getText(),
+                CanonicalQuery.of(
+                        "SELECT ?x WHERE { ?x <http://example.org/ns#p> \"a ?b # c\" ; <http://example.org/q> ?n . FILTER (?n < 3 && ?n > 1) }"
+                ).getText()
+        );
+    }
+}
@@ -0,0 +1,133 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.rdf4j.repository.Repository;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestConnectionPool {
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final AtomicBoolean shutDown = new AtomicBoolean();
+
+    /**
+     * Connections are opened lazily, up to the size of the pool, and released connections are reused
+     */
+    @Test
+    public void releasedConnectionsAreReused() throws Exception {
+        try (ConnectionPool pool = new ConnectionPool(createRepository(), 2)) {
+            ConnectionPool.PooledConnection c1 = pool.borrow();
+            assertEquals(1, openConnections.get());
+            pool.release(c1);
+            assertSame(c1, pool.borrow());
+            ConnectionPool.PooledConnection c2 = pool.borrow();
+            assertEquals(2, openConnections.get());
+            pool.release(c1);
+            pool.release(c2);
+            assertEquals(ImmutableList.of(1, 0), pool.getReuseCounts());
+        }
+        assertEquals(0, openConnections.get());
+        assertTrue(shutDown.get());
+    }
+
+    @Test
+    public void borrowWaitsForARelease() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (ConnectionPool pool = new ConnectionPool(createRepository(), 1)) {
+            ConnectionPool.PooledConnection conn = pool.borrow();
+            Future<ConnectionPool.PooledConnection> borrowed = executor.submit(pool::borrow);
+            Thread.sleep(200);
+            assertFalse(borrowed.isDone());
+
+            pool.release(conn);
+            assertSame(conn, borrowed.get(10, TimeUnit.SECONDS));
+            assertEquals(1, openConnections.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void closeWakesUpWaitingThreads() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ConnectionPool pool = new ConnectionPool(createRepository(), 1);
+            pool.borrow();
+            Future<ConnectionPool.PooledConnection> borrowed = executor.submit(pool::borrow);
+            Thread.sleep(200);
+            assertFalse(borrowed.isDone());
+
+            pool.close();
+            try {
+                borrowed.get(10, TimeUnit.SECONDS);
+                fail("A thread waiting for a connection must fail once the pool is closed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            assertEquals(0, openConnections.get());
+            assertTrue(shutDown.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Only counts open connections, and whether it has been shut down
+     */
+    private Repository createRepository() {
+        return (Repository) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{Repository.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getConnection":
+                            openConnections.incrementAndGet();
+                            return createConnection();
+                        case "shutDown":
+                            shutDown.set(true);
+                            return null;
+                        case "isInitialized":
+                            return true;
+                        default:
+                            return null;
+                    }
+                }
+        );
+    }
+
+    private RepositoryConnection createConnection() {
+        AtomicBoolean open = new AtomicBoolean(true);
+        return (RepositoryConnection) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{RepositoryConnection.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            if (open.getAndSet(false)) {
+                                openConnections.decrementAndGet();
+                            }
+                            return null;
+                        case "isOpen":
+                            return open.get();
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+        );
+    }
+}
@@ -0,0 +1,58 @@
+package unibz.shapes.endpoint;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TestEmbeddedSPARQLEndpoint {
+
+    /**
+     * If the data cannot be loaded, the store is shut down, so that its directory is not left locked
+     */
+    @Test
+    public void storeIsShutDownIfLoadingFails() throws Exception {
+        Path dir = Files.createTempDirectory("embeddedStore");
+        try {
+            Path storeDir = dir.resolve("store");
+            Path invalid = dir.resolve("invalid.ttl");
+            Files.write(invalid, "<http://example.org/a> <http://example.org/p> .".getBytes(StandardCharsets.UTF_8));
+            try {
+                new EmbeddedSPARQLEndpoint(Optional.of(invalid), Optional.of(storeDir), 1, Optional.empty(), Optional.empty());
+                fail("The data is not valid Turtle");
+            } catch (RuntimeException e) {
+                // expected
+            }
+
+            Path valid = dir.resolve("valid.ttl");
+            Files.write(valid, "<http://example.org/a> <http://example.org/p> <http://example.org/b> .".getBytes(StandardCharsets.UTF_8));
+            try (SPARQLEndpoint endpoint = new EmbeddedSPARQLEndpoint(Optional.of(valid), Optional.of(storeDir), 1,
+                    Optional.empty(), Optional.empty())) {
+                QueryEvaluation eval = endpoint.runQuery("q", "SELECT ?x WHERE { ?x <http://example.org/p> ?y }");
+                assertEquals(1, eval.getNumberOfSolutionMappings());
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    private static void delete(Path dir) throws IOException {
+        List<Path> files;
+        try (Stream<Path> s = Files.walk(dir)) {
+            files = s.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path f : files) {
+            Files.deleteIfExists(f);
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package unibz.shapes.endpoint;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Only failures due to the result format trigger a fall back to another format
+ */
+public class TestFormatFailure {
+
+    @Test
+    public void notAcceptableStatusIsAFormatFailure() {
+        assertTrue(AbstractSPARQLEndpoint.isFormatFailure(new RuntimeException("Not Acceptable (406)")));
+        assertTrue(AbstractSPARQLEndpoint.isFormatFailure(new RuntimeException("HTTP/1.1 406")));
+        assertTrue(AbstractSPARQLEndpoint.isFormatFailure(
+                new RuntimeException("Query evaluation failed", new RuntimeException("(406)"))));
+    }
+
+    @Test
+    public void otherOccurrencesOf406AreNot() {
+        assertFalse(AbstractSPARQLEndpoint.isFormatFailure(
+                new RuntimeException("Syntax error at line 406: SELECT ?x WHERE { ?x <http://example.org/p4061> ?y }")));
+        assertFalse(AbstractSPARQLEndpoint.isFormatFailure(new RuntimeException("Query timed out after 4060 ms")));
+        assertFalse(AbstractSPARQLEndpoint.isFormatFailure(new RuntimeException((String) null)));
+    }
+}
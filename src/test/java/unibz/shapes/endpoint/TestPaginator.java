@@ -0,0 +1,144 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryInterruptedException;
+import org.eclipse.rdf4j.query.impl.IteratingTupleQueryResult;
+import org.eclipse.rdf4j.query.impl.ListBindingSet;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPaginator {
+
+    private static final String QUERY = "SELECT ?x WHERE { ?x a <http://example.org/C> }";
+    private static final Pattern LIMIT = Pattern.compile("LIMIT (\\d+)\\s+OFFSET (\\d+)");
+    private static final int ROWS = 300;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    // limit of each page query, in order
+    private final List<Integer> limits = Collections.synchronizedList(new ArrayList<>());
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Pages retrieved quickly are doubled, up to the maximal page size
+     */
+    @Test
+    public void pageSizeGrowsWithLowLatency() {
+        Paginator paginator = new Paginator(new Pagination(10, 1, 80, 60000), createEndpoint(Integer.MAX_VALUE, l -> false), executor);
+        assertEquals(getExpectedRows(), getRows(paginator));
+        assertEquals(ImmutableList.of(10, 20, 40, 80, 80, 80), limits.subList(0, 6));
+    }
+
+    /**
+     * A page with fewer solution mappings than requested, followed by a non-empty one, bounds the size of all later pages
+     */
+    @Test
+    public void truncatedPagesBoundThePageSize() {
+        Paginator paginator = new Paginator(new Pagination(10, 1, 80, 60000), createEndpoint(25, l -> false), executor);
+        assertEquals(getExpectedRows(), getRows(paginator));
+        // pages requested before the truncation was detected may be larger
+        List<Integer> lastLimits = limits.subList(limits.size() - 3, limits.size());
+        assertEquals(ImmutableList.of(25, 25, 25), lastLimits);
+
+        // the bound applies to the next queries as well
+        limits.clear();
+        assertEquals(getExpectedRows(), getRows(paginator));
+        assertTrue(limits.stream().allMatch(l -> l <= 25));
+    }
+
+    /**
+     * A page which times out is retrieved again with half the size
+     */
+    @Test
+    public void timeoutsAreRetriedWithSmallerPages() {
+        Paginator paginator = new Paginator(new Pagination(40, 5, 40, 60000),
+                createEndpoint(Integer.MAX_VALUE, l -> l > 10), executor);
+        assertEquals(getExpectedRows(), getRows(paginator));
+        assertEquals(ImmutableList.of(40, 20, 10), limits.subList(0, 3));
+    }
+
+    @Test
+    public void otherFailuresAreNotRetried() {
+        BiFunction<String, String, QueryEvaluation> endpoint = (id, q) -> {
+            limits.add(getLimit(q));
+            throw new RuntimeException("Syntax error at line 3");
+        };
+        try {
+            new Paginator(new Pagination(40, 5, 40, 60000), endpoint, executor).evaluate("q", QUERY);
+            fail("The evaluation of the first page fails");
+        } catch (RuntimeException e) {
+            assertEquals("Syntax error at line 3", e.getMessage());
+        }
+        assertEquals(ImmutableList.of(40), limits);
+    }
+
+    /**
+     * At most rowLimit solution mappings per query,
+     * and pages whose limit matches the timeout predicate fail with a timeout
+     */
+    private BiFunction<String, String, QueryEvaluation> createEndpoint(int rowLimit, IntPredicate timesOut) {
+        return (id, q) -> {
+            int limit = getLimit(q);
+            limits.add(limit);
+            if (timesOut.test(limit)) {
+                throw new QueryInterruptedException("Query evaluation timed out");
+            }
+            Matcher m = LIMIT.matcher(q);
+            assertTrue(m.find());
+            int offset = Integer.parseInt(m.group(2));
+            List<BindingSet> rows = IntStream.range(offset, Math.min(ROWS, offset + Math.min(limit, rowLimit)))
+                    .mapToObj(TestPaginator::row)
+                    .collect(Collectors.toList());
+            QueryEvaluation eval = new QueryEvaluation(id, q, new IteratingTupleQueryResult(ImmutableList.of("x"), rows), Instant.now());
+            eval.iterate();
+            return eval;
+        };
+    }
+
+    private static int getLimit(String pageQuery) {
+        Matcher m = LIMIT.matcher(pageQuery);
+        assertTrue(m.find());
+        return Integer.parseInt(m.group(1));
+    }
+
+    private static List<String> getRows(Paginator paginator) {
+        List<String> rows = new ArrayList<>();
+        paginator.evaluate("q", QUERY).iterate(bs -> rows.add(bs.getValue("x").stringValue()));
+        return rows;
+    }
+
+    private static List<String> getExpectedRows() {
+        return IntStream.range(0, ROWS)
+                .mapToObj(i -> row(i).getValue("x").stringValue())
+                .collect(Collectors.toList());
+    }
+
+    private static BindingSet row(int i) {
+        return new ListBindingSet(
+                ImmutableList.of("x"),
+                ImmutableList.of(SimpleValueFactory.getInstance().createIRI("http://example.org/n" + i))
+        );
+    }
+}
@@ -0,0 +1,186 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.XMLSchema;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.impl.ListBindingSet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestPersistentQueryResultCache {
+
+    private static final ValueFactory vf = SimpleValueFactory.getInstance();
+    private static final String QUERY = "SELECT ?x ?l WHERE { ?x <http://example.org/p> ?l }";
+    // same canonical query
+    private static final String EQUIVALENT_QUERY = "SELECT ?y ?m WHERE {?y <http://example.org/p> ?m}";
+
+    private Path dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("persistentCache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path f : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(f);
+            }
+        }
+    }
+
+    /**
+     * Rows are replayed with the variable names of the query being evaluated
+     */
+    @Test
+    public void roundTrip() {
+        PersistentQueryResultCache cache = createCache(1 << 20, "v1");
+        List<BindingSet> rows = ImmutableList.of(
+                row(vf.createIRI("http://example.org/a"), vf.createLiteral("a")),
+                row(vf.createIRI("http://example.org/a"), vf.createLiteral("b", "en")),
+                row(vf.createBNode("b1"), vf.createLiteral("1", XMLSchema.INT)),
+                row(vf.createIRI("http://example.org/c"), null)
+        );
+        store(cache, QUERY, ImmutableList.of("x", "l"), rows);
+
+        List<BindingSet> replayed = replay(cache, EQUIVALENT_QUERY);
+        assertEquals(rows.size(), replayed.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(rows.get(i).getValue("x"), replayed.get(i).getValue("y"));
+            assertEquals(rows.get(i).getValue("l"), replayed.get(i).getValue("m"));
+        }
+        assertEquals(1, cache.getHits());
+
+        // another version of the graph
+        assertFalse(createCache(1 << 20, "v2").lookUp("q", QUERY).isPresent());
+    }
+
+    /**
+     * A corrupted or truncated file is a miss, and is deleted
+     */
+    @Test
+    public void corruptedFilesAreDeleted() throws IOException {
+        PersistentQueryResultCache cache = createCache(1 << 20, "v1");
+        List<BindingSet> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            rows.add(row(vf.createIRI("http://example.org/n" + i), vf.createLiteral("label " + i)));
+        }
+        store(cache, QUERY, ImmutableList.of("x", "l"), rows);
+        Path file = getFiles().get(0);
+        byte[] content = Files.readAllBytes(file);
+
+        Files.write(file, Arrays.copyOf(content, content.length - 4));
+        assertFalse(cache.lookUp("q", QUERY).isPresent());
+        assertFalse(Files.exists(file));
+
+        // the compressed data is valid, but not its CRC
+        byte[] crc = content.clone();
+        crc[crc.length - 5] ^= 1;
+        Files.write(file, crc);
+        assertFalse(cache.lookUp("q", QUERY).isPresent());
+        assertFalse(Files.exists(file));
+
+        // a variable name whose length exceeds any sane size (no array of this size must be allocated)
+        ByteArrayOutputStream huge = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(huge)) {
+            out.write(new byte[]{0x53, 0x48, 0x52, 0x43, 1, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07});
+        }
+        Files.write(file, huge.toByteArray());
+        assertFalse(cache.lookUp("q", QUERY).isPresent());
+        assertFalse(Files.exists(file));
+
+        assertEquals(0, cache.getHits());
+        assertEquals(3, cache.getMisses());
+    }
+
+    /**
+     * Least recently used files are deleted first
+     */
+    @Test
+    public void leastRecentlyUsedFilesAreEvicted() throws IOException {
+        String q1 = "SELECT ?x WHERE { ?x a <http://example.org/C1> }";
+        String q2 = "SELECT ?x WHERE { ?x a <http://example.org/C2> }";
+        String q3 = "SELECT ?x WHERE { ?x a <http://example.org/C3> }";
+        List<BindingSet> rows = ImmutableList.of(new ListBindingSet(
+                ImmutableList.of("x"),
+                ImmutableList.of(vf.createIRI("http://example.org/a"))
+        ));
+        PersistentQueryResultCache unbounded = createCache(Long.MAX_VALUE, "v1");
+        store(unbounded, q1, ImmutableList.of("x"), rows);
+        long fileSize = Files.size(getFiles().get(0));
+
+        PersistentQueryResultCache cache = createCache(2 * fileSize, "v1");
+        store(cache, q2, ImmutableList.of("x"), rows);
+        backdate(getFiles(), 60);
+        // q1 is now the most recently used
+        assertTrue(cache.lookUp("q1", q1).isPresent());
+        store(cache, q3, ImmutableList.of("x"), rows);
+
+        assertEquals(2, getFiles().size());
+        assertTrue(cache.lookUp("q1", q1).isPresent());
+        assertTrue(cache.lookUp("q3", q3).isPresent());
+        assertFalse(cache.lookUp("q2", q2).isPresent());
+    }
+
+    private PersistentQueryResultCache createCache(long maxBytes, String graphVersion) {
+        return new PersistentQueryResultCache(dir, maxBytes, "http://example.org/sparql", Optional.empty(), graphVersion);
+    }
+
+    private static BindingSet row(Value x, Value l) {
+        return l == null ?
+                new ListBindingSet(ImmutableList.of("x"), ImmutableList.of(x)) :
+                new ListBindingSet(ImmutableList.of("x", "l"), ImmutableList.of(x, l));
+    }
+
+    private static void store(PersistentQueryResultCache cache, String query, List<String> bindingNames, List<BindingSet> rows) {
+        PersistentQueryResultCache.Recorder recorder = cache.recorder(query, bindingNames);
+        rows.forEach(recorder);
+        recorder.store();
+    }
+
+    private static List<BindingSet> replay(PersistentQueryResultCache cache, String query) {
+        Optional<QueryEvaluation> eval = cache.lookUp("q", query);
+        assertTrue(eval.isPresent());
+        assertTrue(eval.get().isFromCache());
+        List<BindingSet> rows = new ArrayList<>();
+        eval.get().iterate(rows::add);
+        return rows;
+    }
+
+    private List<Path> getFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.toString().endsWith(".rows"))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static void backdate(List<Path> files, long seconds) throws IOException {
+        for (Path f : files) {
+            Files.setLastModifiedTime(f, FileTime.from(Instant.now().minusSeconds(seconds)));
+        }
+    }
+}
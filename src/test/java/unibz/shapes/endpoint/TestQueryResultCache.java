@@ -0,0 +1,83 @@
+package unibz.shapes.endpoint;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.impl.ListBindingSet;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Look-ups of a query which is being evaluated wait for this evaluation (single flight)
+ */
+public class TestQueryResultCache {
+
+    private static final String QUERY = "SELECT ?x WHERE { ?x a <http://example.org/C> }";
+    // same canonical query
+    private static final String EQUIVALENT_QUERY = "SELECT ?y WHERE {?y a <http://example.org/C>}";
+
+    @Test
+    public void concurrentLookUpWaitsForTheEvaluation() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1 << 20, Optional.empty());
+        assertFalse(cache.lookUpOrClaim("q1", QUERY).isPresent());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Optional<QueryEvaluation>> lookUp = executor.submit(() -> cache.lookUpOrClaim("q2", EQUIVALENT_QUERY));
+            Thread.sleep(200);
+            assertFalse(lookUp.isDone());
+
+            QueryResultCache.Recorder recorder = cache.recorder(QUERY, ImmutableList.of("x"));
+            recorder.accept(new ListBindingSet(
+                    ImmutableList.of("x"),
+                    ImmutableList.of(SimpleValueFactory.getInstance().createIRI("http://example.org/a"))
+            ));
+            recorder.store();
+            cache.release(QUERY);
+
+            Optional<QueryEvaluation> eval = lookUp.get(10, TimeUnit.SECONDS);
+            assertTrue(eval.isPresent());
+            assertTrue(eval.get().isFromCache());
+            assertEquals(Optional.of(1), cache.getCachedRowNumber(EQUIVALENT_QUERY));
+            assertEquals(1, cache.getMisses());
+            assertEquals(1, cache.getHits());
+            assertEquals(1, cache.getWaits());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * If the evaluation fails (or its result cannot be cached), a waiting look-up evaluates the query itself
+     */
+    @Test
+    public void uncachedEvaluationIsClaimedAgain() throws Exception {
+        QueryResultCache cache = new QueryResultCache(1 << 20, Optional.empty());
+        assertFalse(cache.lookUpOrClaim("q1", QUERY).isPresent());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Optional<QueryEvaluation>> lookUp = executor.submit(() -> cache.lookUpOrClaim("q2", EQUIVALENT_QUERY));
+            Thread.sleep(200);
+            assertFalse(lookUp.isDone());
+
+            cache.release(QUERY);
+            assertFalse(lookUp.get(10, TimeUnit.SECONDS).isPresent());
+            assertEquals(2, cache.getMisses());
+            cache.release(EQUIVALENT_QUERY);
+
+            // no evaluation in progress anymore
+            assertFalse(cache.lookUpOrClaim("q3", QUERY).isPresent());
+            assertEquals(3, cache.getMisses());
+            cache.release(QUERY);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package unibz.shapes.valid.rule;
+
+import com.google.common.collect.ImmutableSet;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.impl.HashRuleMap;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Reference saturation: the fixpoint loop which preceded Saturator (negateUnMatchableHeads and applyRules),
+ * which rescans all rules until no literal is added to the assignment.
+ * <p>
+ * Unlike the original loop, an atom which has been derived is never negated
+ * (the original one could negate a derived atom once its rules had been removed),
+ * and the loop also continues after rules are discarded (which may leave a head unsupported).
+ */
+class FixpointSaturation {
+
+    private RuleMap ruleMap = new HashRuleMap();
+    private final Set<Literal> assignment = new HashSet<>();
+    private final Set<String> evaluatedPredicates = new HashSet<>();
+    private Set<Literal> remainingTargets = new HashSet<>();
+    private final Set<Literal> decidedTargets = new HashSet<>();
+
+    void addTargets(Collection<Literal> targets) {
+        remainingTargets.addAll(targets);
+    }
+
+    void addRule(Literal head, ImmutableSet<Literal> body) {
+        ruleMap.addRule(head, body);
+    }
+
+    void setEvaluated(ImmutableSet<String> predicates) {
+        evaluatedPredicates.addAll(predicates);
+    }
+
+    /**
+     * Returns the targets decided so far: positive literals for valid targets, negative ones for invalid targets
+     */
+    Set<Literal> saturate() {
+        boolean negated = negateUnMatchableHeads();
+        boolean inferred = applyRules();
+        if (negated || inferred) {
+            return saturate();
+        }
+        return decidedTargets;
+    }
+
+    boolean isTrue(Literal l) {
+        return assignment.contains(l);
+    }
+
+    private boolean applyRules() {
+        RuleMap retainedRules = new HashRuleMap();
+        List<Literal> freshLiterals = ruleMap.entrySet().stream()
+                .filter(e -> e.getValue().stream()
+                        .anyMatch(b -> applyRule(e.getKey(), b, retainedRules)))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+        boolean discarded = retainedRules.getRuleNumber() < ruleMap.getRuleNumber();
+        ruleMap = retainedRules;
+        assignment.addAll(freshLiterals);
+        decideTargets();
+        return !freshLiterals.isEmpty() || discarded;
+    }
+
+    private boolean applyRule(Literal head, ImmutableSet<Literal> body, RuleMap retainedRules) {
+        if (assignment.containsAll(body)) {
+            return true;
+        }
+        if (body.stream()
+                .noneMatch(a -> assignment.contains(a.getNegation()))) {
+            retainedRules.addRule(head, body);
+        }
+        return false;
+    }
+
+    private boolean negateUnMatchableHeads() {
+        Set<Literal> ruleHeads = ruleMap.keySet();
+        int initialAssignmentSize = assignment.size();
+        ruleMap.getAllBodyAtoms()
+                .filter(a -> !isSatisfiable(a.getAtom(), ruleHeads))
+                .map(Literal::getAtom)
+                .map(Literal::getNegation)
+                .collect(Collectors.toList())
+                .forEach(assignment::add);
+        remainingTargets.stream()
+                .filter(t -> !isSatisfiable(t, ruleHeads))
+                .map(Literal::getNegation)
+                .forEach(assignment::add);
+        decideTargets();
+        return initialAssignmentSize != assignment.size();
+    }
+
+    private void decideTargets() {
+        Map<Boolean, List<Literal>> decided = remainingTargets.stream()
+                .collect(Collectors.partitioningBy(t -> assignment.contains(t) || assignment.contains(t.getNegation())));
+        decided.get(true).forEach(t -> decidedTargets.add(assignment.contains(t) ?
+                t :
+                t.getNegation()));
+        remainingTargets = new HashSet<>(decided.get(false));
+    }
+
+    /**
+     * An atom may still be true if its predicate has not been evaluated, if it has a rule, or if it is already true
+     */
+    private boolean isSatisfiable(Literal atom, Set<Literal> ruleHeads) {
+        return !evaluatedPredicates.contains(atom.getPredicate()) || ruleHeads.contains(atom) || assignment.contains(atom);
+    }
+}
@@ -0,0 +1,88 @@
+package unibz.shapes.valid.rule;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.openjdk.jmh.annotations.*;
+import unibz.shapes.core.GroundingPlan;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.RulePattern;
+import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.impl.CompactRuleMap;
+import unibz.shapes.core.global.impl.HashRuleMap;
+import unibz.shapes.core.global.impl.StripedRuleMap;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Grounding of synthetic solution mappings by a number of workers (see ParallelGrounding),
+ * into a StripedRuleMap of hash or compact rule maps.
+ * With 1 worker, solution mappings are grounded by the receiving thread, into a single rule map.
+ * <p>
+ * Scaling is only meaningful on a machine with at least as many cores as workers.
+ * Run with: mvn -Pbench test-compile exec:exec -Dbench=ParallelGroundingBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ParallelGroundingBenchmark {
+
+    private static final int ROWS = 200000;
+    private static final int NODES = 50000;
+
+    @Param({"hash", "compact"})
+    public String ruleMap;
+
+    @Param({"1", "2", "4", "8"})
+    public int workers;
+
+    private GroundingPlan plan;
+    private List<BindingSet> rows;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        plan = GroundingPlan.compile(ImmutableList.of(
+                new RulePattern(
+                        new Literal("q1", "x", true),
+                        ImmutableSet.of(new Literal("T", "y", true), new Literal("U", "z", false))
+                ),
+                new RulePattern(
+                        new Literal("S", "x", true),
+                        ImmutableSet.of(new Literal("q1", "x", true), new Literal("q2", "x", false))
+                )));
+        rows = TestParallelGrounding.createRows(new Random(1), ROWS, NODES);
+        executor = Executors.newFixedThreadPool(workers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int ground() {
+        Supplier<RuleMap> factory = ruleMap.equals("hash") ?
+                HashRuleMap::new :
+                CompactRuleMap::new;
+        if (workers == 1) {
+            RuleMap rules = factory.get();
+            rows.forEach(plan.grounder(rules));
+            return rules.getRuleNumber();
+        }
+        RuleMap rules = new StripedRuleMap(4 * workers, factory);
+        ParallelGrounding grounding = new ParallelGrounding(plan, rules, executor, workers);
+        rows.forEach(grounding);
+        grounding.finish();
+        return rules.getRuleNumber();
+    }
+}
@@ -0,0 +1,81 @@
+package unibz.shapes.valid.rule;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import unibz.shapes.core.GroundingPlan;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.Query;
+import unibz.shapes.core.RulePattern;
+import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.RuleSink;
+import unibz.shapes.core.global.impl.HashRuleMap;
+import unibz.shapes.endpoint.EmbeddedSPARQLEndpoint;
+import unibz.shapes.endpoint.SPARQLEndpoint;
+import unibz.shapes.shape.Schema;
+import unibz.shapes.shape.Shape;
+import unibz.shapes.shape.preprocess.ShapeParser;
+
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A query restricted to focus nodes (VALUES block) must produce the same rules as the unrestricted query,
+ * once the rules about other nodes are dropped (FocusNodeFilter)
+ */
+public class TestFocusNodeRestriction {
+
+    private static final ImmutableList<String> FOCUS_NODES = ImmutableList.of(
+            "http://dbpedia.org/resource/Actor1",
+            "http://dbpedia.org/resource/Movie2",
+            "http://dbpedia.org/resource/NotInTheData"
+    );
+
+    @Test
+    public void restrictedQueriesProduceTheFilteredRules() throws Exception {
+        Schema schema = ShapeParser.parseSchemaFromFile(
+                Paths.get("src/test/resources/nonRec/2/shacl/ActorMovieShapes.ttl"),
+                ShapeParser.Format.SHACL
+        );
+        schema.getShapes().forEach(s -> s.computeConstraintQueries(schema, Optional.empty()));
+        int rules = 0;
+        try (SPARQLEndpoint endpoint = new EmbeddedSPARQLEndpoint(Paths.get("src/test/resources/data/movies.ttl"))) {
+            for (Shape s : schema.getShapes()) {
+                for (Query q : getQueries(s)) {
+                    RuleMap expected = new HashRuleMap();
+                    ground(endpoint, q, s, new FocusNodeFilter(FOCUS_NODES, expected));
+                    RuleMap actual = new HashRuleMap();
+                    ground(endpoint, q.restrict(q.getId() + "_restricted", FOCUS_NODES), s, actual);
+                    assertEquals(q.getId(), toMap(expected), toMap(actual));
+                    rules += expected.getRuleNumber();
+                }
+            }
+        }
+        assertTrue(rules > 0);
+    }
+
+    private static void ground(SPARQLEndpoint endpoint, Query q, Shape s, RuleSink sink) {
+        GroundingPlan plan = GroundingPlan.compile(ImmutableList.<RulePattern>builder()
+                .add(q.getRulePattern())
+                .addAll(s.getRulePatterns())
+                .build());
+        endpoint.runQuery(q.getId(), q.getSparql(), plan.grounder(sink));
+    }
+
+    private static List<Query> getQueries(Shape s) {
+        List<Query> queries = new ArrayList<>();
+        s.getDisjuncts().forEach(d -> Stream.concat(Stream.of(d.getMinQuery()), d.getMaxQueries().stream())
+                .forEach(queries::add));
+        return queries;
+    }
+
+    private static Map<Literal, Set<ImmutableSet<Literal>>> toMap(RuleMap ruleMap) {
+        Map<Literal, Set<ImmutableSet<Literal>>> map = new HashMap<>();
+        ruleMap.entrySet().forEach(e -> map.put(e.getKey(), new HashSet<>(e.getValue())));
+        return map;
+    }
+}
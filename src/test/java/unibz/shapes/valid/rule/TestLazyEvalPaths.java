@@ -0,0 +1,65 @@
+package unibz.shapes.valid.rule;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import unibz.shapes.shape.Shape;
+import unibz.shapes.shape.impl.ShapeImpl;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Extended sets must contain the same paths as if each path had been extended right away
+ */
+public class TestLazyEvalPaths {
+
+    private static final Shape A = shape("A");
+    private static final Shape B = shape("B");
+    private static final Shape C = shape("C");
+
+    @Test
+    public void extendedPathsAreBuiltOnRequest() {
+        EvalPath empty = new EvalPath();
+        EvalPathSet base = EvalPathSet.of(ImmutableSet.of(empty, new EvalPath(A, empty)));
+        EvalPathSet extended = base.extend(B).extend(C);
+
+        assertEquals(
+                ImmutableSet.of(ImmutableList.of(B, C), ImmutableList.of(A, B, C)),
+                getShapes(extended)
+        );
+        assertEquals(ImmutableList.of(B, C), extended.getFirstPath().get().getShapes());
+        // the extended set does not affect the set it extends
+        assertEquals(
+                ImmutableSet.of(ImmutableList.of(), ImmutableList.of(A)),
+                getShapes(base)
+        );
+        assertEquals(
+                ImmutableSet.of(ImmutableList.of(B), ImmutableList.of(A, B)),
+                getShapes(base.extend(B))
+        );
+        assertFalse(extended.isEmpty());
+    }
+
+    @Test
+    public void emptySetStaysEmpty() {
+        EvalPathSet extended = EvalPathSet.empty().extend(A);
+        assertTrue(extended.isEmpty());
+        assertTrue(extended.getPaths().isEmpty());
+        assertFalse(extended.getFirstPath().isPresent());
+    }
+
+    private static ImmutableSet<ImmutableList<Shape>> getShapes(EvalPathSet paths) {
+        return paths.getPaths().stream()
+                .map(EvalPath::getShapes)
+                .collect(ImmutableCollectors.toSet());
+    }
+
+    private static Shape shape(String id) {
+        return new ShapeImpl(id, Optional.empty(), ImmutableSet.of());
+    }
+}
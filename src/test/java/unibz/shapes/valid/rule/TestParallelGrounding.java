@@ -0,0 +1,144 @@
+package unibz.shapes.valid.rule;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.impl.ListBindingSet;
+import org.junit.Test;
+import unibz.shapes.core.GroundingPlan;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.RulePattern;
+import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.RuleSink;
+import unibz.shapes.core.global.impl.CompactRuleMap;
+import unibz.shapes.core.global.impl.HashRuleMap;
+import unibz.shapes.core.global.impl.StripedRuleMap;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The rules grounded by parallel workers must not depend on the number of workers, and no rule is added after a cancellation
+ */
+public class TestParallelGrounding {
+
+    private static final int ROWS = 50000;
+
+    @Test
+    public void sameRulesForAnyNumberOfWorkers() throws InterruptedException {
+        GroundingPlan plan = GroundingPlan.compile(ImmutableList.of(
+                new RulePattern(
+                        new Literal("q1", "x", true),
+                        ImmutableSet.of(new Literal("T", "y", true), new Literal("U", "z", false))
+                ),
+                new RulePattern(
+                        new Literal("S", "x", true),
+                        ImmutableSet.of(new Literal("q1", "x", true))
+                )));
+        // few nodes, so that many rules are duplicates (grounded by different workers)
+        List<BindingSet> rows = createRows(new Random(5), ROWS, 300);
+        RuleMap expected = new HashRuleMap();
+        rows.forEach(plan.grounder(expected));
+
+        for (int workers : new int[]{1, 2, 4, 8}) {
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                List<Supplier<RuleMap>> factories = ImmutableList.of(
+                        () -> new StripedRuleMap(4 * workers, HashRuleMap::new),
+                        () -> new StripedRuleMap(4 * workers, CompactRuleMap::new)
+                );
+                for (Supplier<RuleMap> factory : factories) {
+                    RuleMap rules = factory.get();
+                    ParallelGrounding grounding = new ParallelGrounding(plan, rules, executor, workers);
+                    rows.forEach(grounding);
+                    grounding.finish();
+                    String name = workers + " workers, " + rules.getClass().getSimpleName();
+                    assertEquals(name, toMap(expected), toMap(rules));
+                    assertEquals(name, expected.getRuleNumber(), rules.getRuleNumber());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Once cancel has returned, the batch being grounded is complete, and the pending ones are never grounded
+     */
+    @Test
+    public void cancelWaitsForTheRunningBatch() throws Exception {
+        GroundingPlan plan = GroundingPlan.compile(ImmutableList.of(new RulePattern(
+                new Literal("q2", "x", true),
+                ImmutableSet.of(new Literal("T", "y", true))
+        )));
+        // two batches (the maximal number of pending batches for one worker)
+        List<BindingSet> rows = createRows(new Random(7), 2048, 5000);
+        RuleMap expected = new HashRuleMap();
+        rows.subList(0, 1024).forEach(plan.grounder(expected));
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        RuleMap rules = new StripedRuleMap(4, HashRuleMap::new);
+        RuleSink blockingSink = (head, body) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            rules.addRule(head, body);
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        ScheduledExecutorService releaser = Executors.newSingleThreadScheduledExecutor();
+        try {
+            ParallelGrounding grounding = new ParallelGrounding(plan, blockingSink, executor, 1);
+            rows.forEach(grounding);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            releaser.schedule(release::countDown, 200, TimeUnit.MILLISECONDS);
+            grounding.cancel();
+
+            assertEquals(expected.getRuleNumber(), rules.getRuleNumber());
+            assertEquals(toMap(expected), toMap(rules));
+            Thread.sleep(100);
+            assertEquals(expected.getRuleNumber(), rules.getRuleNumber());
+        } finally {
+            executor.shutdownNow();
+            releaser.shutdownNow();
+        }
+    }
+
+    private static Map<Literal, Set<ImmutableSet<Literal>>> toMap(RuleMap ruleMap) {
+        Map<Literal, Set<ImmutableSet<Literal>>> map = new HashMap<>();
+        ruleMap.entrySet().forEach(e -> map.put(e.getKey(), new HashSet<>(e.getValue())));
+        return map;
+    }
+
+    /**
+     * Rows binding x, y and z (z is unbound in 1 row out of 10)
+     */
+    static List<BindingSet> createRows(Random random, int rowNumber, int nodes) {
+        List<BindingSet> rows = new ArrayList<>(rowNumber);
+        for (int i = 0; i < rowNumber; i++) {
+            boolean bindZ = random.nextInt(10) > 0;
+            List<String> names = bindZ ?
+                    ImmutableList.of("x", "y", "z") :
+                    ImmutableList.of("x", "y");
+            List<Value> values = new ArrayList<>(names.size());
+            for (int j = 0; j < names.size(); j++) {
+                values.add(SimpleValueFactory.getInstance().createIRI("http://ex.org/n" + random.nextInt(nodes)));
+            }
+            rows.add(new ListBindingSet(names, values));
+        }
+        return rows;
+    }
+}
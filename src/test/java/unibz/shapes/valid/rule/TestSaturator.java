@@ -0,0 +1,244 @@
+package unibz.shapes.valid.rule;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.junit.Test;
+import unibz.shapes.core.Literal;
+import unibz.shapes.core.global.RuleMap;
+import unibz.shapes.core.global.impl.HashRuleMap;
+import unibz.shapes.util.ImmutableCollectors;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSaturator {
+
+    private static final int PREDICATES = 6;
+    private static final int NODES = 20;
+    private static final int TARGETS = 10;
+
+    /**
+     * A max constraint is violated if the negated atom is derived:
+     * the negation of a derived atom must not satisfy the body of another rule,
+     * once the rules for this atom have been discarded.
+     */
+    @Test
+    public void derivedAtomIsNotNegated() {
+        Literal target = new Literal("tsMax", "a", true);
+        Literal derived = new Literal("tsMaxRef", "b", true);
+        Saturator saturator = new Saturator();
+        FixpointSaturation reference = new FixpointSaturation();
+        saturator.addTargets(ImmutableList.of(target));
+        reference.addTargets(ImmutableList.of(target));
+
+        // target shape: valid if the referenced node does not conform to tsMaxRef
+        saturator.addRule(target.getCode(), new long[]{derived.getNegation().getCode()});
+        reference.addRule(target, ImmutableSet.of(derived.getNegation()));
+        saturator.setEvaluated(ImmutableSet.of("tsMax"));
+        reference.setEvaluated(ImmutableSet.of("tsMax"));
+        assertTrue(saturator.saturate().isEmpty());
+        assertTrue(reference.saturate().isEmpty());
+
+        // the referenced node conforms to tsMaxRef
+        saturator.addRule(derived.getCode(), new long[0]);
+        reference.addRule(derived, ImmutableSet.of());
+        saturator.setEvaluated(ImmutableSet.of("tsMaxRef"));
+        reference.setEvaluated(ImmutableSet.of("tsMaxRef"));
+        assertEquals(ImmutableList.of(target.getNegation()), saturator.saturate());
+        assertEquals(ImmutableSet.of(target.getNegation()), reference.saturate());
+        assertTrue(saturator.isTrue(derived));
+        assertFalse(saturator.isTrue(derived.getNegation()));
+        assertFalse(saturator.isTrue(target));
+    }
+
+    /**
+     * Assigning a body atom only pages in the segment it occurs in,
+     * and the region of this segment is reused when its rules are spilled again
+     */
+    @Test
+    public void spilledSegmentsArePagedInSeparately() {
+        Saturator saturator = new Saturator();
+        try {
+            // independent rules, spilled into several segments
+            int ruleNumber = 200000;
+            for (int n = 0; n < ruleNumber; n++) {
+                saturator.addRule(new Literal("spillHead", "n" + n, true).getCode(),
+                        new long[]{new Literal("spillBody", "n" + n, true).getCode()});
+            }
+            saturator.spill(0, ImmutableSet.of());
+            assertEquals(ruleNumber, saturator.getSpilledRuleNumber());
+            long fileSize = saturator.getSpillFileSize();
+
+            saturator.addRule(new Literal("spillBody", "n0", true).getCode(), new long[0]);
+            saturator.saturate();
+            assertTrue(saturator.isTrue(new Literal("spillHead", "n0", true)));
+            assertEquals(1, saturator.getPageIns());
+            int spilledRuleNumber = saturator.getSpilledRuleNumber();
+            assertTrue(spilledRuleNumber > 0 && spilledRuleNumber < ruleNumber);
+
+            saturator.spill(0, ImmutableSet.of());
+            assertEquals(ruleNumber - 1, saturator.getSpilledRuleNumber());
+            assertEquals(fileSize, saturator.getSpillFileSize());
+            assertTrue(saturator.getSpilledBytes() > fileSize);
+        } finally {
+            saturator.close();
+        }
+    }
+
+    /**
+     * The frontier of a shape only contains atoms whose value is still needed, whatever the sign of their literals
+     */
+    @Test
+    public void undecidedBodyAtoms() {
+        Saturator saturator = new Saturator();
+        try {
+            Literal decided = new Literal("fBody", "a", true);
+            Literal positive = new Literal("fBody", "b", true);
+            Literal negative = new Literal("fBody", "c", true);
+            Literal spilled = new Literal("fBody", "d", true);
+            saturator.addRule(new Literal("fHead", "s", true).getCode(), new long[]{spilled.getCode()});
+            saturator.spill(0, ImmutableSet.of());
+            saturator.addRule(new Literal("fHead", "a", true).getCode(), new long[]{decided.getCode(), positive.getCode()});
+            saturator.addRule(new Literal("fHead", "b", true).getCode(), new long[]{negative.getNegation().getCode()});
+            saturator.addRule(decided.getCode(), new long[0]);
+            saturator.saturate();
+            assertTrue(saturator.isTrue(decided));
+
+            assertEquals(
+                    ImmutableSet.of(positive, negative, spilled),
+                    saturator.getUndecidedBodyAtoms().collect(ImmutableCollectors.toSet())
+            );
+        } finally {
+            saturator.close();
+        }
+    }
+
+    /**
+     * Only the undecided targets and rules, and the true atoms of the kept predicates, are carried over to a new engine
+     */
+    @Test
+    public void carryOverDropsDecidedAtoms() {
+        Literal valid = new Literal("cTarget", "a", true);
+        Literal remaining = new Literal("cTarget", "b", true);
+        Literal kept = new Literal("cKept", "a", true);
+        Literal dropped = new Literal("cDropped", "a", true);
+        Literal pending = new Literal("cKept", "b", true);
+        Saturator saturator = new Saturator();
+        saturator.addTargets(ImmutableList.of(valid, remaining));
+        saturator.addRule(kept.getCode(), new long[0]);
+        saturator.addRule(dropped.getCode(), new long[0]);
+        saturator.addRule(valid.getCode(), new long[]{kept.getCode(), dropped.getCode()});
+        saturator.addRule(remaining.getCode(), new long[]{kept.getCode(), pending.getCode()});
+        saturator.setEvaluated(ImmutableSet.of("cTarget", "cDropped"));
+        assertEquals(ImmutableList.of(valid), saturator.saturate());
+
+        Saturator carried = saturator.carryOver(ImmutableSet.of("cKept"));
+        saturator.close();
+        assertEquals(1, carried.getRuleNumber());
+        assertTrue(carried.isTrue(kept));
+        assertFalse(carried.isTrue(dropped));
+        assertFalse(carried.isTrue(valid));
+        // the true body literal is not carried over
+        assertEquals(ImmutableSet.of(pending), carried.getUndecidedBodyAtoms().collect(ImmutableCollectors.toSet()));
+
+        carried.addRule(pending.getCode(), new long[0]);
+        carried.setEvaluated(ImmutableSet.of("cKept"));
+        assertEquals(ImmutableList.of(remaining), carried.saturate());
+        carried.close();
+    }
+
+    @Test
+    public void sameResultsAsFixpointSaturation() {
+        for (int seed = 0; seed < 50; seed++) {
+            for (boolean viaRuleMap : new boolean[]{false, true}) {
+                for (boolean spill : new boolean[]{false, true}) {
+                    compareWithFixpoint(new Random(seed), viaRuleMap, spill, false);
+                }
+                compareWithFixpoint(new Random(seed), viaRuleMap, false, true);
+            }
+        }
+    }
+
+    /**
+     * Predicates are evaluated one after the other (like shapes), each with random rules for this predicate.
+     * Rules are added one by one, or through a rule map, and rules which are not hot are spilled to disk after each step,
+     * or carried over to a new engine (keeping the true atoms of all predicates, since any predicate may occur in a body).
+     */
+    private void compareWithFixpoint(Random random, boolean viaRuleMap, boolean spill, boolean carryOver) {
+        String name = "rule map: " + viaRuleMap + ", spill: " + spill + ", carry over: " + carryOver;
+        Saturator saturator = new Saturator();
+        FixpointSaturation reference = new FixpointSaturation();
+        List<Literal> targets = new ArrayList<>();
+        for (int n = 0; n < TARGETS; n++) {
+            targets.add(createAtom(0, n));
+        }
+        saturator.addTargets(targets);
+        reference.addTargets(targets);
+        Set<Literal> decided = new HashSet<>();
+        try {
+            for (int p = 0; p < PREDICATES; p++) {
+                RuleMap ruleMap = new HashRuleMap();
+                int ruleNumber = random.nextInt(3 * NODES);
+                for (int i = 0; i < ruleNumber; i++) {
+                    Literal head = createAtom(p, random.nextInt(NODES));
+                    ImmutableSet<Literal> body = createBody(random);
+                    reference.addRule(head, body);
+                    if (viaRuleMap) {
+                        ruleMap.addRule(head, body);
+                    } else {
+                        saturator.addRule(head.getCode(), body.stream()
+                                .mapToLong(Literal::getCode)
+                                .toArray());
+                    }
+                }
+                saturator.addRules(ruleMap);
+                ImmutableSet<String> predicates = ImmutableSet.of("p" + p);
+                saturator.setEvaluated(predicates);
+                reference.setEvaluated(predicates);
+                decided.addAll(saturator.saturate());
+                assertEquals(name, reference.saturate(), decided);
+                for (int q = 0; q < PREDICATES; q++) {
+                    for (int n = 0; n < NODES; n++) {
+                        Literal atom = createAtom(q, n);
+                        assertEquals(name + ", " + atom, reference.isTrue(atom), saturator.isTrue(atom));
+                    }
+                }
+                if (spill) {
+                    saturator.spill(0, ImmutableSet.of());
+                }
+                if (carryOver) {
+                    Saturator previous = saturator;
+                    saturator = previous.carryOver(IntStream.range(0, PREDICATES)
+                            .mapToObj(q -> "p" + q)
+                            .collect(ImmutableCollectors.toSet()));
+                    previous.close();
+                }
+            }
+        } finally {
+            saturator.close();
+        }
+    }
+
+    /**
+     * 0 to 3 literals, with any predicate
+     */
+    private static ImmutableSet<Literal> createBody(Random random) {
+        int size = random.nextInt(4);
+        ImmutableSet.Builder<Literal> body = ImmutableSet.builder();
+        for (int i = 0; i < size; i++) {
+            Literal atom = createAtom(random.nextInt(PREDICATES), random.nextInt(NODES));
+            body.add(random.nextInt(3) == 0 ?
+                    atom.getNegation() :
+                    atom);
+        }
+        return body.build();
+    }
+
+    private static Literal createAtom(int predicate, int node) {
+        return new Literal("p" + predicate, "n" + node, true);
+    }
+}